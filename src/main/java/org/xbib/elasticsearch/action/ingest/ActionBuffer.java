@@ -0,0 +1,243 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.ActionRequest;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A buffer of actions, organized in a list of array chunks.
+ * <p/>
+ * Adding an action does not allocate except for every new chunk, the number of actions
+ * and the estimated size in bytes are kept as counters, and taking actions hands over
+ * whole chunks. At most one chunk is split by a take.
+ * <p/>
+ * Adding and taking is thread safe. Iterating is not, it is meant for buffers
+ * that have been taken over and are no longer modified.
+ */
+public class ActionBuffer implements Iterable<ActionRequest> {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    private final int chunkSize;
+
+    private Chunk head;
+
+    private Chunk tail;
+
+    private volatile int size;
+
+    private volatile long sizeInBytes;
+
+    public ActionBuffer() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public ActionBuffer(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Add an action.
+     *
+     * @param request the action request
+     * @param bytes   the estimated size of the action in bytes
+     */
+    public synchronized void add(ActionRequest request, int bytes) {
+        Chunk chunk = tail;
+        if (chunk == null || chunk.end == chunk.actions.length) {
+            chunk = new Chunk(chunkSize);
+            append(chunk);
+        }
+        chunk.actions[chunk.end] = request;
+        chunk.bytes[chunk.end] = bytes;
+        chunk.end++;
+        chunk.sizeInBytes += bytes;
+        size++;
+        sizeInBytes += bytes;
+    }
+
+    /**
+     * Add all actions of a buffer by linking its chunks, without copying. The buffer is
+     * taken over and must no longer be used, usually it has just been taken from another buffer.
+     *
+     * @param buffer the buffer
+     */
+    public synchronized void addAll(ActionBuffer buffer) {
+        if (buffer.head == null) {
+            return;
+        }
+        append(buffer.head);
+        tail = buffer.tail;
+        size += buffer.size;
+        sizeInBytes += buffer.sizeInBytes;
+    }
+
+    /**
+     * The number of actions in this buffer.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * The estimated size of the actions in this buffer in bytes.
+     */
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Take all actions from this buffer.
+     *
+     * @return a buffer with all actions
+     */
+    public synchronized ActionBuffer takeAll() {
+        ActionBuffer buffer = new ActionBuffer(chunkSize);
+        buffer.head = head;
+        buffer.tail = tail;
+        buffer.size = size;
+        buffer.sizeInBytes = sizeInBytes;
+        head = null;
+        tail = null;
+        size = 0;
+        sizeInBytes = 0L;
+        return buffer;
+    }
+
+    /**
+     * Take a number of actions from the head of this buffer.
+     *
+     * @param n the number of actions
+     * @return a buffer with the actions taken
+     */
+    public synchronized ActionBuffer take(int n) {
+        if (n >= size) {
+            return takeAll();
+        }
+        ActionBuffer buffer = new ActionBuffer(chunkSize);
+        int remaining = n;
+        while (remaining > 0) {
+            Chunk chunk = head;
+            int count = chunk.end - chunk.start;
+            if (count <= remaining) {
+                head = chunk.next;
+                if (head == null) {
+                    tail = null;
+                }
+                chunk.next = null;
+                buffer.append(chunk);
+                buffer.size += count;
+                buffer.sizeInBytes += chunk.sizeInBytes;
+                remaining -= count;
+            } else {
+                // split the chunk, copy only the part taken
+                Chunk part = new Chunk(remaining);
+                System.arraycopy(chunk.actions, chunk.start, part.actions, 0, remaining);
+                System.arraycopy(chunk.bytes, chunk.start, part.bytes, 0, remaining);
+                for (int i = 0; i < remaining; i++) {
+                    chunk.actions[chunk.start + i] = null;
+                    part.sizeInBytes += part.bytes[i];
+                }
+                part.end = remaining;
+                chunk.start += remaining;
+                chunk.sizeInBytes -= part.sizeInBytes;
+                buffer.append(part);
+                buffer.size += remaining;
+                buffer.sizeInBytes += part.sizeInBytes;
+                remaining = 0;
+            }
+        }
+        size -= buffer.size;
+        sizeInBytes -= buffer.sizeInBytes;
+        return buffer;
+    }
+
+    /**
+     * The number of actions at the head of this buffer within a volume, at least one if the
+     * buffer is not empty.
+     *
+     * @param n        the maximum number of actions
+     * @param maxBytes the volume in bytes
+     * @return the number of actions
+     */
+    public synchronized int countWithin(int n, long maxBytes) {
+        int count = 0;
+        long bytes = 0L;
+        for (Chunk chunk = head; chunk != null; chunk = chunk.next) {
+            for (int i = chunk.start; i < chunk.end; i++) {
+                bytes += chunk.bytes[i];
+                if (count == n || (count > 0 && bytes > maxBytes)) {
+                    return count;
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Iterator<ActionRequest> iterator() {
+        return new Iterator<ActionRequest>() {
+
+            private Chunk chunk = head;
+
+            private int pos = head != null ? head.start : 0;
+
+            @Override
+            public boolean hasNext() {
+                while (chunk != null && pos >= chunk.end) {
+                    chunk = chunk.next;
+                    pos = chunk != null ? chunk.start : 0;
+                }
+                return chunk != null;
+            }
+
+            @Override
+            public ActionRequest next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return chunk.actions[pos++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void append(Chunk chunk) {
+        if (tail == null) {
+            head = chunk;
+        } else {
+            tail.next = chunk;
+        }
+        tail = chunk;
+    }
+
+    private static class Chunk {
+
+        final ActionRequest[] actions;
+
+        final int[] bytes;
+
+        int start;
+
+        int end;
+
+        long sizeInBytes;
+
+        Chunk next;
+
+        Chunk(int capacity) {
+            this.actions = new ActionRequest[capacity];
+            this.bytes = new int[capacity];
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.compress.lzf.LZFCompressor;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.index.VersionType;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+
+/**
+ * Reads and writes index and delete actions in the compact encoding.
+ * <p/>
+ * Layout: the number of actions, a string table with the index, type, routing and parent values,
+ * one record per action with string table references and flags for the optional fields,
+ * and a block with the concatenated sources, optionally compressed. Index actions with an auto
+ * generated id are written in full into their record, as the flag can only be restored by reading it.
+ */
+class CompactActionCodec {
+
+    private static final int DELETE = 1;
+
+    private static final int CREATE = 1 << 1;
+
+    private static final int REFRESH = 1 << 2;
+
+    private static final int AUTO_ID = 1 << 3;
+
+    private static final int ID = 1 << 4;
+
+    private static final int TIMESTAMP = 1 << 5;
+
+    private static final int TTL = 1 << 6;
+
+    private static final int VERSION = 1 << 7;
+
+    private static final int VERSION_TYPE = 1 << 8;
+
+    private static final byte RAW = 0;
+
+    private static final byte LZF = 1;
+
+    private static final byte DEFLATE = 2;
+
+    /**
+     * Sources smaller than this are never compressed
+     */
+    private static final int MIN_COMPRESS_SIZE = 512;
+
+    private static final LZFCompressor lzf = new LZFCompressor();
+
+    private CompactActionCodec() {
+    }
+
+    /**
+     * Write actions.
+     *
+     * @param out       the stream
+     * @param encoding  the encoding, one of the compact encodings
+     * @param actions   the actions, without null elements
+     * @param positions the positions of the actions, or null if the positions are implicit
+     * @throws IOException if writing fails
+     */
+    static void write(StreamOutput out, IngestEncoding encoding, List<ActionRequest> actions, int[] positions) throws IOException {
+        Map<String, Integer> strings = newHashMap();
+        List<String> table = newArrayList();
+        BytesStreamOutput records = new BytesStreamOutput();
+        BytesStreamOutput sources = new BytesStreamOutput();
+        int previous = 0;
+        for (int i = 0; i < actions.size(); i++) {
+            ActionRequest action = actions.get(i);
+            if (positions != null) {
+                int delta = positions[i] - previous;
+                records.writeVInt((delta << 1) ^ (delta >> 31));
+                previous = positions[i];
+            }
+            if (action instanceof IndexRequest && ((IndexRequest) action).autoGeneratedId()) {
+                // the auto generated id flag has no setter, keep it by writing the action with its own stream method
+                records.writeVInt(AUTO_ID);
+                action.writeTo(records);
+            } else if (action instanceof IndexRequest) {
+                IndexRequest request = (IndexRequest) action;
+                int flags = 0;
+                flags |= request.opType() == IndexRequest.OpType.CREATE ? CREATE : 0;
+                flags |= request.refresh() ? REFRESH : 0;
+                flags |= request.id() != null ? ID : 0;
+                flags |= request.timestamp() != null ? TIMESTAMP : 0;
+                flags |= request.ttl() != -1 ? TTL : 0;
+                flags |= request.version() != Versions.MATCH_ANY ? VERSION : 0;
+                flags |= request.versionType() != VersionType.INTERNAL ? VERSION_TYPE : 0;
+                records.writeVInt(flags);
+                records.writeVInt(ref(strings, table, request.index()));
+                records.writeVInt(ref(strings, table, request.type()));
+                records.writeVInt(ref(strings, table, request.routing()));
+                records.writeVInt(ref(strings, table, request.parent()));
+                if (request.id() != null) {
+                    records.writeString(request.id());
+                }
+                if (request.timestamp() != null) {
+                    records.writeString(request.timestamp());
+                }
+                if (request.ttl() != -1) {
+                    records.writeVLong(request.ttl());
+                }
+                writeVersion(records, flags, request.version(), request.versionType());
+                BytesReference source = request.source();
+                if (source != null) {
+                    records.writeVInt(source.length() + 1);
+                    source.writeTo(sources);
+                } else {
+                    records.writeVInt(0);
+                }
+            } else if (action instanceof DeleteRequest) {
+                DeleteRequest request = (DeleteRequest) action;
+                int flags = DELETE;
+                flags |= request.refresh() ? REFRESH : 0;
+                flags |= request.id() != null ? ID : 0;
+                flags |= request.version() != Versions.MATCH_ANY ? VERSION : 0;
+                flags |= request.versionType() != VersionType.INTERNAL ? VERSION_TYPE : 0;
+                records.writeVInt(flags);
+                records.writeVInt(ref(strings, table, request.index()));
+                records.writeVInt(ref(strings, table, request.type()));
+                records.writeVInt(ref(strings, table, request.routing()));
+                if (request.id() != null) {
+                    records.writeString(request.id());
+                }
+                writeVersion(records, flags, request.version(), request.versionType());
+            }
+        }
+        out.writeVInt(actions.size());
+        out.writeVInt(table.size());
+        for (String s : table) {
+            out.writeString(s);
+        }
+        records.bytes().writeTo(out);
+        writeSources(out, encoding, sources.bytes());
+    }
+
+    /**
+     * Read actions.
+     *
+     * @param in        the stream
+     * @param positions true if positions were written
+     * @return the actions and their positions
+     * @throws IOException if reading fails
+     */
+    static Actions read(StreamInput in, boolean positions) throws IOException {
+        int size = in.readVInt();
+        int tableSize = in.readVInt();
+        String[] table = new String[tableSize + 1];
+        for (int i = 1; i <= tableSize; i++) {
+            table[i] = in.readString();
+        }
+        Actions actions = new Actions(size, positions);
+        int[] sourceLengths = new int[size];
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            if (positions) {
+                int zigzag = in.readVInt();
+                previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                actions.positions[i] = previous;
+            }
+            int flags = in.readVInt();
+            if ((flags & AUTO_ID) != 0) {
+                IndexRequest request = new IndexRequest();
+                request.readFrom(in);
+                actions.actions[i] = request;
+            } else if ((flags & DELETE) != 0) {
+                DeleteRequest request = new DeleteRequest(table[in.readVInt()]);
+                request.type(table[in.readVInt()]);
+                request.routing(table[in.readVInt()]);
+                if ((flags & ID) != 0) {
+                    request.id(in.readString());
+                }
+                request.refresh((flags & REFRESH) != 0);
+                readVersion(in, flags, request);
+                actions.actions[i] = request;
+            } else {
+                IndexRequest request = new IndexRequest(table[in.readVInt()]);
+                request.type(table[in.readVInt()]);
+                request.routing(table[in.readVInt()]);
+                request.parent(table[in.readVInt()]);
+                if ((flags & ID) != 0) {
+                    request.id(in.readString());
+                }
+                if ((flags & TIMESTAMP) != 0) {
+                    request.timestamp(in.readString());
+                }
+                if ((flags & TTL) != 0) {
+                    request.ttl(in.readVLong());
+                }
+                if ((flags & VERSION) != 0) {
+                    request.version(readZLong(in));
+                }
+                if ((flags & VERSION_TYPE) != 0) {
+                    request.versionType(VersionType.fromValue(in.readByte()));
+                }
+                request.opType((flags & CREATE) != 0 ? IndexRequest.OpType.CREATE : IndexRequest.OpType.INDEX);
+                request.refresh((flags & REFRESH) != 0);
+                sourceLengths[i] = in.readVInt();
+                actions.actions[i] = request;
+            }
+        }
+        byte[] sources = readSources(in);
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            if (sourceLengths[i] > 0) {
+                int length = sourceLengths[i] - 1;
+                ((IndexRequest) actions.actions[i]).source(new BytesArray(sources, offset, length), false);
+                offset += length;
+            }
+        }
+        return actions;
+    }
+
+    private static int ref(Map<String, Integer> strings, List<String> table, String s) {
+        if (s == null) {
+            return 0;
+        }
+        Integer ref = strings.get(s);
+        if (ref == null) {
+            table.add(s);
+            ref = table.size();
+            strings.put(s, ref);
+        }
+        return ref;
+    }
+
+    private static void writeVersion(StreamOutput out, int flags, long version, VersionType versionType) throws IOException {
+        if ((flags & VERSION) != 0) {
+            writeZLong(out, version);
+        }
+        if ((flags & VERSION_TYPE) != 0) {
+            out.writeByte(versionType.getValue());
+        }
+    }
+
+    private static void readVersion(StreamInput in, int flags, DeleteRequest request) throws IOException {
+        if ((flags & VERSION) != 0) {
+            request.version(readZLong(in));
+        }
+        if ((flags & VERSION_TYPE) != 0) {
+            request.versionType(VersionType.fromValue(in.readByte()));
+        }
+    }
+
+    private static void writeZLong(StreamOutput out, long value) throws IOException {
+        out.writeVLong((value << 1) ^ (value >> 63));
+    }
+
+    private static long readZLong(StreamInput in) throws IOException {
+        long zigzag = in.readVLong();
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static void writeSources(StreamOutput out, IngestEncoding encoding, BytesReference sources) throws IOException {
+        int length = sources.length();
+        if (length < MIN_COMPRESS_SIZE || encoding == IngestEncoding.COMPACT) {
+            out.writeByte(RAW);
+            out.writeVInt(length);
+            sources.writeTo(out);
+            return;
+        }
+        byte[] raw = sources.toBytes();
+        if (encoding == IngestEncoding.COMPACT_LZF) {
+            byte[] compressed = lzf.compress(raw, 0, raw.length);
+            out.writeByte(LZF);
+            out.writeVInt(length);
+            out.writeVInt(compressed.length);
+            out.writeBytes(compressed);
+        } else {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                BytesStreamOutput compressed = new BytesStreamOutput(length / 2 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    compressed.writeBytes(buffer, 0, n);
+                }
+                out.writeByte(DEFLATE);
+                out.writeVInt(length);
+                out.writeVInt(compressed.size());
+                compressed.bytes().writeTo(out);
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    private static byte[] readSources(StreamInput in) throws IOException {
+        byte compression = in.readByte();
+        int length = in.readVInt();
+        if (compression == RAW) {
+            byte[] raw = new byte[length];
+            in.readBytes(raw, 0, length);
+            return raw;
+        }
+        byte[] compressed = new byte[in.readVInt()];
+        in.readBytes(compressed, 0, compressed.length);
+        if (compression == LZF) {
+            return lzf.uncompress(compressed, 0, compressed.length);
+        } else if (compression == DEFLATE) {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(compressed);
+                byte[] raw = new byte[length];
+                int n = 0;
+                while (n < length) {
+                    int k = inflater.inflate(raw, n, length - n);
+                    if (k == 0 && (inflater.finished() || inflater.needsInput())) {
+                        break;
+                    }
+                    n += k;
+                }
+                if (n != length) {
+                    throw new IOException("inflated " + n + " bytes of sources, expected " + length);
+                }
+                return raw;
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+        throw new IOException("unknown compression of sources [" + compression + "]");
+    }
+
+    /**
+     * Decoded actions with their positions
+     */
+    static class Actions {
+
+        final ActionRequest[] actions;
+
+        final int[] positions;
+
+        Actions(int size, boolean positions) {
+            this.actions = new ActionRequest[size];
+            this.positions = positions ? new int[size] : null;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Adapts the number of actions per request and the number of concurrent requests
+ * by additive increase and multiplicative decrease (AIMD).
+ * <p/>
+ * A response with a latency above the target, or with more than a tenth of the actions failed,
+ * and a failed or rejected request halve both values. Responses to requests that were sent before
+ * the last decrease do not decrease again, so a burst of slow responses counts only once. After a
+ * round of responses within the target, as many as there are concurrent requests, the number of
+ * actions grows by a tenth of its initial value and the number of concurrent requests by one.
+ */
+public class IngestAdaptiveController {
+
+    private static final double MAX_FAILURE_RATIO = 0.1d;
+
+    private final int maxActions;
+
+    private final int maxConcurrency;
+
+    private final int step;
+
+    private final long latencyTargetMillis;
+
+    private volatile int actions;
+
+    private volatile int concurrency;
+
+    private int successes;
+
+    private long epoch;
+
+    public IngestAdaptiveController(int actions, int concurrency, int maxActions, int maxConcurrency,
+                                    TimeValue latencyTarget) {
+        this.step = Math.max(1, actions / 10);
+        this.actions = Math.max(step, actions);
+        this.concurrency = Math.max(1, concurrency);
+        this.maxActions = Math.max(this.actions, maxActions);
+        this.maxConcurrency = Math.max(this.concurrency, maxConcurrency);
+        this.latencyTargetMillis = latencyTarget.millis();
+    }
+
+    /**
+     * The current number of actions per request.
+     */
+    public int actions() {
+        return actions;
+    }
+
+    /**
+     * The current number of concurrent requests.
+     */
+    public int concurrency() {
+        return concurrency;
+    }
+
+    public int maxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * The number of decreases so far. Taken when a request is sent, and given back with the outcome.
+     */
+    public synchronized long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Adapt to a response.
+     *
+     * @param epoch           the epoch when the request was sent
+     * @param latencyMillis   the latency of the request in milliseconds
+     * @param numberOfActions the number of actions of the request
+     * @param failures        the number of failed actions
+     * @return true if the values have changed
+     */
+    public synchronized boolean onResponse(long epoch, long latencyMillis, int numberOfActions, int failures) {
+        if (latencyMillis > latencyTargetMillis || failures > numberOfActions * MAX_FAILURE_RATIO) {
+            return decrease(epoch);
+        }
+        if (++successes < concurrency) {
+            return false;
+        }
+        successes = 0;
+        int a = actions;
+        int c = concurrency;
+        actions = Math.min(maxActions, actions + step);
+        concurrency = Math.min(maxConcurrency, concurrency + 1);
+        return a != actions || c != concurrency;
+    }
+
+    /**
+     * Adapt to a failed or rejected request.
+     *
+     * @param epoch the epoch when the request was sent
+     * @return true if the values have changed
+     */
+    public synchronized boolean onFailure(long epoch) {
+        return decrease(epoch);
+    }
+
+    private boolean decrease(long sentEpoch) {
+        if (sentEpoch < epoch) {
+            return false;
+        }
+        epoch++;
+        successes = 0;
+        actions = Math.max(step, actions / 2);
+        concurrency = Math.max(1, concurrency / 2);
+        return true;
+    }
+}
@@ -0,0 +1,99 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for the ingest requests of a node.
+ * <p/>
+ * Counts the ingest requests and their estimated bytes in flight on the node, and watches
+ * the queue of the bulk thread pool where the shard requests wait for execution. A request
+ * is rejected before any of its actions is executed if the queue or the bytes in flight exceed
+ * their limits, together with a retry-after hint that grows with the overload, up to ten
+ * times the configured retry-after time. A request is always admitted if no other request
+ * is in flight, so a large request can not starve.
+ */
+public class IngestAdmissionController {
+
+    private static final double MAX_BACKOFF = 10.0d;
+
+    private final ThreadPool threadPool;
+
+    private final int maxQueueSize;
+
+    private final long maxSizeInBytes;
+
+    private final long retryAfterMillis;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final AtomicLong sizeInBytes = new AtomicLong();
+
+    public IngestAdmissionController(Settings settings, ThreadPool threadPool) {
+        this.threadPool = threadPool;
+        // 0 means no limit
+        this.maxQueueSize = settings.getAsInt("action.ingest.admission.max_queue", 0);
+        this.maxSizeInBytes = settings.getAsBytesSize("action.ingest.admission.max_size", new ByteSizeValue(0)).bytes();
+        this.retryAfterMillis = settings.getAsTime("action.ingest.admission.retry_after", TimeValue.timeValueMillis(100)).millis();
+    }
+
+    /**
+     * Admit a request.
+     *
+     * @param bytes the estimated size of the request in bytes
+     * @throws IngestRejectedException if the request is not admitted
+     */
+    public void admit(long bytes) throws IngestRejectedException {
+        int queueSize = queueSize();
+        long inFlight = sizeInBytes.addAndGet(bytes);
+        int n = requests.incrementAndGet();
+        if (n == 1) {
+            return;
+        }
+        double overload = 0.0d;
+        if (maxQueueSize > 0 && queueSize >= maxQueueSize) {
+            overload = (double) queueSize / maxQueueSize;
+        }
+        if (maxSizeInBytes > 0 && inFlight > maxSizeInBytes) {
+            overload = Math.max(overload, (double) inFlight / maxSizeInBytes);
+        }
+        if (overload > 0.0d) {
+            release(bytes);
+            throw new IngestRejectedException("ingest request rejected, " + (n - 1) + " requests with "
+                    + (inFlight - bytes) + " bytes in flight, bulk queue size " + queueSize,
+                    (long) (retryAfterMillis * Math.min(overload, MAX_BACKOFF)));
+        }
+    }
+
+    /**
+     * Release an admitted request.
+     *
+     * @param bytes the estimated size of the request in bytes
+     */
+    public void release(long bytes) {
+        sizeInBytes.addAndGet(-bytes);
+        requests.decrementAndGet();
+    }
+
+    /**
+     * The number of tasks waiting in the queue of the bulk thread pool.
+     */
+    public int queueSize() {
+        Executor executor = threadPool.executor(ThreadPool.Names.BULK);
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    /**
+     * The estimated size of the admitted requests in bytes.
+     */
+    public long inFlightBytes() {
+        return sizeInBytes.get();
+    }
+}
@@ -0,0 +1,114 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of clients for the ingest requests of a processor.
+ * <p/>
+ * Each client has its own connections and thread pool. A request is sent with the client that has
+ * the fewest requests in flight, of equally loaded clients the next one in turn, so the requests
+ * of one processor are spread over all connections of the pool.
+ */
+public class IngestClientPool {
+
+    private final Client[] clients;
+
+    private final AtomicInteger[] inFlight;
+
+    private final AtomicLong[] sent;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    public IngestClientPool(List<? extends Client> clients) {
+        if (clients == null || clients.isEmpty()) {
+            throw new ElasticsearchIllegalArgumentException("no clients for pool");
+        }
+        this.clients = clients.toArray(new Client[clients.size()]);
+        this.inFlight = new AtomicInteger[this.clients.length];
+        this.sent = new AtomicLong[this.clients.length];
+        for (int i = 0; i < this.clients.length; i++) {
+            inFlight[i] = new AtomicInteger();
+            sent[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Execute an ingest request with the least loaded client.
+     *
+     * @param request  the request
+     * @param listener the listener
+     */
+    public void execute(IngestRequest request, final ActionListener<IngestResponse> listener) {
+        final int i = select();
+        inFlight[i].incrementAndGet();
+        sent[i].incrementAndGet();
+        try {
+            clients[i].execute(IngestAction.INSTANCE, request, new ActionListener<IngestResponse>() {
+                @Override
+                public void onResponse(IngestResponse response) {
+                    inFlight[i].decrementAndGet();
+                    listener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    inFlight[i].decrementAndGet();
+                    listener.onFailure(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight[i].decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * The number of clients in the pool.
+     */
+    public int size() {
+        return clients.length;
+    }
+
+    /**
+     * The number of requests in flight per client.
+     */
+    public int[] inFlight() {
+        int[] n = new int[clients.length];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = inFlight[i].get();
+        }
+        return n;
+    }
+
+    /**
+     * The number of requests sent per client.
+     */
+    public long[] sent() {
+        long[] n = new long[clients.length];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = sent[i].get();
+        }
+        return n;
+    }
+
+    private int select() {
+        int start = (next.getAndIncrement() & 0x7fffffff) % clients.length;
+        int best = start;
+        int min = inFlight[start].get();
+        for (int k = 1; k < clients.length && min > 0; k++) {
+            int i = (start + k) % clients.length;
+            int n = inFlight[i].get();
+            if (n < min) {
+                min = n;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
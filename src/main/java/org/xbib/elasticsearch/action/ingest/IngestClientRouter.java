@@ -0,0 +1,385 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateRequest;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.routing.operation.hash.HashFunction;
+import org.elasticsearch.cluster.routing.operation.hash.djb.DjbHashFunction;
+import org.elasticsearch.cluster.routing.operation.plain.PlainOperationRouting;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportService;
+import org.xbib.elasticsearch.plugin.support.TransportServiceRegistry;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+
+/**
+ * Routes ingest requests of a transport client to the nodes of the primary shards.
+ * <p/>
+ * The actions of a request are planned against the cluster state with the same routing as
+ * {@link TransportIngestAction}, and grouped by the node of their primary shard. Each part is
+ * sent directly to its node, so the node executes the shard requests locally. Actions that can
+ * not be routed, for example of an index that does not exist yet, or whose node is not connected
+ * to the client, are sent to any node as before. The responses of the parts are merged into one
+ * response with the positions of the request.
+ * <p/>
+ * The cluster state is fetched in the background when it is older than the refresh interval,
+ * and after a part failed. Until the first cluster state arrives, requests are not routed.
+ * If all parts fail, the request fails with the failure of the first part, so a rejection is
+ * retried by the processor. Otherwise, the actions of a failed part are item failures.
+ */
+public class IngestClientRouter {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(IngestClientRouter.class.getSimpleName());
+
+    private final TransportClient client;
+
+    private final TransportService transportService;
+
+    private final IngestRoutingPlanner routingPlanner;
+
+    private final long refreshMillis;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile ClusterState clusterState;
+
+    private volatile long refreshedAt;
+
+    public IngestClientRouter(TransportClient client, Settings settings) {
+        this(client, TransportServiceRegistry.transportService(client), settings);
+    }
+
+    IngestClientRouter(TransportClient client, TransportService transportService, Settings settings) {
+        this.client = client;
+        this.transportService = transportService;
+        this.routingPlanner = new IngestRoutingPlanner(new PlainOperationRouting(settings, hashFunction(settings), null), true);
+        this.refreshMillis = settings.getAsTime("action.ingest.client_routing.refresh", TimeValue.timeValueSeconds(10)).millis();
+    }
+
+    /**
+     * Execute an ingest request, routed to the nodes of the primary shards.
+     *
+     * @param request  the ingest request
+     * @param listener the listener for the merged response
+     */
+    public void execute(IngestRequest request, final ActionListener<IngestResponse> listener) {
+        ClusterState state = clusterState;
+        if (state == null || System.currentTimeMillis() - refreshedAt > refreshMillis) {
+            refresh();
+        }
+        if (state == null) {
+            client.execute(IngestAction.INSTANCE, request, listener);
+            return;
+        }
+        List<Part> parts;
+        try {
+            parts = split(state, request);
+        } catch (Throwable e) {
+            // for example a missing index, let a node handle it
+            logger.debug("can not route ingest request: {}", e.getMessage());
+            client.execute(IngestAction.INSTANCE, request, listener);
+            return;
+        }
+        if (parts.size() == 1 && parts.get(0).node == null) {
+            client.execute(IngestAction.INSTANCE, request, listener);
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        final Merger merger = new Merger(parts.size(), startTime, listener);
+        for (final Part part : parts) {
+            IngestRequest partRequest = request.newRequest(part.actions);
+            ActionListener<IngestResponse> partListener = new ActionListener<IngestResponse>() {
+                @Override
+                public void onResponse(IngestResponse response) {
+                    merger.onResponse(part, response);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    refreshedAt = 0L;
+                    merger.onFailure(part, e);
+                }
+            };
+            if (part.node == null) {
+                client.execute(IngestAction.INSTANCE, partRequest, partListener);
+            } else {
+                send(part.node, partRequest, partListener);
+            }
+        }
+    }
+
+    /**
+     * Fetch the cluster state in the background, unless a fetch is running.
+     */
+    public void refresh() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        ClusterStateRequest request = new ClusterStateRequest().clear().metaData(true).routingTable(true).nodes(true);
+        client.admin().cluster().state(request, new ActionListener<ClusterStateResponse>() {
+            @Override
+            public void onResponse(ClusterStateResponse response) {
+                ClusterState state = response.getState();
+                ClusterState previous = clusterState;
+                if (previous == null || previous.version() != state.version()) {
+                    logger.debug("routing with cluster state version {}", state.version());
+                }
+                clusterState = state;
+                refreshedAt = System.currentTimeMillis();
+                refreshing.set(false);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                logger.warn("can not fetch cluster state for routing", e);
+                refreshing.set(false);
+            }
+        });
+    }
+
+    /**
+     * Split the actions of a request by the node of their primary shard. Actions without a
+     * routable primary shard, or on more than one shard, are in the part without a node.
+     */
+    List<Part> split(ClusterState state, IngestRequest request) {
+        // like on a node, the planner resolves aliases and generates missing ids in place
+        IngestRoutingPlanner.Plan plan = routingPlanner.plan(state, request.requests(), false);
+        int size = request.numberOfActions();
+        ActionRequest[] actions = new ActionRequest[size];
+        int i = 0;
+        for (ActionRequest action : request.requests()) {
+            actions[i++] = action;
+        }
+        int[] nodes = new int[size];
+        BitSet assigned = new BitSet(size);
+        Map<String, Integer> nodeIndex = newHashMap();
+        List<DiscoveryNode> nodeList = newArrayList();
+        for (Map.Entry<ShardId, List<IngestItemRequest>> entry : plan.requestsByShard().entrySet()) {
+            DiscoveryNode node = primaryNode(state, entry.getKey());
+            int n = 0;
+            if (node != null) {
+                Integer index = nodeIndex.get(node.id());
+                if (index == null) {
+                    nodeList.add(node);
+                    index = nodeList.size();
+                    nodeIndex.put(node.id(), index);
+                }
+                n = index;
+            }
+            for (IngestItemRequest item : entry.getValue()) {
+                int pos = item.id();
+                if (assigned.get(pos) && nodes[pos] != n) {
+                    // on more than one shard
+                    nodes[pos] = 0;
+                } else {
+                    nodes[pos] = n;
+                    assigned.set(pos);
+                }
+            }
+        }
+        Part[] parts = new Part[nodeList.size() + 1];
+        List<Part> result = newArrayList();
+        for (int pos = 0; pos < size; pos++) {
+            int n = nodes[pos];
+            Part part = parts[n];
+            if (part == null) {
+                part = new Part(n > 0 ? nodeList.get(n - 1) : null);
+                parts[n] = part;
+                result.add(part);
+            }
+            part.add(pos, actions[pos]);
+        }
+        return result;
+    }
+
+    private void send(DiscoveryNode node, IngestRequest request, final ActionListener<IngestResponse> listener) {
+        transportService.sendRequest(node, IngestAction.NAME, request, new BaseTransportResponseHandler<IngestResponse>() {
+            @Override
+            public IngestResponse newInstance() {
+                return new IngestResponse();
+            }
+
+            @Override
+            public void handleResponse(IngestResponse response) {
+                listener.onResponse(response);
+            }
+
+            @Override
+            public void handleException(TransportException exp) {
+                listener.onFailure(exp);
+            }
+
+            @Override
+            public String executor() {
+                return ThreadPool.Names.SAME;
+            }
+        });
+    }
+
+    /**
+     * The node of the active primary shard, if the client is connected to it.
+     */
+    private DiscoveryNode primaryNode(ClusterState state, ShardId shardId) {
+        IndexRoutingTable indexRoutingTable = state.routingTable().index(shardId.index().name());
+        if (indexRoutingTable == null) {
+            return null;
+        }
+        IndexShardRoutingTable shardRoutingTable = indexRoutingTable.shard(shardId.id());
+        if (shardRoutingTable == null) {
+            return null;
+        }
+        ShardRouting primary = shardRoutingTable.primaryShard();
+        if (primary == null || !primary.active()) {
+            return null;
+        }
+        DiscoveryNode node = state.nodes().get(primary.currentNodeId());
+        return node != null && isConnected(node) ? node : null;
+    }
+
+    boolean isConnected(DiscoveryNode node) {
+        return transportService.nodeConnected(node);
+    }
+
+    private static HashFunction hashFunction(Settings settings) {
+        try {
+            return settings.getAsClass("cluster.routing.operation.hash.type", DjbHashFunction.class,
+                    "org.elasticsearch.cluster.routing.operation.hash.", "HashFunction").getConstructor().newInstance();
+        } catch (Exception e) {
+            throw new ElasticsearchIllegalStateException("can not create hash function", e);
+        }
+    }
+
+    /**
+     * The actions of a request for a node, with their positions in the request.
+     */
+    static class Part {
+
+        final DiscoveryNode node;
+
+        final ActionBuffer actions = new ActionBuffer();
+
+        int[] positions = new int[16];
+
+        int size;
+
+        Part(DiscoveryNode node) {
+            this.node = node;
+        }
+
+        void add(int pos, ActionRequest action) {
+            if (size == positions.length) {
+                int[] newPositions = new int[size * 2];
+                System.arraycopy(positions, 0, newPositions, 0, size);
+                positions = newPositions;
+            }
+            positions[size++] = pos;
+            actions.add(action, 0);
+        }
+    }
+
+    /**
+     * Merges the responses of the parts, with the positions of the request.
+     */
+    static class Merger {
+
+        private final ActionListener<IngestResponse> listener;
+
+        private final long startTime;
+
+        private final AtomicInteger counter;
+
+        private final List<IngestItemFailure> failure = newArrayList();
+
+        private final List<Integer> collapsed = newArrayList();
+
+        private int successSize;
+
+        private int respondedParts;
+
+        private Throwable firstFailure;
+
+        private int queueSize;
+
+        private long inFlightBytes;
+
+        Merger(int parts, long startTime, ActionListener<IngestResponse> listener) {
+            this.counter = new AtomicInteger(parts);
+            this.startTime = startTime;
+            this.listener = listener;
+        }
+
+        void onResponse(Part part, IngestResponse response) {
+            synchronized (this) {
+                respondedParts++;
+                successSize += response.successSize();
+                for (IngestItemFailure itemFailure : response.failure()) {
+                    failure.add(new IngestItemFailure(part.positions[itemFailure.pos()], itemFailure.message(), itemFailure.status()));
+                }
+                for (int pos : response.collapsed()) {
+                    collapsed.add(part.positions[pos]);
+                }
+                queueSize = Math.max(queueSize, response.queueSize());
+                inFlightBytes = Math.max(inFlightBytes, response.inFlightBytes());
+            }
+            countDown();
+        }
+
+        void onFailure(Part part, Throwable e) {
+            synchronized (this) {
+                if (firstFailure == null) {
+                    firstFailure = e;
+                }
+                String message = ExceptionsHelper.detailedMessage(e);
+                RestStatus status = IngestItemFailure.status(e);
+                for (int i = 0; i < part.size; i++) {
+                    failure.add(new IngestItemFailure(part.positions[i], message, status));
+                }
+            }
+            countDown();
+        }
+
+        private void countDown() {
+            if (counter.decrementAndGet() != 0) {
+                return;
+            }
+            IngestResponse response;
+            synchronized (this) {
+                if (respondedParts == 0) {
+                    listener.onFailure(firstFailure);
+                    return;
+                }
+                int[] positions = new int[collapsed.size()];
+                for (int i = 0; i < positions.length; i++) {
+                    positions[i] = collapsed.get(i);
+                }
+                response = new IngestResponse(successSize, failure, positions, System.currentTimeMillis() - startTime)
+                        .load(queueSize, inFlightBytes);
+            }
+            listener.onResponse(response);
+        }
+    }
+}
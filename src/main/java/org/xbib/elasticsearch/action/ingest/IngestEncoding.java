@@ -0,0 +1,98 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * The wire encoding of ingest requests and ingest shard requests.
+ * <p/>
+ * The plain encoding is written exactly as before the compact encodings existed, so plain requests
+ * are understood by nodes and clients of earlier versions. A compact encoding is announced by the
+ * {@link #HEADER} byte and the id of the encoding, written where an earlier version expects a value it
+ * does not accept: the replication type of an ingest request, and the action type of the first item of
+ * an ingest shard request. An ingest request that collapses duplicates has the header too, with the
+ * plain encoding and the flag, as earlier versions do not know of the option. An earlier version therefore fails the request with an error instead of
+ * reading it as an empty request. A node reads every encoding it knows of, whatever encoding the
+ * sender has chosen, and refuses encodings it does not know of.
+ */
+public enum IngestEncoding {
+
+    /**
+     * Every action is written in full by its own stream method
+     */
+    PLAIN((byte) 0),
+
+    /**
+     * Index, type, routing and parent are written once per request in a string table,
+     * positions are delta-encoded, the sources are concatenated
+     */
+    COMPACT((byte) 1),
+
+    /**
+     * Compact, with LZF compressed sources
+     */
+    COMPACT_LZF((byte) 2),
+
+    /**
+     * Compact, with deflate compressed sources
+     */
+    COMPACT_DEFLATE((byte) 3);
+
+    /**
+     * Announces an encoding other than plain. It is neither a replication type nor an action type.
+     */
+    static final byte HEADER = (byte) -1;
+
+    /**
+     * The flag of the header for collapsing duplicates. Unknown flags are refused.
+     */
+    static final byte COLLAPSE_DUPLICATES = 1;
+
+    private final byte id;
+
+    IngestEncoding(byte id) {
+        this.id = id;
+    }
+
+    public byte id() {
+        return id;
+    }
+
+    public static IngestEncoding fromId(byte id) {
+        switch (id) {
+            case 0:
+                return PLAIN;
+            case 1:
+                return COMPACT;
+            case 2:
+                return COMPACT_LZF;
+            case 3:
+                return COMPACT_DEFLATE;
+            default:
+                throw new ElasticsearchIllegalArgumentException("unknown ingest encoding [" + id + "]");
+        }
+    }
+
+    public static IngestEncoding fromString(String encoding) {
+        if ("plain".equals(encoding)) {
+            return PLAIN;
+        } else if ("compact".equals(encoding)) {
+            return COMPACT;
+        } else if ("compact_lzf".equals(encoding)) {
+            return COMPACT_LZF;
+        } else if ("compact_deflate".equals(encoding)) {
+            return COMPACT_DEFLATE;
+        }
+        throw new ElasticsearchIllegalArgumentException("no ingest encoding for [" + encoding + "]");
+    }
+
+    /**
+     * The encoding configured by <tt>action.ingest.encoding</tt>, default is plain.
+     *
+     * @param settings the settings
+     * @return the encoding
+     */
+    public static IngestEncoding fromSettings(Settings settings) {
+        return fromString(settings.get("action.ingest.encoding", "plain"));
+    }
+}
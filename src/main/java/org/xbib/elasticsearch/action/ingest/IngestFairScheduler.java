@@ -0,0 +1,328 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.xbib.metrics.MeterMetric;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Weighted fair scheduling of the actions of an ingest processor across indices.
+ * <p/>
+ * The actions are queued per index. A batch of an index is due when its actions reach the number
+ * of actions per request, or when its volume exceeds the maximum volume of the index, or of the
+ * processor. When a request can be sent, the due batch of the index with the least actions sent
+ * per weight is taken, so an index flooded with actions can not starve other indices. An index
+ * that becomes active starts at the least actions sent per weight of the active indices, it does
+ * not gain credit while it is idle. The number of requests in flight can be limited per index.
+ * Adding to the queue of an index blocks while it holds two due batches. The queue and the
+ * throughput meter of an index are removed after the index was idle for the idle timeout.
+ */
+public class IngestFairScheduler {
+
+    private final Map<String, Queue> queues = new LinkedHashMap<String, Queue>();
+
+    private final Map<String, Limits> limits = new LinkedHashMap<String, Limits>();
+
+    private final ConcurrentMap<String, MeterMetric> throughput = ConcurrentCollections.newConcurrentMap();
+
+    private boolean flush;
+
+    private long idleNanos = TimeUnit.MINUTES.toNanos(5);
+
+    /**
+     * Set the weight and limits of an index. An index without limits has weight 1, no limit
+     * of requests in flight, and the maximum volume of the processor.
+     *
+     * @param index          the index
+     * @param weight         the weight, at least 1
+     * @param maxConcurrency the maximum number of requests in flight for the index, 0 for no limit
+     * @param maxVolume      the maximum volume of a request for the index, or null
+     * @return this scheduler
+     */
+    public synchronized IngestFairScheduler limits(String index, int weight, int maxConcurrency, ByteSizeValue maxVolume) {
+        Limits l = new Limits(Math.max(1, weight), Math.max(0, maxConcurrency), maxVolume != null ? maxVolume.bytes() : 0L);
+        limits.put(index, l);
+        Queue queue = queues.get(index);
+        if (queue != null) {
+            queue.limits = l;
+        }
+        return this;
+    }
+
+    /**
+     * Set the time after which an idle index, without queued actions and requests in flight,
+     * is removed with its throughput meter, so indices that are no longer written, for example
+     * dated indices, do not accumulate. The default is five minutes.
+     *
+     * @param idleTimeout the idle timeout
+     * @return this scheduler
+     */
+    public synchronized IngestFairScheduler idleTimeout(TimeValue idleTimeout) {
+        this.idleNanos = idleTimeout.nanos();
+        return this;
+    }
+
+    /**
+     * Add an action to the queue of its index.
+     *
+     * @param request       the index or delete request
+     * @param bytes         the estimated size of the action in bytes
+     * @param actions       the number of actions per request, 0 for no limit
+     * @param maxBytes      the maximum volume of a request of the processor
+     * @param maxWaitMillis the maximum time to wait while the queue is full
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void add(ActionRequest request, int bytes, int actions, long maxBytes, long maxWaitMillis)
+            throws InterruptedException {
+        Queue queue = queue(indexOf(request));
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (queue.full(actions, maxBytes)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0L) {
+                throw new ElasticsearchTimeoutException("queue of index [" + queue.index + "] full, waited "
+                        + maxWaitMillis + " ms");
+            }
+            wait(remaining);
+        }
+        if (queue.pending.isEmpty() && queue.inFlight == 0) {
+            // an idle index does not keep its credit
+            double min = Double.MAX_VALUE;
+            for (Queue q : queues.values()) {
+                if (q != queue && (!q.pending.isEmpty() || q.inFlight > 0)) {
+                    min = Math.min(min, q.served);
+                }
+            }
+            if (min != Double.MAX_VALUE) {
+                queue.served = Math.max(queue.served, min);
+            }
+        }
+        queue.pending.add(request, bytes);
+    }
+
+    /**
+     * Take the next batch to send, the due batch of the least served index that may send,
+     * of equally served indices the one with the least requests in flight.
+     *
+     * @param actions  the number of actions per request, 0 for no limit
+     * @param maxBytes the maximum volume of a request of the processor
+     * @return the batch, or null
+     */
+    public synchronized Batch next(int actions, long maxBytes) {
+        Queue best = null;
+        boolean pending = false;
+        for (Queue queue : queues.values()) {
+            if (queue.pending.isEmpty()) {
+                continue;
+            }
+            pending = true;
+            int maxConcurrency = queue.limits.maxConcurrency;
+            if (maxConcurrency > 0 && queue.inFlight >= maxConcurrency) {
+                continue;
+            }
+            if (!flush && !queue.due(actions, maxBytes)) {
+                continue;
+            }
+            if (best == null || queue.served < best.served
+                    || (queue.served == best.served && queue.inFlight < best.inFlight)) {
+                best = queue;
+            }
+        }
+        if (!pending) {
+            flush = false;
+        }
+        if (best == null) {
+            return null;
+        }
+        // at most the number of actions and the volume
+        long volume = best.volume(maxBytes);
+        int n = volume > 0L ? best.pending.countWithin(actions > 0 ? actions : Integer.MAX_VALUE, volume) : actions;
+        ActionBuffer batch = n > 0 ? best.pending.take(n) : best.pending.takeAll();
+        best.inFlight++;
+        best.served += (double) batch.size() / best.limits.weight;
+        notifyAll();
+        return new Batch(best, batch);
+    }
+
+    /**
+     * A batch is answered.
+     *
+     * @param batch the batch
+     */
+    public synchronized void done(Batch batch) {
+        Queue queue = batch.queue;
+        queue.inFlight--;
+        queue.throughput.mark(batch.size);
+        long now = System.nanoTime();
+        if (queue.idle()) {
+            queue.idleSince = now;
+        }
+        removeIdle(now);
+        notifyAll();
+    }
+
+    /**
+     * Send all queued actions, also batches that are not due, as soon as possible.
+     */
+    public synchronized void flush() {
+        flush = true;
+    }
+
+    /**
+     * The number of queued actions.
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (Queue queue : queues.values()) {
+            size += queue.pending.size();
+        }
+        return size;
+    }
+
+    /**
+     * The throughput of answered actions by index.
+     */
+    public Map<String, MeterMetric> throughput() {
+        return Collections.unmodifiableMap(throughput);
+    }
+
+    /**
+     * Stop the throughput meters.
+     */
+    public synchronized void close() {
+        for (MeterMetric meter : throughput.values()) {
+            meter.stop();
+        }
+    }
+
+    /**
+     * Remove the queues and throughput meters of the indices idle for longer than the idle timeout.
+     */
+    private void removeIdle(long now) {
+        Iterator<Queue> it = queues.values().iterator();
+        while (it.hasNext()) {
+            Queue queue = it.next();
+            if (queue.idle() && now - queue.idleSince >= idleNanos) {
+                it.remove();
+                throughput.remove(queue.index);
+                queue.throughput.stop();
+            }
+        }
+    }
+
+    private Queue queue(String index) {
+        Queue queue = queues.get(index);
+        if (queue == null) {
+            Limits l = limits.get(index);
+            MeterMetric meter = new MeterMetric(5L, TimeUnit.SECONDS);
+            queue = new Queue(index, l != null ? l : Limits.DEFAULT, meter);
+            queues.put(index, queue);
+            throughput.put(index, meter);
+        }
+        return queue;
+    }
+
+    private static String indexOf(ActionRequest request) {
+        String index = null;
+        if (request instanceof IndexRequest) {
+            index = ((IndexRequest) request).index();
+        } else if (request instanceof DeleteRequest) {
+            index = ((DeleteRequest) request).index();
+        }
+        return index != null ? index : "";
+    }
+
+    /**
+     * A batch of actions of an index.
+     */
+    public static class Batch {
+
+        private final Queue queue;
+
+        private final ActionBuffer actions;
+
+        private final int size;
+
+        Batch(Queue queue, ActionBuffer actions) {
+            this.queue = queue;
+            this.actions = actions;
+            this.size = actions.size();
+        }
+
+        public String index() {
+            return queue.index;
+        }
+
+        public ActionBuffer actions() {
+            return actions;
+        }
+    }
+
+    private static class Limits {
+
+        static final Limits DEFAULT = new Limits(1, 0, 0L);
+
+        final int weight;
+
+        final int maxConcurrency;
+
+        final long maxVolume;
+
+        Limits(int weight, int maxConcurrency, long maxVolume) {
+            this.weight = weight;
+            this.maxConcurrency = maxConcurrency;
+            this.maxVolume = maxVolume;
+        }
+    }
+
+    private static class Queue {
+
+        final String index;
+
+        final ActionBuffer pending = new ActionBuffer();
+
+        final MeterMetric throughput;
+
+        Limits limits;
+
+        int inFlight;
+
+        double served;
+
+        long idleSince;
+
+        Queue(String index, Limits limits, MeterMetric throughput) {
+            this.index = index;
+            this.limits = limits;
+            this.throughput = throughput;
+        }
+
+        long volume(long maxBytes) {
+            return limits.maxVolume > 0L ? limits.maxVolume : maxBytes;
+        }
+
+        boolean due(int actions, long maxBytes) {
+            long volume = volume(maxBytes);
+            return (actions > 0 && pending.size() >= actions) || (volume > 0L && pending.sizeInBytes() > volume);
+        }
+
+        boolean idle() {
+            return pending.isEmpty() && inFlight == 0;
+        }
+
+        boolean full(int actions, long maxBytes) {
+            long volume = volume(maxBytes);
+            return (actions > 0 && pending.size() >= 2 * actions) || (volume > 0L && pending.sizeInBytes() > 2 * volume);
+        }
+    }
+}
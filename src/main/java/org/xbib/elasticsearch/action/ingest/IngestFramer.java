@@ -0,0 +1,626 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.UnsafeUtils;
+import org.elasticsearch.common.xcontent.XContent;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Framing engine for newline delimited ingest data.
+ * <p/>
+ * The stream separators are searched directly in the byte arrays backing the data reference,
+ * eight bytes at a time. Action lines in JSON are decoded by a small reusable parser which falls back
+ * to a regular {@link org.elasticsearch.common.xcontent.XContentParser} for anything it does not understand.
+ * Document sources are handed over as slices of the data, without copying.
+ * <p/>
+ * A framer is not thread safe.
+ */
+public class IngestFramer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final long ONES = 0x0101010101010101L;
+
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private static final byte[] INDEX_FIELD = bytes("_index");
+    private static final byte[] TYPE_FIELD = bytes("_type");
+    private static final byte[] ID_FIELD = bytes("_id");
+    private static final byte[] ROUTING_FIELD = bytes("routing");
+    private static final byte[] PARENT_FIELD = bytes("parent");
+    private static final byte[] TIMESTAMP_FIELD = bytes("timestamp");
+    private static final byte[] TTL_FIELD = bytes("ttl");
+    private static final byte[] OP_TYPE_FIELD = bytes("op_type");
+    private static final byte[] OP_TYPE_CAMEL_FIELD = bytes("opType");
+    private static final byte[] VERSION_FIELD = bytes("version");
+    private static final byte[] VERSION_TYPE_FIELD = bytes("version_type");
+    private static final byte[] VERSION_TYPE_CAMEL_FIELD = bytes("versionType");
+
+    private final BytesReference data;
+
+    private final XContent xContent;
+
+    private final byte marker;
+
+    private final boolean json;
+
+    private final ActionLine line = new ActionLine();
+
+    /**
+     * The arrays backing the data, or null if the data is not backed by arrays
+     */
+    private byte[][] arrays;
+
+    private int[] offsets;
+
+    /**
+     * Logical start position of each array in the data
+     */
+    private int[] starts;
+
+    private int segment;
+
+    private byte[] scratch = new byte[256];
+
+    public IngestFramer(BytesReference data) {
+        this.data = data;
+        this.xContent = XContentFactory.xContent(data);
+        this.marker = xContent.streamSeparator();
+        this.json = xContent.type() == XContentType.JSON;
+        segments(data);
+    }
+
+    /**
+     * Frame the data and add the actions to an ingest request.
+     *
+     * @param request       the ingest request
+     * @param contentUnsafe if content is unsafe
+     * @param defaultIndex  default index
+     * @param defaultType   default type
+     * @throws IOException if an action line can not be parsed
+     */
+    public void frame(IngestRequest request, boolean contentUnsafe,
+                      @Nullable String defaultIndex, @Nullable String defaultType) throws IOException {
+        int length = data.length();
+        int from = 0;
+        segment = 0;
+        while (true) {
+            int nextMarker = indexOf(from, length);
+            if (nextMarker == -1) {
+                break;
+            }
+            line.reset(defaultIndex, defaultType);
+            boolean parsed = parseActionLine(from, nextMarker - from);
+            // move pointers
+            from = nextMarker + 1;
+            if (!parsed) {
+                // empty line
+                continue;
+            }
+            if (line.action == ActionLine.DELETE) {
+                request.add(new DeleteRequest(line.index, line.type, line.id).parent(line.parent)
+                        .version(line.version).versionType(line.versionType).routing(line.routing));
+            } else {
+                nextMarker = indexOf(from, length);
+                if (nextMarker == -1) {
+                    break;
+                }
+                // order is important, we set parent after routing, so routing will be set to parent if not set explicitly
+                // we use internalAdd so we don't fork here, this allows us not to copy over the big byte array to small chunks
+                // of index request. All index requests are still unsafe if applicable.
+                if (line.action == ActionLine.INDEX) {
+                    IndexRequest indexRequest = newIndexRequest(data.slice(from, nextMarker - from), contentUnsafe);
+                    if (line.opType != null) {
+                        indexRequest.create("create".equals(line.opType));
+                    }
+                    request.internalAdd(indexRequest);
+                } else if (line.action == ActionLine.CREATE) {
+                    request.internalAdd(newIndexRequest(data.slice(from, nextMarker - from), contentUnsafe).create(true));
+                }
+                // move pointers
+                from = nextMarker + 1;
+            }
+        }
+    }
+
+    private IndexRequest newIndexRequest(BytesReference source, boolean contentUnsafe) {
+        return new IndexRequest(line.index, line.type, line.id).routing(line.routing).parent(line.parent)
+                .timestamp(line.timestamp).ttl(line.ttl).version(line.version).versionType(line.versionType)
+                .source(source, contentUnsafe);
+    }
+
+    /**
+     * Find the next stream separator.
+     *
+     * @param from   the position to start from
+     * @param length the length of the data
+     * @return the position of the separator, or -1 if there is none
+     */
+    int indexOf(int from, int length) {
+        if (arrays == null) {
+            for (int i = from; i < length; i++) {
+                if (data.get(i) == marker) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        while (segment + 1 < starts.length && starts[segment + 1] <= from) {
+            segment++;
+        }
+        for (int s = segment; s < arrays.length; s++) {
+            int start = starts[s];
+            int end = s + 1 < starts.length ? starts[s + 1] : length;
+            int pos = indexOf(arrays[s], offsets[s] + Math.max(from, start) - start, offsets[s] + end - start, marker);
+            if (pos != -1) {
+                segment = s;
+                return start + pos - offsets[s];
+            }
+        }
+        segment = arrays.length - 1;
+        return -1;
+    }
+
+    /**
+     * Search a byte in an array range, word by word.
+     */
+    static int indexOf(byte[] array, int from, int to, byte marker) {
+        long pattern = (marker & 0xffL) * ONES;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long x = UnsafeUtils.readLongLE(array, i) ^ pattern;
+            long found = (x - ONES) & ~x & HIGHS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (array[i] == marker) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void segments(BytesReference data) {
+        if (data.hasArray()) {
+            arrays = new byte[][]{data.array()};
+            offsets = new int[]{data.arrayOffset()};
+            starts = new int[]{0};
+            return;
+        }
+        ByteBuffer[] buffers = data.toChannelBuffer().toByteBuffers();
+        byte[][] a = new byte[buffers.length][];
+        int[] o = new int[buffers.length];
+        int[] s = new int[buffers.length];
+        int pos = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            ByteBuffer buffer = buffers[i];
+            if (!buffer.hasArray()) {
+                return;
+            }
+            a[i] = buffer.array();
+            o[i] = buffer.arrayOffset() + buffer.position();
+            s[i] = pos;
+            pos += buffer.remaining();
+        }
+        if (pos != data.length() || buffers.length == 0) {
+            return;
+        }
+        arrays = a;
+        offsets = o;
+        starts = s;
+    }
+
+    /**
+     * Parse an action line.
+     *
+     * @return false if the line is empty
+     */
+    private boolean parseActionLine(int from, int length) throws IOException {
+        if (json && arrays != null) {
+            byte[] array;
+            int offset;
+            int s = segment;
+            while (s > 0 && starts[s] > from) {
+                s--;
+            }
+            int end = s + 1 < starts.length ? starts[s + 1] : data.length();
+            if (from + length <= end) {
+                array = arrays[s];
+                offset = offsets[s] + from - starts[s];
+            } else {
+                // the line spans more than one array
+                if (scratch.length < length) {
+                    scratch = new byte[length];
+                }
+                for (int i = 0; i < length; i++) {
+                    scratch[i] = data.get(from + i);
+                }
+                array = scratch;
+                offset = 0;
+            }
+            int result = line.parse(array, offset, offset + length);
+            if (result != ActionLine.UNKNOWN) {
+                return result == ActionLine.PARSED;
+            }
+            line.reset(line.defaultIndex, line.defaultType);
+        }
+        return parseActionLine(xContent.createParser(data.slice(from, length)));
+    }
+
+    private boolean parseActionLine(XContentParser parser) throws IOException {
+        try {
+            // Move to START_OBJECT
+            XContentParser.Token token = parser.nextToken();
+            if (token == null) {
+                return false;
+            }
+            assert token == XContentParser.Token.START_OBJECT;
+            // Move to FIELD_NAME, that's the action
+            token = parser.nextToken();
+            assert token == XContentParser.Token.FIELD_NAME;
+            line.action(parser.currentName());
+            // at this stage, next token can either be END_OBJECT (and use default index and type, with auto generated id)
+            // or START_OBJECT which will have another set of parameters
+            String currentFieldName = null;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if (token.isValue()) {
+                    if ("_index".equals(currentFieldName)) {
+                        line.index = parser.text();
+                    } else if ("_type".equals(currentFieldName)) {
+                        line.type = parser.text();
+                    } else if ("_id".equals(currentFieldName)) {
+                        line.id = parser.text();
+                    } else if ("_routing".equals(currentFieldName) || "routing".equals(currentFieldName)) {
+                        line.routing = parser.text();
+                    } else if ("_parent".equals(currentFieldName) || "parent".equals(currentFieldName)) {
+                        line.parent = parser.text();
+                    } else if ("_timestamp".equals(currentFieldName) || "timestamp".equals(currentFieldName)) {
+                        line.timestamp = parser.text();
+                    } else if ("_ttl".equals(currentFieldName) || "ttl".equals(currentFieldName)) {
+                        if (parser.currentToken() == XContentParser.Token.VALUE_STRING) {
+                            line.ttl = TimeValue.parseTimeValue(parser.text(), null).millis();
+                        } else {
+                            line.ttl = parser.longValue();
+                        }
+                    } else if ("op_type".equals(currentFieldName) || "opType".equals(currentFieldName)) {
+                        line.opType = parser.text();
+                    } else if ("_version".equals(currentFieldName) || "version".equals(currentFieldName)) {
+                        line.version = parser.longValue();
+                    } else if ("_version_type".equals(currentFieldName) || "_versionType".equals(currentFieldName) || "version_type".equals(currentFieldName) || "versionType".equals(currentFieldName)) {
+                        line.versionType = VersionType.fromString(parser.text());
+                    }
+                }
+            }
+            return true;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF8);
+    }
+
+    /**
+     * The parsed action line. The parser understands flat JSON action lines with string and integer values
+     * and gives up on everything else, e.g. escape sequences.
+     */
+    static class ActionLine {
+
+        static final int OTHER = 0;
+        static final int INDEX = 1;
+        static final int CREATE = 2;
+        static final int DELETE = 3;
+
+        static final int PARSED = 0;
+        static final int EMPTY = 1;
+        static final int UNKNOWN = 2;
+
+        private static final byte[] INDEX_ACTION = bytes("index");
+        private static final byte[] CREATE_ACTION = bytes("create");
+        private static final byte[] DELETE_ACTION = bytes("delete");
+
+        // repeating values are decoded only once
+        private final CachedString indexCache = new CachedString();
+        private final CachedString typeCache = new CachedString();
+        private final CachedString routingCache = new CachedString();
+        private final CachedString parentCache = new CachedString();
+        private final CachedString opTypeCache = new CachedString();
+
+        String defaultIndex;
+        String defaultType;
+
+        int action;
+        String index;
+        String type;
+        String id;
+        String routing;
+        String parent;
+        String timestamp;
+        Long ttl;
+        String opType;
+        long version;
+        VersionType versionType;
+
+        // parser state
+        private byte[] buf;
+        private int pos;
+        private int end;
+        private int tokenStart;
+        private int tokenEnd;
+        private boolean tokenIsString;
+
+        void reset(String defaultIndex, String defaultType) {
+            this.defaultIndex = defaultIndex;
+            this.defaultType = defaultType;
+            this.action = OTHER;
+            this.index = defaultIndex;
+            this.type = defaultType;
+            this.id = null;
+            this.routing = null;
+            this.parent = null;
+            this.timestamp = null;
+            this.ttl = null;
+            this.opType = null;
+            this.version = 0L;
+            this.versionType = VersionType.INTERNAL;
+        }
+
+        void action(String name) {
+            if ("index".equals(name)) {
+                action = INDEX;
+            } else if ("create".equals(name)) {
+                action = CREATE;
+            } else if ("delete".equals(name)) {
+                action = DELETE;
+            } else {
+                action = OTHER;
+            }
+        }
+
+        int parse(byte[] buf, int from, int to) {
+            this.buf = buf;
+            this.pos = from;
+            this.end = to;
+            try {
+                skipWhitespace();
+                if (pos == end) {
+                    return EMPTY;
+                }
+                if (!expect('{') || !string()) {
+                    return UNKNOWN;
+                }
+                if (equalsToken(INDEX_ACTION)) {
+                    action = INDEX;
+                } else if (equalsToken(CREATE_ACTION)) {
+                    action = CREATE;
+                } else if (equalsToken(DELETE_ACTION)) {
+                    action = DELETE;
+                } else {
+                    action = OTHER;
+                }
+                if (!expect(':') || !expect('{')) {
+                    return UNKNOWN;
+                }
+                skipWhitespace();
+                if (pos < end && buf[pos] == '}') {
+                    pos++;
+                } else {
+                    while (true) {
+                        if (!string()) {
+                            return UNKNOWN;
+                        }
+                        int nameStart = tokenStart;
+                        int nameEnd = tokenEnd;
+                        if (!expect(':') || !value() || !field(nameStart, nameEnd)) {
+                            return UNKNOWN;
+                        }
+                        skipWhitespace();
+                        if (pos < end && buf[pos] == ',') {
+                            pos++;
+                        } else if (pos < end && buf[pos] == '}') {
+                            pos++;
+                            break;
+                        } else {
+                            return UNKNOWN;
+                        }
+                    }
+                }
+                if (!expect('}')) {
+                    return UNKNOWN;
+                }
+                skipWhitespace();
+                return pos == end ? PARSED : UNKNOWN;
+            } catch (IllegalArgumentException e) {
+                return UNKNOWN;
+            } finally {
+                this.buf = null;
+            }
+        }
+
+        private boolean field(int nameStart, int nameEnd) {
+            // accept the names with and without leading underscore, like the XContent parser does
+            int start = nameStart;
+            if (nameEnd > nameStart && buf[nameStart] == '_') {
+                start++;
+            }
+            if (equalsRange(INDEX_FIELD, nameStart, nameEnd)) {
+                index = indexCache.get(buf, tokenStart, tokenEnd);
+            } else if (equalsRange(TYPE_FIELD, nameStart, nameEnd)) {
+                type = typeCache.get(buf, tokenStart, tokenEnd);
+            } else if (equalsRange(ID_FIELD, nameStart, nameEnd)) {
+                id = new String(buf, tokenStart, tokenEnd - tokenStart, UTF8);
+            } else if (equalsRange(ROUTING_FIELD, start, nameEnd)) {
+                routing = routingCache.get(buf, tokenStart, tokenEnd);
+            } else if (equalsRange(PARENT_FIELD, start, nameEnd)) {
+                parent = parentCache.get(buf, tokenStart, tokenEnd);
+            } else if (equalsRange(TIMESTAMP_FIELD, start, nameEnd)) {
+                timestamp = new String(buf, tokenStart, tokenEnd - tokenStart, UTF8);
+            } else if (equalsRange(TTL_FIELD, start, nameEnd)) {
+                if (tokenIsString) {
+                    ttl = TimeValue.parseTimeValue(new String(buf, tokenStart, tokenEnd - tokenStart, UTF8), null).millis();
+                } else {
+                    ttl = longValue();
+                }
+            } else if (equalsRange(OP_TYPE_FIELD, nameStart, nameEnd) || equalsRange(OP_TYPE_CAMEL_FIELD, nameStart, nameEnd)) {
+                opType = opTypeCache.get(buf, tokenStart, tokenEnd);
+            } else if (equalsRange(VERSION_FIELD, start, nameEnd)) {
+                version = longValue();
+            } else if (equalsRange(VERSION_TYPE_FIELD, start, nameEnd) || equalsRange(VERSION_TYPE_CAMEL_FIELD, start, nameEnd)) {
+                versionType = VersionType.fromString(new String(buf, tokenStart, tokenEnd - tokenStart, UTF8));
+            }
+            return true;
+        }
+
+        private long longValue() {
+            int i = tokenStart;
+            boolean negative = false;
+            if (i < tokenEnd && buf[i] == '-') {
+                negative = true;
+                i++;
+            }
+            if (i == tokenEnd || tokenEnd - i > 18) {
+                throw new IllegalArgumentException();
+            }
+            long value = 0L;
+            for (; i < tokenEnd; i++) {
+                int digit = buf[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IllegalArgumentException();
+                }
+                value = value * 10 + digit;
+            }
+            return negative ? -value : value;
+        }
+
+        private boolean expect(char c) {
+            skipWhitespace();
+            if (pos < end && buf[pos] == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean string() {
+            skipWhitespace();
+            if (pos >= end || buf[pos] != '"') {
+                return false;
+            }
+            int i = ++pos;
+            while (i < end) {
+                byte b = buf[i];
+                if (b == '"') {
+                    tokenStart = pos;
+                    tokenEnd = i;
+                    tokenIsString = true;
+                    pos = i + 1;
+                    return true;
+                }
+                if (b == '\\') {
+                    // escapes are left to the XContent parser
+                    return false;
+                }
+                i++;
+            }
+            return false;
+        }
+
+        private boolean value() {
+            skipWhitespace();
+            if (pos >= end) {
+                return false;
+            }
+            if (buf[pos] == '"') {
+                return string();
+            }
+            int i = pos;
+            if (buf[i] == '-') {
+                i++;
+            }
+            while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+                i++;
+            }
+            if (i == pos) {
+                // booleans, nulls, objects and arrays are left to the XContent parser
+                return false;
+            }
+            if (i < end && (buf[i] == '.' || buf[i] == 'e' || buf[i] == 'E')) {
+                return false;
+            }
+            tokenStart = pos;
+            tokenEnd = i;
+            tokenIsString = false;
+            pos = i;
+            return true;
+        }
+
+        private void skipWhitespace() {
+            while (pos < end) {
+                byte b = buf[pos];
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        private boolean equalsToken(byte[] name) {
+            return equalsRange(name, tokenStart, tokenEnd);
+        }
+
+        private boolean equalsRange(byte[] name, int from, int to) {
+            if (to - from != name.length) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (buf[from + i] != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Remembers the last decoded string, for values that repeat from line to line.
+     */
+    static class CachedString {
+
+        private byte[] bytes = new byte[0];
+
+        private String value;
+
+        String get(byte[] buf, int from, int to) {
+            int length = to - from;
+            if (value != null && bytes.length == length) {
+                int i = 0;
+                while (i < length && bytes[i] == buf[from + i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return value;
+                }
+            }
+            bytes = new byte[length];
+            System.arraycopy(buf, from, bytes, 0, length);
+            value = new String(buf, from, length, UTF8);
+            return value;
+        }
+    }
+}
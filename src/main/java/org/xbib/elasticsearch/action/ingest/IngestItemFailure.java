@@ -1,14 +1,26 @@
 package org.xbib.elasticsearch.action.ingest;
 
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.ConnectTransportException;
+
 public class IngestItemFailure {
 
     private int pos;
 
     private String message;
 
+    private RestStatus status;
+
     public IngestItemFailure(int pos, String message) {
+        this(pos, message, RestStatus.INTERNAL_SERVER_ERROR);
+    }
+
+    public IngestItemFailure(int pos, String message, RestStatus status) {
         this.pos = pos;
         this.message = message;
+        this.status = status;
     }
 
     public int pos() {
@@ -18,4 +30,26 @@ public class IngestItemFailure {
     public String message() {
         return message;
     }
+
+    public RestStatus status() {
+        return status;
+    }
+
+    /**
+     * The status of a failure. A lost connection counts as an unavailable service,
+     * a timeout as a request timeout.
+     *
+     * @param failure the failure
+     * @return the status
+     */
+    public static RestStatus status(Throwable failure) {
+        Throwable cause = ExceptionsHelper.unwrapCause(failure);
+        if (cause instanceof ConnectTransportException) {
+            return RestStatus.SERVICE_UNAVAILABLE;
+        }
+        if (cause instanceof ElasticsearchTimeoutException) {
+            return RestStatus.REQUEST_TIMEOUT;
+        }
+        return ExceptionsHelper.status(cause);
+    }
 }
@@ -1,5 +1,6 @@
 package org.xbib.elasticsearch.action.ingest;
 
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
@@ -37,14 +38,29 @@ public class IngestItemRequest implements Streamable {
         return item;
     }
 
+    /**
+     * Read an item whose id and action type are already read.
+     */
+    static IngestItemRequest readBulkItem(int id, byte type, StreamInput in) throws IOException {
+        IngestItemRequest item = new IngestItemRequest();
+        item.readFrom(id, type, in);
+        return item;
+    }
+
     @Override
     public void readFrom(StreamInput in) throws IOException {
-        id = in.readVInt();
-        byte type = in.readByte();
+        int id = in.readVInt();
+        readFrom(id, in.readByte(), in);
+    }
+
+    private void readFrom(int id, byte type, StreamInput in) throws IOException {
+        this.id = id;
         if (type == 0) {
             request = new IndexRequest();
         } else if (type == 1) {
             request = new DeleteRequest();
+        } else {
+            throw new ElasticsearchIllegalArgumentException("unknown action type [" + type + "]");
         }
         request.readFrom(in);
     }
@@ -0,0 +1,154 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+
+/**
+ * An ordered lane of actions. At most one request of a lane is in flight, and the next request
+ * takes the actions in the order they were added, so the actions of a lane are executed in order.
+ * <p/>
+ * A batch is due when the pending actions reach the number of actions per request, or, without
+ * such a number, when their size exceeds the maximum volume. While a request is in flight and a
+ * batch is due, adding to the lane blocks. Failed actions of a request that are retried keep the
+ * lane busy until their retry is answered, so they are not overtaken by later actions of the lane.
+ */
+public class IngestLane {
+
+    private final ActionBuffer pending = new ActionBuffer();
+
+    private boolean busy;
+
+    private boolean flush;
+
+    private int handedOver;
+
+    /**
+     * The lane of an action, by index and routing or id. Actions with neither routing nor id have
+     * no order to keep, they are spread by the given sequence number.
+     *
+     * @param request  the index or delete request
+     * @param lanes    the number of lanes
+     * @param sequence a sequence number
+     * @return the lane
+     */
+    public static int laneOf(ActionRequest request, int lanes, int sequence) {
+        String index;
+        String key;
+        if (request instanceof IndexRequest) {
+            IndexRequest indexRequest = (IndexRequest) request;
+            index = indexRequest.index();
+            key = indexRequest.routing() != null ? indexRequest.routing() : indexRequest.id();
+        } else if (request instanceof DeleteRequest) {
+            DeleteRequest deleteRequest = (DeleteRequest) request;
+            index = deleteRequest.index();
+            key = deleteRequest.routing() != null ? deleteRequest.routing() : deleteRequest.id();
+        } else {
+            key = null;
+            index = null;
+        }
+        int hash = key != null ? 31 * (index != null ? index.hashCode() : 0) + key.hashCode() : sequence;
+        return (hash & 0x7fffffff) % lanes;
+    }
+
+    /**
+     * Add an action.
+     *
+     * @param request       the action request
+     * @param bytes         the estimated size of the action in bytes
+     * @param actions       the number of actions per request, 0 for no limit
+     * @param maxBytes      the maximum volume of a request if there is no number of actions
+     * @param maxWaitMillis the maximum time to wait while a request is in flight and a batch is due
+     * @return a batch to send, the lane is then busy, or null
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized ActionBuffer add(ActionRequest request, int bytes, int actions, long maxBytes,
+                                         long maxWaitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        while (busy && due(actions, maxBytes)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0L) {
+                throw new ElasticsearchTimeoutException("ordered lane busy, waited " + maxWaitMillis + " ms");
+            }
+            wait(remaining);
+        }
+        pending.add(request, bytes);
+        if (!busy && due(actions, maxBytes)) {
+            busy = true;
+            return take(actions);
+        }
+        return null;
+    }
+
+    /**
+     * Hand the lane over from the request in flight to the retry of its failed actions. The lane
+     * stays busy until the retry is done, the request and the retry are each done once.
+     */
+    public synchronized void handOver() {
+        handedOver++;
+    }
+
+    /**
+     * The request in flight is done.
+     *
+     * @param actions  the number of actions per request, 0 for no limit
+     * @param maxBytes the maximum volume of a request if there is no number of actions
+     * @return the next batch to send, the lane is then busy, or null
+     */
+    public synchronized ActionBuffer done(int actions, long maxBytes) {
+        if (handedOver > 0) {
+            // a retry of the lane is pending or in flight
+            handedOver--;
+            return null;
+        }
+        busy = false;
+        notifyAll();
+        if (pending.isEmpty()) {
+            flush = false;
+            return null;
+        }
+        if (flush || due(actions, maxBytes)) {
+            busy = true;
+            return take(actions);
+        }
+        return null;
+    }
+
+    /**
+     * Send the pending actions now if no request is in flight, otherwise after the request in flight.
+     *
+     * @param actions the number of actions per request, 0 for no limit
+     * @return a batch to send, the lane is then busy, or null
+     */
+    public synchronized ActionBuffer flush(int actions) {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        flush = true;
+        if (busy) {
+            return null;
+        }
+        busy = true;
+        return take(actions);
+    }
+
+    /**
+     * The number of pending actions.
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    private boolean due(int actions, long maxBytes) {
+        return actions > 0 ? pending.size() >= actions : maxBytes > 0L && pending.sizeInBytes() > maxBytes;
+    }
+
+    private ActionBuffer take(int actions) {
+        ActionBuffer batch = actions > 0 ? pending.take(actions) : pending.takeAll();
+        if (pending.isEmpty()) {
+            flush = false;
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,117 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A budget for the estimated bytes of the actions buffered and in flight in an ingest processor.
+ * <p/>
+ * Acquiring bytes beyond the budget blocks until requests in flight are answered and their bytes
+ * are released, or until the maximum waiting time is over. Bytes are always granted if none are
+ * acquired, so an action larger than the budget can not block forever.
+ */
+public class IngestMemoryBudget {
+
+    private final long maxSizeInBytes;
+
+    private final AtomicLong sizeInBytes = new AtomicLong();
+
+    private final Object lock = new Object();
+
+    private volatile int waiters;
+
+    public IngestMemoryBudget(ByteSizeValue maxSize) {
+        this.maxSizeInBytes = maxSize.bytes();
+    }
+
+    /**
+     * The estimated bytes acquired.
+     */
+    public long sizeInBytes() {
+        return sizeInBytes.get();
+    }
+
+    public long maxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    /**
+     * Acquire bytes if they are within the budget, without blocking.
+     *
+     * @param bytes the estimated bytes
+     * @return true if the bytes are acquired
+     */
+    public boolean tryAcquire(long bytes) {
+        while (true) {
+            long current = sizeInBytes.get();
+            if (current > 0L && current + bytes > maxSizeInBytes) {
+                return false;
+            }
+            if (sizeInBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Acquire bytes, wait until they are within the budget.
+     *
+     * @param bytes   the estimated bytes
+     * @param maxWait the maximum waiting time
+     * @return the time blocked in nanoseconds, 0 if not blocked
+     * @throws ElasticsearchTimeoutException if the bytes are not within the budget after the maximum waiting time
+     * @throws InterruptedException          if interrupted while waiting
+     */
+    public long acquire(long bytes, TimeValue maxWait) throws InterruptedException {
+        if (tryAcquire(bytes)) {
+            return 0L;
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWait.millis());
+        synchronized (lock) {
+            waiters++;
+            try {
+                while (!tryAcquire(bytes)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        throw new ElasticsearchTimeoutException("memory budget of " + maxSizeInBytes
+                                + " bytes exceeded, " + sizeInBytes.get() + " bytes buffered and in flight, waited "
+                                + maxWait + " for " + bytes + " bytes");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+            } finally {
+                waiters--;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Acquire bytes without checking the budget, for bytes already buffered that are handed
+     * over to another request before they are released.
+     *
+     * @param bytes the estimated bytes
+     */
+    public void forceAcquire(long bytes) {
+        sizeInBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Release acquired bytes and wake up the waiting threads.
+     *
+     * @param bytes the estimated bytes
+     */
+    public void release(long bytes) {
+        sizeInBytes.addAndGet(-bytes);
+        if (waiters > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportRequest;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Lists.newArrayListWithCapacity;
+
+/**
+ * The shard requests of an ingest request for all primary shards on a node
+ */
+public class IngestNodeRequest extends TransportRequest {
+
+    private List<IngestShardRequest> shardRequests;
+
+    public IngestNodeRequest() {
+        this.shardRequests = newArrayList();
+    }
+
+    public IngestNodeRequest add(IngestShardRequest shardRequest) {
+        shardRequests.add(shardRequest);
+        return this;
+    }
+
+    public List<IngestShardRequest> shardRequests() {
+        return shardRequests;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int size = in.readVInt();
+        shardRequests = newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            IngestShardRequest shardRequest = new IngestShardRequest();
+            shardRequest.readFrom(in);
+            shardRequests.add(shardRequest);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(shardRequests.size());
+        for (IngestShardRequest shardRequest : shardRequests) {
+            shardRequest.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.TransportResponse;
+
+import java.io.IOException;
+
+/**
+ * The responses of the shard requests of a node ingest request, in the order of the shard requests.
+ * A shard request that failed as a whole has no response but a failure message and status.
+ */
+public class IngestNodeResponse extends TransportResponse {
+
+    private IngestShardResponse[] responses;
+
+    private String[] failures;
+
+    private RestStatus[] statuses;
+
+    public IngestNodeResponse() {
+    }
+
+    public IngestNodeResponse(int size) {
+        this.responses = new IngestShardResponse[size];
+        this.failures = new String[size];
+        this.statuses = new RestStatus[size];
+    }
+
+    public int size() {
+        return responses.length;
+    }
+
+    public IngestShardResponse response(int i) {
+        return responses[i];
+    }
+
+    public String failure(int i) {
+        return failures[i];
+    }
+
+    public RestStatus status(int i) {
+        return statuses[i];
+    }
+
+    void setResponse(int i, IngestShardResponse response) {
+        responses[i] = response;
+    }
+
+    void setFailure(int i, String failure, RestStatus status) {
+        failures[i] = failure;
+        statuses[i] = status;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int size = in.readVInt();
+        responses = new IngestShardResponse[size];
+        failures = new String[size];
+        statuses = new RestStatus[size];
+        for (int i = 0; i < size; i++) {
+            if (in.readBoolean()) {
+                responses[i] = new IngestShardResponse();
+                responses[i].readFrom(in);
+            } else {
+                failures[i] = in.readString();
+                statuses[i] = RestStatus.readFrom(in);
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(responses.length);
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i] != null) {
+                out.writeBoolean(true);
+                responses[i].writeTo(out);
+            } else {
+                out.writeBoolean(false);
+                out.writeString(failures[i] != null ? failures[i] : "unknown failure");
+                RestStatus.writeTo(out, statuses[i] != null ? statuses[i] : RestStatus.INTERNAL_SERVER_ERROR);
+            }
+        }
+    }
+}
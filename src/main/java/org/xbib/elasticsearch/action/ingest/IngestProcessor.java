@@ -1,11 +1,16 @@
 package org.xbib.elasticsearch.action.ingest;
 
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ListenableActionFuture;
 import org.elasticsearch.action.WriteConsistencyLevel;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.PlainListenableActionFuture;
 import org.elasticsearch.action.support.replication.ReplicationType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.Nullable;
@@ -13,13 +18,34 @@ import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Lists.newLinkedList;
+
 public class IngestProcessor {
 
+    private static final ElasticsearchIllegalStateException DROPPED =
+            new ElasticsearchIllegalStateException("no listener, actions dropped");
+
+    private static final long RETRY_POLL_MILLIS = 10L;
+
     private final Client client;
 
     private final int concurrency;
@@ -36,6 +62,54 @@ public class IngestProcessor {
 
     private final IngestRequest ingestRequest;
 
+    private final AtomicLong oldestActionNanos = new AtomicLong();
+
+    private volatile StripedActionBuffer staging;
+
+    private volatile IngestMemoryBudget budget;
+
+    private volatile TimeValue budgetWait;
+
+    private volatile IngestSpool spool;
+
+    private volatile IngestClientRouter router;
+
+    private volatile IngestClientPool clientPool;
+
+    private volatile IngestLane[] lanes;
+
+    private volatile IngestRetryPolicy retryPolicy;
+
+    private volatile IngestFairScheduler fairScheduler;
+
+    private final ConcurrentMap<IngestRequest, IngestFairScheduler.Batch> fairBatches =
+            ConcurrentCollections.newConcurrentMap();
+
+    private final ConcurrentMap<ActionRequest, PlainListenableActionFuture<ActionRequest>> acks =
+            ConcurrentCollections.newConcurrentMap();
+
+    private final Set<PendingTask> pendingTasks = ConcurrentCollections.newConcurrentSet();
+
+    private final AtomicInteger laneSequence = new AtomicInteger();
+
+    private final Object permitLock = new Object();
+
+    private int permits;
+
+    private int withheldPermits;
+
+    private int inFlight;
+
+    private IngestAdaptiveController adaptive;
+
+    private volatile long throttledUntil;
+
+    private ScheduledThreadPoolExecutor scheduler;
+
+    private ScheduledFuture<?> flushTask;
+
+    private volatile TimeValue maxLinger;
+
     private Listener listener;
 
     private volatile boolean closed = false;
@@ -54,6 +128,7 @@ public class IngestProcessor {
                 new TimeValue(Math.max(waitForResponses.millis(), 1000), TimeUnit.MILLISECONDS) :
                 new TimeValue(60, TimeUnit.SECONDS);
         this.semaphore = new Semaphore(this.concurrency);
+        this.permits = this.concurrency;
         this.bulkId = new AtomicLong(0L);
         this.ingestRequest = new IngestRequest();
     }
@@ -78,6 +153,277 @@ public class IngestProcessor {
         return this;
     }
 
+    public IngestProcessor collapseDuplicates(boolean collapseDuplicates) {
+        ingestRequest.collapseDuplicates(collapseDuplicates);
+        return this;
+    }
+
+    public IngestProcessor encoding(IngestEncoding encoding) {
+        ingestRequest.encoding(encoding);
+        return this;
+    }
+
+    /**
+     * Stage added actions in buffers striped by thread, so that concurrent producers do not
+     * contend for the lock of this processor on every add. A staging buffer is handed to the
+     * pending request when it holds a batch of actions, at most the number of actions per request.
+     * Flushing takes the actions of all staging buffers.
+     *
+     * @param stripes the number of staging buffers, for example the number of processors,
+     *                the default is 0 to add to the pending request directly
+     * @return this processor
+     */
+    public synchronized IngestProcessor staging(int stripes) {
+        unstage();
+        this.staging = stripes > 0 ? new StripedActionBuffer(stripes) : null;
+        return this;
+    }
+
+    /**
+     * Bound the estimated bytes of the actions buffered and in flight, see {@link IngestMemoryBudget}.
+     * An add that exceeds the budget flushes the pending actions and blocks until responses
+     * release enough bytes. The time blocked is reported by {@link Listener#blocked(long)}.
+     * To be set before the first action is added.
+     *
+     * @param maxSize the budget, null or 0 for no budget
+     * @param maxWait the maximum time an add blocks before it fails with an
+     *                {@link org.elasticsearch.ElasticsearchTimeoutException},
+     *                the default is the maximum waiting time for responses
+     * @return this processor
+     */
+    public IngestProcessor memoryBudget(ByteSizeValue maxSize, TimeValue maxWait) {
+        this.budgetWait = maxWait != null ? maxWait : waitForResponses;
+        this.budget = maxSize != null && maxSize.bytes() > 0L ? new IngestMemoryBudget(maxSize) : null;
+        return this;
+    }
+
+    /**
+     * The memory budget, or null if there is no budget.
+     */
+    public IngestMemoryBudget memoryBudget() {
+        return budget;
+    }
+
+    /**
+     * Dispatch in ordered lanes, see {@link IngestLane}. The actions are assigned to lanes by index and
+     * routing or id, and each lane has at most one request in flight, so the actions on a document are
+     * executed in the order they were added. The number of lanes is the number of concurrent requests,
+     * it is not adapted and not throttled after rejections. Staging buffers are not used.
+     * To be set before the first action is added.
+     *
+     * @param lanes the number of lanes, 0 to dispatch without order
+     * @return this processor
+     */
+    public IngestProcessor lanes(int lanes) {
+        if (lanes > 0) {
+            IngestLane[] newLanes = new IngestLane[lanes];
+            for (int i = 0; i < lanes; i++) {
+                newLanes[i] = new IngestLane();
+            }
+            this.lanes = newLanes;
+        } else {
+            this.lanes = null;
+        }
+        return this;
+    }
+
+    /**
+     * Queue the actions by index and send them in weighted fair order, see {@link IngestFairScheduler}.
+     * The requests hold permits of the processor, and the number of requests in flight can be limited
+     * per index. Staging buffers are not used, and ordered lanes take precedence.
+     * To be set before the first action is added.
+     *
+     * @param fairScheduler the scheduler, null to send the actions in the order they are added
+     * @return this processor
+     */
+    public IngestProcessor fairScheduler(IngestFairScheduler fairScheduler) {
+        this.fairScheduler = fairScheduler;
+        return this;
+    }
+
+    public IngestFairScheduler fairScheduler() {
+        return fairScheduler;
+    }
+
+    /**
+     * Retry failed actions, see {@link IngestRetryPolicy}. Actions with retriable failures are sent
+     * again in a new request after the backoff, and their failures are not reported in the response.
+     * Permanent failures, and failures after the maximum number of retries, are dead letters that are
+     * passed to the listener. A retried action is no longer in order with the actions of its lane.
+     *
+     * @param retryPolicy the retry policy, null to report all failures
+     * @return this processor
+     */
+    public IngestProcessor retryPolicy(IngestRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public IngestRetryPolicy retryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Send the requests directly to the nodes of the primary shards, see {@link IngestClientRouter}.
+     *
+     * @param router the router, null to send the requests to any node
+     * @return this processor
+     */
+    public IngestProcessor router(IngestClientRouter router) {
+        this.router = router;
+        return this;
+    }
+
+    /**
+     * Spread the requests over a pool of clients, see {@link IngestClientPool}. A router takes
+     * precedence over the pool.
+     *
+     * @param clientPool the client pool, null to send the requests with the client of the processor
+     * @return this processor
+     */
+    public IngestProcessor clientPool(IngestClientPool clientPool) {
+        this.clientPool = clientPool;
+        return this;
+    }
+
+    public IngestClientPool clientPool() {
+        return clientPool;
+    }
+
+    /**
+     * Write every added action ahead to a spool, see {@link IngestSpool}. The actions of a request
+     * are acknowledged in the spool when the request is answered. Actions of failed requests are
+     * kept, so they are replayed with the next run. To be set before the first action is added.
+     *
+     * @param directory   the spool directory, null for no spool
+     * @param segmentSize the size of a segment file, the default is 64 MB
+     * @return this processor
+     * @throws IOException if the spool directory can not be created
+     */
+    public IngestProcessor spool(File directory, ByteSizeValue segmentSize) throws IOException {
+        this.spool = directory != null ?
+                new IngestSpool(directory, segmentSize != null ? segmentSize : new ByteSizeValue(64, ByteSizeUnit.MB)) :
+                null;
+        return this;
+    }
+
+    /**
+     * Add the unacknowledged actions of an earlier run from the spool again. The listener must be set.
+     * A spooled segment is deleted once its actions are spooled again, so the actions are delivered
+     * at least once.
+     *
+     * @return the number of replayed actions
+     * @throws IOException if a spooled segment can not be read
+     */
+    public int replay() throws IOException {
+        IngestSpool spool = this.spool;
+        if (spool == null) {
+            return 0;
+        }
+        if (listener == null) {
+            throw new ElasticsearchIllegalStateException("no listener for replay");
+        }
+        int n = 0;
+        for (File file : newArrayList(spool.recovered())) {
+            for (ActionRequest request : IngestSpool.read(file)) {
+                if (request instanceof IndexRequest) {
+                    add((IndexRequest) request);
+                } else {
+                    add((DeleteRequest) request);
+                }
+                n++;
+            }
+            spool.discard(file);
+        }
+        return n;
+    }
+
+    /**
+     * Adapt the number of actions per request and the number of concurrent requests to the
+     * latency and failures of the responses, see {@link IngestAdaptiveController}. The values
+     * given at construction are the initial values. The volume limit is not adapted.
+     *
+     * @param maxActions     the maximum number of actions per request, the default is four times the initial value
+     * @param maxConcurrency the maximum number of concurrent requests, the default is four times the initial value
+     * @param latencyTarget  the latency above which the values decrease, the default is one second
+     * @return this processor
+     */
+    public IngestProcessor adaptive(Integer maxActions, Integer maxConcurrency, TimeValue latencyTarget) {
+        IngestAdaptiveController controller = new IngestAdaptiveController(actions, concurrency,
+                maxActions != null ? Math.min(maxActions, 32768) : Math.min(actions * 4, 32768),
+                maxConcurrency != null ? Math.min(Math.abs(maxConcurrency), 256) : Math.min(concurrency * 4, 256),
+                latencyTarget != null ? latencyTarget : TimeValue.timeValueSeconds(1));
+        synchronized (permitLock) {
+            // the permits above the current concurrency are withheld
+            int more = controller.maxConcurrency() - permits;
+            if (more > 0) {
+                permits += more;
+                withheldPermits += more;
+                semaphore.release(more);
+            }
+            adaptive = controller;
+        }
+        adjustPermits();
+        return this;
+    }
+
+    /**
+     * The current number of actions per request.
+     */
+    public int currentActions() {
+        IngestAdaptiveController controller = adaptive;
+        return controller != null && actions > 0 ? controller.actions() : actions;
+    }
+
+    /**
+     * The current number of concurrent requests.
+     */
+    public int currentConcurrency() {
+        IngestAdaptiveController controller = adaptive;
+        return controller != null ? controller.concurrency() : concurrency;
+    }
+
+    /**
+     * Flush by time. Every interval, the pending actions are sent if the oldest of them has
+     * waited longer than the maximum linger time. Such a flush only uses a free permit, if all
+     * permits are in use, the actions are left for the next interval.
+     *
+     * @param interval the flush interval, null or 0 to disable flushing by time
+     * @return this processor
+     */
+    public IngestProcessor flushInterval(TimeValue interval) {
+        synchronized (permitLock) {
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+            if (interval != null && interval.millis() > 0L) {
+                flushTask = scheduler().scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushLingering();
+                    }
+                }, interval.millis(), interval.millis(), TimeUnit.MILLISECONDS);
+                if (maxLinger == null) {
+                    maxLinger = interval;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * The time the oldest pending action may wait before it is flushed by time,
+     * the default is the flush interval.
+     *
+     * @param maxLinger the maximum linger time
+     * @return this processor
+     */
+    public IngestProcessor maxLinger(TimeValue maxLinger) {
+        this.maxLinger = maxLinger;
+        return this;
+    }
+
     /**
      * Adds an {@link org.elasticsearch.action.index.IndexRequest} to the list
      * of actions to execute. Follows the same behavior of
@@ -85,6 +431,26 @@ public class IngestProcessor {
      * id is provided, one will be generated, or usage of the create flag).
      */
     public IngestProcessor add(IndexRequest request) {
+        int bytes = IngestRequest.estimatedSizeInBytes(request);
+        reserve(bytes, listener);
+        writeAhead(request, bytes);
+        IngestLane[] lanes = this.lanes;
+        if (lanes != null) {
+            request.beforeLocalFork();
+            addToLane(lanes, request, bytes);
+            return this;
+        }
+        IngestFairScheduler fairScheduler = this.fairScheduler;
+        if (fairScheduler != null) {
+            addFair(fairScheduler, request, bytes);
+            return this;
+        }
+        StripedActionBuffer staging = this.staging;
+        if (staging != null) {
+            request.beforeLocalFork();
+            stage(staging, request, bytes);
+            return this;
+        }
         ingestRequest.add((ActionRequest) request);
         flushIfNeeded(listener);
         return this;
@@ -95,11 +461,81 @@ public class IngestProcessor {
      * of actions to execute.
      */
     public IngestProcessor add(DeleteRequest request) {
+        reserve(IngestRequest.REQUEST_OVERHEAD, listener);
+        writeAhead(request, IngestRequest.REQUEST_OVERHEAD);
+        IngestLane[] lanes = this.lanes;
+        if (lanes != null) {
+            addToLane(lanes, request, IngestRequest.REQUEST_OVERHEAD);
+            return this;
+        }
+        IngestFairScheduler fairScheduler = this.fairScheduler;
+        if (fairScheduler != null) {
+            addFair(fairScheduler, request, IngestRequest.REQUEST_OVERHEAD);
+            return this;
+        }
+        StripedActionBuffer staging = this.staging;
+        if (staging != null) {
+            stage(staging, request, IngestRequest.REQUEST_OVERHEAD);
+            return this;
+        }
         ingestRequest.add((ActionRequest) request);
         flushIfNeeded(listener);
         return this;
     }
 
+    /**
+     * Adds an {@link org.elasticsearch.action.index.IndexRequest} and returns a future that is
+     * completed with the request when its response arrives, or failed with the failure of the
+     * request. A retried request is completed after its last attempt. The future is completed
+     * by the thread that receives the response, the producer is not blocked.
+     *
+     * @param request the index request
+     * @return the ack future
+     */
+    public ListenableActionFuture<ActionRequest> addWithAck(IndexRequest request) {
+        PlainListenableActionFuture<ActionRequest> ack = registerAck(request);
+        try {
+            add(request);
+        } catch (RuntimeException e) {
+            acks.remove(request);
+            throw e;
+        }
+        return ack;
+    }
+
+    /**
+     * Adds an {@link org.elasticsearch.action.delete.DeleteRequest} and returns a future that is
+     * completed with the request when its response arrives, see {@link #addWithAck(IndexRequest)}.
+     *
+     * @param request the delete request
+     * @return the ack future
+     */
+    public ListenableActionFuture<ActionRequest> addWithAck(DeleteRequest request) {
+        PlainListenableActionFuture<ActionRequest> ack = registerAck(request);
+        try {
+            add(request);
+        } catch (RuntimeException e) {
+            acks.remove(request);
+            throw e;
+        }
+        return ack;
+    }
+
+    /**
+     * The number of ack futures that are not completed.
+     */
+    public int pendingAcks() {
+        return acks.size();
+    }
+
+    private PlainListenableActionFuture<ActionRequest> registerAck(ActionRequest request) {
+        PlainListenableActionFuture<ActionRequest> ack = new PlainListenableActionFuture<ActionRequest>(false, null);
+        if (acks.putIfAbsent(request, ack) != null) {
+            throw new ElasticsearchIllegalArgumentException("request already added with ack");
+        }
+        return ack;
+    }
+
     /**
      * For REST API
      *
@@ -114,29 +550,115 @@ public class IngestProcessor {
     public IngestProcessor add(BytesReference data, boolean contentUnsafe,
                                @Nullable String defaultIndex, @Nullable String defaultType,
                                Listener listener) throws Exception {
-        ingestRequest.add(data, contentUnsafe, defaultIndex, defaultType);
+        IngestLane[] lanes = this.lanes;
+        IngestFairScheduler fairScheduler = this.fairScheduler;
+        if (budget != null || spool != null || lanes != null || fairScheduler != null) {
+            // frame first to know the estimated bytes and the actions
+            IngestRequest request = new IngestRequest().add(data, contentUnsafe, defaultIndex, defaultType);
+            reserve(request.estimatedSizeInBytes(), listener);
+            ActionRequest current = null;
+            try {
+                for (ActionRequest action : request.requests()) {
+                    current = action;
+                    writeAhead(action, IngestRequest.estimatedSizeInBytes(action));
+                }
+            } catch (RuntimeException e) {
+                // none of the actions is added, the failed one is already given back
+                for (ActionRequest action : request.requests()) {
+                    if (action != current) {
+                        unreserve(action, IngestRequest.estimatedSizeInBytes(action));
+                    }
+                }
+                throw e;
+            }
+            if (lanes != null || fairScheduler != null) {
+                Iterator<ActionRequest> it = request.requests().iterator();
+                try {
+                    while (it.hasNext()) {
+                        ActionRequest action = it.next();
+                        if (lanes != null) {
+                            addToLane(lanes, action, IngestRequest.estimatedSizeInBytes(action));
+                        } else {
+                            addFair(fairScheduler, action, IngestRequest.estimatedSizeInBytes(action));
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // the actions after the failed one are not added
+                    while (it.hasNext()) {
+                        ActionRequest action = it.next();
+                        unreserve(action, IngestRequest.estimatedSizeInBytes(action));
+                    }
+                    throw e;
+                }
+                return this;
+            }
+            ingestRequest.addAll(request.requests());
+        } else {
+            ingestRequest.add(data, contentUnsafe, defaultIndex, defaultType);
+        }
         flushIfNeeded(listener);
         return this;
     }
 
     /**
      * Closes the processor. If flushing by time is enabled, then it is shut down.
-     * Any remaining bulk actions are flushed, and for the bulk responses is being waited.
+     * Any remaining bulk actions are flushed, and for the bulk responses and the scheduled retries
+     * is being waited. Retries still scheduled after the waiting time fail, throttled permits are given back.
      */
     public void close() throws InterruptedException {
         if (closed) {
             throw new ElasticsearchIllegalStateException("processor already closed");
         }
         closed = true;
+        synchronized (permitLock) {
+            if (flushTask != null) {
+                flushTask.cancel(false);
+            }
+        }
+        StripedActionBuffer staging = this.staging;
+        if (staging != null) {
+            // the staged actions are flushed, no more actions are staged
+            staging.close(ingestRequest.requests());
+        }
         flush();
         waitForResponses(waitForResponses);
+        ScheduledThreadPoolExecutor scheduler;
+        synchronized (permitLock) {
+            scheduler = this.scheduler;
+            // the scheduled permit restores are dropped, give the permits back now
+            throttledUntil = 0L;
+        }
+        if (scheduler != null) {
+            // delayed tasks are dropped, running tasks complete
+            scheduler.shutdown();
+            scheduler.awaitTermination(waitForResponses.millis(), TimeUnit.MILLISECONDS);
+        }
+        // the retries not answered in time fail
+        for (PendingTask task : pendingTasks) {
+            task.abortIfPending();
+        }
+        adjustPermits();
+        if (fairScheduler != null) {
+            fairScheduler.close();
+        }
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                throw new ElasticsearchException("can not close spool", e);
+            }
+        }
     }
 
     /**
      * Flush this bulk processor, write all requests
      */
     public synchronized void flush() {
+        flushLanes();
+        flushFair();
+        unstage();
         if (ingestRequest.numberOfActions() > 0) {
+            oldestActionNanos.set(0L);
             process(ingestRequest.takeAll(), listener);
         }
     }
@@ -148,8 +670,17 @@ public class IngestProcessor {
      * @throws InterruptedException
      */
     public boolean waitForResponses(TimeValue maxWait) throws InterruptedException {
-        semaphore.tryAcquire(concurrency, maxWait.getMillis(), TimeUnit.MILLISECONDS);
-        return semaphore.availablePermits() == concurrency;
+        long deadline = System.currentTimeMillis() + maxWait.millis();
+        synchronized (permitLock) {
+            while (inFlight > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0L) {
+                    return false;
+                }
+                permitLock.wait(remaining);
+            }
+            return true;
+        }
     }
 
     /**
@@ -175,6 +706,82 @@ public class IngestProcessor {
         void afterBulk(long bulkId, int concurrency, Throwable failure);
     }
 
+    /**
+     * A listener that is also told about the adaptive controller, the memory budget and the retries.
+     * The processor calls these callbacks only if its listener implements this interface.
+     */
+    public static interface ExtendedListener extends Listener {
+
+        /**
+         * Callback after the adaptive controller changed the number of actions per request
+         * or the number of concurrent requests.
+         */
+        void adapted(int actions, int concurrency);
+
+        /**
+         * Callback after an add was blocked by the memory budget.
+         *
+         * @param millis the time blocked in milliseconds
+         */
+        void blocked(long millis);
+
+        /**
+         * Callback after failed actions of a bulk request are scheduled to be sent again.
+         *
+         * @param bulkId      the bulk job identifier
+         * @param actions     the number of retried actions
+         * @param delayMillis the backoff in milliseconds
+         */
+        void retried(long bulkId, int actions, long delayMillis);
+
+        /**
+         * Callback for a dead letter, an action that failed permanently or after the maximum
+         * number of retries.
+         *
+         * @param bulkId  the bulk job identifier
+         * @param request the action
+         * @param reason  the failure message
+         */
+        void failed(long bulkId, ActionRequest request, String reason);
+    }
+
+    private static final ExtendedListener NO_EVENTS = new ExtendedListener() {
+        @Override
+        public void beforeBulk(long bulkId, int concurrency, IngestRequest request) {
+        }
+
+        @Override
+        public void afterBulk(long bulkId, int concurrency, IngestResponse response) {
+        }
+
+        @Override
+        public void afterBulk(long bulkId, int concurrency, Throwable failure) {
+        }
+
+        @Override
+        public void adapted(int actions, int concurrency) {
+        }
+
+        @Override
+        public void blocked(long millis) {
+        }
+
+        @Override
+        public void retried(long bulkId, int actions, long delayMillis) {
+        }
+
+        @Override
+        public void failed(long bulkId, ActionRequest request, String reason) {
+        }
+    };
+
+    /**
+     * The extended callbacks of a listener, which are ignored if the listener does not implement them.
+     */
+    private static ExtendedListener extended(Listener listener) {
+        return listener instanceof ExtendedListener ? (ExtendedListener) listener : NO_EVENTS;
+    }
+
     /**
      * Critical phase, check if flushing condition is met and
      * push the part of the bulk requests that is required to push
@@ -183,9 +790,13 @@ public class IngestProcessor {
         if (closed) {
             throw new ElasticsearchIllegalStateException("processor already closed");
         }
+        if (oldestActionNanos.get() == 0L) {
+            oldestActionNanos.compareAndSet(0L, System.nanoTime());
+        }
         if (actions > 0) {
-            while (ingestRequest.numberOfActions() >= actions) {
-                process(ingestRequest.take(actions), listener);
+            int n;
+            while (ingestRequest.numberOfActions() >= (n = currentActions())) {
+                process(ingestRequest.take(n), listener);
             }
         } else {
             while (ingestRequest.numberOfActions() > 0
@@ -194,52 +805,843 @@ public class IngestProcessor {
                 process(ingestRequest.takeAll(), listener);
             }
         }
+        StripedActionBuffer staging = this.staging;
+        if (ingestRequest.numberOfActions() == 0 && (staging == null || staging.size() == 0)) {
+            oldestActionNanos.set(0L);
+        }
     }
 
     /**
-     * Process an ingest request and send responses via the listener.
-     *
-     * @param request the ingest request
+     * Acquire bytes of the memory budget. If they are not within the budget, the pending actions
+     * are sent, so that their bytes are released with the responses, and the add blocks.
      */
-    private void process(final IngestRequest request, final Listener listener) {
-        if (listener == null) {
+    private void reserve(long bytes, Listener listener) {
+        IngestMemoryBudget budget = this.budget;
+        if (budget == null || budget.tryAcquire(bytes)) {
             return;
         }
-        final long id = bulkId.incrementAndGet();
-        boolean done = false;
+        if (closed) {
+            throw new ElasticsearchIllegalStateException("processor already closed");
+        }
+        flush();
+        long nanos;
         try {
-            semaphore.acquire();
-            listener.beforeBulk(id, concurrency - semaphore.availablePermits(), request);
-            client.execute(IngestAction.INSTANCE, request, new ActionListener<IngestResponse>() {
-                @Override
-                public void onResponse(IngestResponse response) {
-                    try {
-                        listener.afterBulk(id, concurrency - semaphore.availablePermits(), response);
-                    } finally {
-                        semaphore.release();
-                    }
-                }
-
-                @Override
-                public void onFailure(Throwable e) {
-                    try {
-                        listener.afterBulk(id, concurrency - semaphore.availablePermits(), e);
-                    } finally {
-                        semaphore.release();
-                    }
-                }
-            });
-            done = true;
+            nanos = budget.acquire(bytes, budgetWait);
         } catch (InterruptedException e) {
-            // semaphore not acquired
             Thread.currentThread().interrupt();
-            listener.afterBulk(id, concurrency - semaphore.availablePermits(), e);
-        } finally {
-            if (!done) {
-                semaphore.release();
-            }
+            throw new ElasticsearchIllegalStateException("interrupted while waiting for the memory budget");
+        }
+        if (listener != null) {
+            extended(listener).blocked(TimeUnit.NANOSECONDS.toMillis(nanos));
         }
     }
 
+    /**
+     * Append an action to the spool. If it can not be appended, its reserved bytes are given back.
+     */
+    private void writeAhead(ActionRequest request, int bytes) {
+        IngestSpool spool = this.spool;
+        if (spool != null) {
+            try {
+                spool.append(request);
+            } catch (IOException e) {
+                unreserve(request, bytes);
+                throw new ElasticsearchException("can not write to spool", e);
+            } catch (RuntimeException e) {
+                unreserve(request, bytes);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Give back the reserved bytes of an action that is not added, and release it in the spool.
+     */
+    private void unreserve(ActionRequest request, int bytes) {
+        IngestMemoryBudget budget = this.budget;
+        if (budget != null) {
+            budget.release(bytes);
+        }
+        IngestSpool spool = this.spool;
+        if (spool != null) {
+            spool.release(request);
+        }
+    }
+
+    /**
+     * Add an action to the staging buffer of the current thread, without locking this processor.
+     * Only when the staging buffer is handed to the pending request and a request is due,
+     * the lock is taken.
+     */
+    private void stage(StripedActionBuffer staging, ActionRequest request, int bytes) {
+        int n = currentActions();
+        boolean handedOver;
+        try {
+            if (closed) {
+                throw new ElasticsearchIllegalStateException("processor already closed");
+            }
+            if (oldestActionNanos.get() == 0L) {
+                oldestActionNanos.compareAndSet(0L, System.nanoTime());
+            }
+            handedOver = staging.add(request, bytes,
+                    n > 0 ? Math.min(n, ActionBuffer.DEFAULT_CHUNK_SIZE) : ActionBuffer.DEFAULT_CHUNK_SIZE,
+                    ingestRequest.requests());
+        } catch (RuntimeException e) {
+            unreserve(request, bytes);
+            throw e;
+        }
+        if (!handedOver) {
+            return;
+        }
+        if (n > 0 ? ingestRequest.numberOfActions() >= n :
+                maxVolume.bytesAsInt() > 0 && ingestRequest.estimatedSizeInBytes() > maxVolume.bytesAsInt()) {
+            flushIfNeeded(listener);
+        }
+    }
+
+    /**
+     * Add an action to its ordered lane, and send the batch of the lane if it is due.
+     */
+    private void addToLane(IngestLane[] lanes, ActionRequest request, int bytes) {
+        IngestLane lane = lanes[IngestLane.laneOf(request, lanes.length, laneSequence.getAndIncrement())];
+        ActionBuffer batch;
+        try {
+            if (closed) {
+                throw new ElasticsearchIllegalStateException("processor already closed");
+            }
+            if (oldestActionNanos.get() == 0L) {
+                oldestActionNanos.compareAndSet(0L, System.nanoTime());
+            }
+            batch = lane.add(request, bytes, currentActions(), maxVolume.bytes(), waitForResponses.millis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unreserve(request, bytes);
+            throw new ElasticsearchIllegalStateException("interrupted while waiting for an ordered lane");
+        } catch (RuntimeException e) {
+            // for example the lane stayed busy
+            unreserve(request, bytes);
+            throw e;
+        }
+        if (batch != null) {
+            dispatchLane(lane, batch);
+        }
+    }
+
+    /**
+     * Send the pending actions of all lanes, a busy lane sends them after its request in flight.
+     */
+    private void flushLanes() {
+        IngestLane[] lanes = this.lanes;
+        if (lanes == null) {
+            return;
+        }
+        oldestActionNanos.set(0L);
+        for (IngestLane lane : lanes) {
+            ActionBuffer batch = lane.flush(currentActions());
+            if (batch != null) {
+                dispatchLane(lane, batch);
+            }
+        }
+    }
+
+    /**
+     * Send a batch of a lane, the lane is busy. Without a listener, the batches are dropped.
+     */
+    private void dispatchLane(IngestLane lane, ActionBuffer batch) {
+        Listener listener = this.listener;
+        while (listener == null && batch != null) {
+            IngestRequest request = ingestRequest.newRequest(batch);
+            releaseBytes(request);
+            complete(request, null, DROPPED, null);
+            batch = lane.done(currentActions(), maxVolume.bytes());
+        }
+        if (batch != null) {
+            dispatch(ingestRequest.newRequest(batch), listener, lane);
+        }
+    }
+
+    /**
+     * Add an action to the queue of its index, and send the due batches that may be sent.
+     */
+    private void addFair(IngestFairScheduler fairScheduler, ActionRequest request, int bytes) {
+        try {
+            if (closed) {
+                throw new ElasticsearchIllegalStateException("processor already closed");
+            }
+            if (oldestActionNanos.get() == 0L) {
+                oldestActionNanos.compareAndSet(0L, System.nanoTime());
+            }
+            fairScheduler.add(request, bytes, currentActions(), maxVolume.bytes(), waitForResponses.millis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unreserve(request, bytes);
+            throw new ElasticsearchIllegalStateException("interrupted while waiting for the queue of an index");
+        } catch (RuntimeException e) {
+            // for example the queue of the index stayed full
+            unreserve(request, bytes);
+            throw e;
+        }
+        pumpFair();
+    }
+
+    /**
+     * Send all queued actions of the fair scheduler, as permits become free.
+     */
+    private void flushFair() {
+        IngestFairScheduler fairScheduler = this.fairScheduler;
+        if (fairScheduler == null) {
+            return;
+        }
+        oldestActionNanos.set(0L);
+        fairScheduler.flush();
+        pumpFair();
+    }
+
+    /**
+     * Send the next batches of the fair scheduler while permits are free, without blocking.
+     * Batches that can not be sent now are sent when a request is answered.
+     * Without a listener, the batches are dropped.
+     */
+    private void pumpFair() {
+        IngestFairScheduler fairScheduler = this.fairScheduler;
+        if (fairScheduler == null) {
+            return;
+        }
+        while (true) {
+            Listener listener = this.listener;
+            if (listener != null && !semaphore.tryAcquire()) {
+                return;
+            }
+            IngestFairScheduler.Batch batch = fairScheduler.next(currentActions(), maxVolume.bytes());
+            if (batch == null) {
+                if (listener != null) {
+                    semaphore.release();
+                }
+                return;
+            }
+            IngestRequest request = ingestRequest.newRequest(batch.actions());
+            if (listener == null) {
+                releaseBytes(request);
+                complete(request, null, DROPPED, null);
+                fairScheduler.done(batch);
+                continue;
+            }
+            fairBatches.put(request, batch);
+            dispatch(request, listener, null);
+        }
+    }
+
+    /**
+     * Move the actions of the staging buffers to the pending request.
+     */
+    private void unstage() {
+        StripedActionBuffer staging = this.staging;
+        if (staging != null) {
+            staging.drainTo(ingestRequest.requests());
+        }
+    }
+
+    /**
+     * Flush by time, without waiting for a permit
+     */
+    private synchronized void flushLingering() {
+        if (closed || listener == null) {
+            return;
+        }
+        if (lanes != null || fairScheduler != null) {
+            TimeValue linger = maxLinger;
+            long oldest = oldestActionNanos.get();
+            if (oldest == 0L || linger == null
+                    || System.nanoTime() - oldest >= TimeUnit.MILLISECONDS.toNanos(linger.millis())) {
+                flushLanes();
+                flushFair();
+            }
+            return;
+        }
+        unstage();
+        if (ingestRequest.numberOfActions() == 0) {
+            return;
+        }
+        TimeValue linger = maxLinger;
+        long oldest = oldestActionNanos.get();
+        if (oldest != 0L && linger != null
+                && System.nanoTime() - oldest < TimeUnit.MILLISECONDS.toNanos(linger.millis())) {
+            return;
+        }
+        if (!semaphore.tryAcquire()) {
+            return;
+        }
+        oldestActionNanos.set(0L);
+        dispatch(ingestRequest.takeAll(), listener, null);
+    }
+
+    /**
+     * Process an ingest request and send responses via the listener.
+     *
+     * @param request the ingest request
+     */
+    private void process(final IngestRequest request, final Listener listener) {
+        if (listener == null) {
+            releaseBytes(request);
+            releaseSpooled(request);
+            complete(request, null, DROPPED, null);
+            return;
+        }
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            // semaphore not acquired
+            Thread.currentThread().interrupt();
+            releaseBytes(request);
+            releaseSpooled(request);
+            complete(request, null, e, null);
+            listener.afterBulk(bulkId.incrementAndGet(), inFlight(), e);
+            return;
+        }
+        dispatch(request, listener, null);
+    }
+
+    /**
+     * Send an ingest request, the permit is already acquired, or the request is the batch of a busy lane.
+     */
+    private void dispatch(final IngestRequest request, final Listener listener, final IngestLane lane) {
+        final long id = bulkId.incrementAndGet();
+        final long epoch = adaptive != null ? adaptive.epoch() : 0L;
+        int n;
+        synchronized (permitLock) {
+            n = ++inFlight;
+        }
+        try {
+            listener.beforeBulk(id, n, request);
+            execute(id, request, listener, lane, epoch, System.nanoTime(), 0L);
+        } catch (Throwable t) {
+            releaseSpooled(request);
+            complete(request, null, t, null);
+            release(request, lane);
+            throw t;
+        }
+    }
+
+    /**
+     * Execute an ingest request holding a permit. A request rejected by the admission control
+     * of the cluster is sent again after the retry-after time, as long as the time since the
+     * first rejection does not exceed the maximum waiting time for responses.
+     */
+    private void execute(final long id, final IngestRequest request, final Listener listener,
+                         final IngestLane lane, final long epoch, final long startNanos, final long rejectedSince) {
+        ActionListener<IngestResponse> actionListener = new ActionListener<IngestResponse>() {
+            @Override
+            public void onResponse(IngestResponse response) {
+                IngestAdaptiveController controller = adaptive;
+                if (controller != null) {
+                    // the round trip includes the time in the queues of client and cluster
+                    long latency = Math.max(response.tookInMillis(),
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                    if (controller.onResponse(epoch, latency, request.numberOfActions(), response.failureSize())) {
+                        adapted(controller, listener);
+                    }
+                }
+                IngestResponse reported = retryFailed(id, request, response, listener, lane);
+                try {
+                    listener.afterBulk(id, inFlight(), reported);
+                } finally {
+                    release(request, lane);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                Throwable cause = ExceptionsHelper.unwrapCause(e);
+                IngestAdaptiveController controller = adaptive;
+                if (controller != null && controller.onFailure(epoch)) {
+                    adapted(controller, listener);
+                }
+                if (cause instanceof IngestRejectedException) {
+                    long now = System.currentTimeMillis();
+                    final long since = rejectedSince > 0L ? rejectedSince : now;
+                    long retryAfter = ((IngestRejectedException) cause).retryAfter().millis();
+                    final ActionListener<IngestResponse> self = this;
+                    if (now - since + retryAfter <= waitForResponses.millis() && throttle(retryAfter, new PendingTask() {
+                        @Override
+                        void doRun() {
+                            execute(id, request, listener, lane, adaptive != null ? adaptive.epoch() : 0L, System.nanoTime(), since);
+                        }
+
+                        @Override
+                        void abort() {
+                            self.onFailure(new ElasticsearchIllegalStateException("processor closed before retry"));
+                        }
+                    })) {
+                        return;
+                    }
+                }
+                try {
+                    if (retryAll(id, request, e, listener, lane)) {
+                        // all actions are retried, nothing failed
+                        List<IngestItemFailure> failure = newLinkedList();
+                        listener.afterBulk(id, inFlight(), new IngestResponse(0, failure,
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+                    } else {
+                        listener.afterBulk(id, inFlight(), e);
+                    }
+                } finally {
+                    release(request, lane);
+                }
+            }
+        };
+        IngestClientRouter router = this.router;
+        IngestClientPool clientPool = this.clientPool;
+        if (router != null) {
+            router.execute(request, actionListener);
+        } else if (clientPool != null) {
+            clientPool.execute(request, actionListener);
+        } else {
+            client.execute(IngestAction.INSTANCE, request, actionListener);
+        }
+    }
+
+    /**
+     * Acknowledge the actions of an answered request in the spool and complete their ack futures,
+     * and schedule the actions with retriable failures to be sent again.
+     *
+     * @return the response without the failures of the retried actions
+     */
+    private IngestResponse retryFailed(long id, IngestRequest request, IngestResponse response, Listener listener,
+                                       IngestLane lane) {
+        IngestRetryPolicy policy = this.retryPolicy;
+        IngestSpool spool = this.spool;
+        if (policy == null || !response.hasFailures()) {
+            if (policy != null) {
+                policy.done(request, null);
+            }
+            if (spool != null) {
+                spool.acknowledge(request);
+            }
+            complete(request, response, null, null);
+            return response;
+        }
+        List<ActionRequest> actions = newArrayList(request.requests());
+        boolean[] retried = new boolean[actions.size()];
+        List<IngestItemFailure> failure = newLinkedList();
+        ActionBuffer retry = new ActionBuffer();
+        int maxAttempt = 0;
+        for (IngestItemFailure f : response.failure()) {
+            int pos = f.pos();
+            if (pos < 0 || pos >= actions.size() || retried[pos]) {
+                failure.add(f);
+                continue;
+            }
+            ActionRequest action = actions.get(pos);
+            int attempt = policy.isRetriable(f) ? policy.failed(action) : 0;
+            if (attempt > 0) {
+                retried[pos] = true;
+                retry.add(action, IngestRequest.estimatedSizeInBytes(action));
+                maxAttempt = Math.max(maxAttempt, attempt);
+            } else {
+                failure.add(f);
+                extended(listener).failed(id, action, f.message());
+            }
+        }
+        policy.done(request, retried);
+        if (spool != null) {
+            // retried actions stay in the spool until they are answered
+            for (int i = 0; i < retried.length; i++) {
+                if (!retried[i]) {
+                    spool.acknowledge(actions.get(i));
+                }
+            }
+        }
+        complete(request, response, null, retried);
+        if (retry.isEmpty()) {
+            return response;
+        }
+        scheduleRetry(id, ingestRequest.newRequest(retry), listener, lane, policy.backoff(maxAttempt));
+        return new IngestResponse(response.successSize(), failure, response.collapsed(), response.tookInMillis())
+                .load(response.queueSize(), response.inFlightBytes());
+    }
+
+    /**
+     * Schedule the actions of a failed request to be sent again, if the failure is retriable.
+     * Actions that are not retried are dead letters.
+     *
+     * @return true if all actions are retried
+     */
+    private boolean retryAll(long id, IngestRequest request, Throwable failure, Listener listener, IngestLane lane) {
+        IngestRetryPolicy policy = this.retryPolicy;
+        if (policy == null) {
+            releaseSpooled(request);
+            complete(request, null, failure, null);
+            return false;
+        }
+        boolean retriable = policy.isRetriable(failure);
+        String reason = ExceptionsHelper.detailedMessage(failure);
+        boolean[] retried = new boolean[request.numberOfActions()];
+        ActionBuffer retry = new ActionBuffer();
+        int maxAttempt = 0;
+        IngestSpool spool = this.spool;
+        int pos = 0;
+        for (ActionRequest action : request.requests()) {
+            int attempt = retriable ? policy.failed(action) : 0;
+            if (attempt > 0) {
+                retried[pos] = true;
+                retry.add(action, IngestRequest.estimatedSizeInBytes(action));
+                maxAttempt = Math.max(maxAttempt, attempt);
+            } else {
+                extended(listener).failed(id, action, reason);
+                if (spool != null) {
+                    spool.acknowledge(action);
+                }
+            }
+            pos++;
+        }
+        policy.done(request, retried);
+        complete(request, null, failure, retried);
+        if (retry.isEmpty()) {
+            return false;
+        }
+        boolean all = retry.size() == request.numberOfActions();
+        scheduleRetry(id, ingestRequest.newRequest(retry), listener, lane, policy.backoff(maxAttempt));
+        return all;
+    }
+
+    /**
+     * Send retried actions in a new request after the backoff. The bytes of the actions are
+     * handed over to the new request, and it counts as in flight while it is scheduled.
+     * The retry of a lane is sent in the lane, the lane stays busy until the retry is done.
+     * If the processor is closed, the actions are dead letters, they stay in the spool.
+     */
+    private void scheduleRetry(long id, IngestRequest request, Listener listener, IngestLane lane, long delay) {
+        IngestMemoryBudget budget = this.budget;
+        if (budget != null) {
+            budget.forceAcquire(request.estimatedSizeInBytes());
+        }
+        synchronized (permitLock) {
+            inFlight++;
+        }
+        if (lane != null) {
+            lane.handOver();
+        }
+        Retry retry = new Retry(id, request, listener, lane);
+        if (!retry.schedule(delay)) {
+            retry.abort();
+            return;
+        }
+        extended(listener).retried(id, request.numberOfActions(), delay);
+    }
+
+    /**
+     * A task scheduled for a request in flight. Either it runs, or it is aborted when the processor
+     * is closed before, never both.
+     */
+    private abstract class PendingTask implements Runnable {
+
+        @Override
+        public final void run() {
+            if (pendingTasks.remove(this)) {
+                doRun();
+            }
+        }
+
+        /**
+         * Schedule the task.
+         *
+         * @param delay the delay in milliseconds
+         * @return true if the task runs or is aborted on close, false if it is not scheduled
+         */
+        boolean schedule(long delay) {
+            pendingTasks.add(this);
+            try {
+                scheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException e) {
+                // aborted by close in the meantime, or to be aborted by the caller
+                return !pendingTasks.remove(this);
+            }
+        }
+
+        void abortIfPending() {
+            if (pendingTasks.remove(this)) {
+                abort();
+            }
+        }
+
+        abstract void doRun();
+
+        abstract void abort();
+    }
+
+    /**
+     * A scheduled retry. It never blocks a scheduler thread: without a free permit, it is
+     * scheduled again after a short delay.
+     */
+    private class Retry extends PendingTask {
+
+        private final long id;
+
+        private final IngestRequest request;
+
+        private final Listener listener;
+
+        private final IngestLane lane;
+
+        Retry(long id, IngestRequest request, Listener listener, IngestLane lane) {
+            this.id = id;
+            this.request = request;
+            this.listener = listener;
+            this.lane = lane;
+        }
+
+        @Override
+        void doRun() {
+            // a lane holds no permit
+            if (lane == null && !semaphore.tryAcquire()) {
+                if (!schedule(RETRY_POLL_MILLIS)) {
+                    abort();
+                }
+                return;
+            }
+            try {
+                dispatch(request, listener, lane);
+            } finally {
+                retryDone();
+            }
+        }
+
+        @Override
+        void abort() {
+            retryDone();
+            releaseBytes(request);
+            releaseSpooled(request);
+            for (ActionRequest action : request.requests()) {
+                extended(listener).failed(id, action, "processor closed before retry");
+            }
+            complete(request, null, new ElasticsearchIllegalStateException("processor closed before retry"), null);
+            if (lane != null) {
+                ActionBuffer next = lane.done(currentActions(), maxVolume.bytes());
+                if (next != null) {
+                    dispatchLane(lane, next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the actions of a failed request in the spool, they stay spooled for the next run.
+     */
+    private void releaseSpooled(IngestRequest request) {
+        IngestSpool spool = this.spool;
+        if (spool != null) {
+            spool.release(request);
+        }
+    }
+
+    /**
+     * Complete the ack futures of the answered actions of a request, except of the retried actions.
+     *
+     * @param request  the request
+     * @param response the response, or null
+     * @param failure  the failure of the request, or null
+     * @param retried  the positions of the retried actions, or null if none are retried
+     */
+    private void complete(IngestRequest request, IngestResponse response, Throwable failure, boolean[] retried) {
+        if (acks.isEmpty()) {
+            return;
+        }
+        String[] messages = null;
+        if (response != null && response.hasFailures()) {
+            messages = new String[request.numberOfActions()];
+            for (IngestItemFailure f : response.failure()) {
+                if (f.pos() >= 0 && f.pos() < messages.length) {
+                    messages[f.pos()] = f.message();
+                }
+            }
+        }
+        int pos = 0;
+        for (ActionRequest action : request.requests()) {
+            if (retried == null || !retried[pos]) {
+                PlainListenableActionFuture<ActionRequest> ack = acks.remove(action);
+                if (ack != null) {
+                    if (failure != null) {
+                        ack.onFailure(failure);
+                    } else if (messages != null && messages[pos] != null) {
+                        ack.onFailure(new ElasticsearchException(messages[pos]));
+                    } else {
+                        ack.onResponse(action);
+                    }
+                }
+            }
+            pos++;
+        }
+    }
+
+    private void retryDone() {
+        synchronized (permitLock) {
+            if (--inFlight == 0) {
+                permitLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Back off after a rejection. Until the retry-after time has passed, the concurrency is halved.
+     *
+     * @param retryAfter the retry-after time in milliseconds
+     * @param retry      the action to retry after the retry-after time
+     * @return true if the retry is scheduled, false if the processor is closed
+     */
+    private boolean throttle(long retryAfter, PendingTask retry) {
+        synchronized (permitLock) {
+            if (!retry.schedule(retryAfter)) {
+                return false;
+            }
+            throttledUntil = Math.max(throttledUntil, System.currentTimeMillis() + retryAfter);
+            try {
+                scheduleRestore(retryAfter);
+            } catch (RejectedExecutionException e) {
+                // closed, the permits are given back on close
+            }
+        }
+        adjustPermits();
+        return true;
+    }
+
+    private void adapted(IngestAdaptiveController controller, Listener listener) {
+        adjustPermits();
+        extended(listener).adapted(actions > 0 ? controller.actions() : actions, controller.concurrency());
+    }
+
+    private int inFlight() {
+        synchronized (permitLock) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * Give back the permit and the bytes of a request. The permit is withheld if the current
+     * concurrency is lower. A lane holds no permit, its next batch is sent before the request
+     * is counted as done, so waiting for responses does not end between the batches of a lane.
+     */
+    private void release(IngestRequest request, IngestLane lane) {
+        releaseBytes(request);
+        if (lane != null) {
+            ActionBuffer next = lane.done(currentActions(), maxVolume.bytes());
+            if (next != null) {
+                dispatchLane(lane, next);
+            }
+            synchronized (permitLock) {
+                if (--inFlight == 0) {
+                    permitLock.notifyAll();
+                }
+            }
+            return;
+        }
+        IngestFairScheduler fairScheduler = this.fairScheduler;
+        if (fairScheduler == null) {
+            synchronized (permitLock) {
+                if (--inFlight == 0) {
+                    permitLock.notifyAll();
+                }
+                if (withheldPermits < permits - targetConcurrency()) {
+                    withheldPermits++;
+                    return;
+                }
+            }
+            semaphore.release();
+            return;
+        }
+        // the next batches are sent before the request is counted as done
+        IngestFairScheduler.Batch batch = fairBatches.remove(request);
+        if (batch != null) {
+            fairScheduler.done(batch);
+        }
+        boolean withheld;
+        synchronized (permitLock) {
+            withheld = withheldPermits < permits - targetConcurrency();
+            if (withheld) {
+                withheldPermits++;
+            }
+        }
+        if (!withheld) {
+            semaphore.release();
+        }
+        pumpFair();
+        synchronized (permitLock) {
+            if (--inFlight == 0) {
+                permitLock.notifyAll();
+            }
+        }
+    }
+
+    private void releaseBytes(IngestRequest request) {
+        IngestMemoryBudget budget = this.budget;
+        if (budget != null) {
+            budget.release(request.estimatedSizeInBytes());
+        }
+    }
+
+    /**
+     * Withhold free permits or give back withheld permits to match the current concurrency.
+     */
+    private void adjustPermits() {
+        int more;
+        synchronized (permitLock) {
+            int target = permits - targetConcurrency();
+            while (withheldPermits < target && semaphore.tryAcquire()) {
+                withheldPermits++;
+            }
+            more = withheldPermits - target;
+            if (more > 0) {
+                withheldPermits -= more;
+            }
+        }
+        if (more > 0) {
+            semaphore.release(more);
+        }
+    }
+
+    private int targetConcurrency() {
+        int n = currentConcurrency();
+        return System.currentTimeMillis() < throttledUntil ? Math.max(1, n - n / 2) : n;
+    }
+
+    /**
+     * The scheduler for flushing and retrying, with two threads so that a retry is never
+     * delayed by a flush waiting for the lock of this processor.
+     */
+    private ScheduledExecutorService scheduler() {
+        synchronized (permitLock) {
+            if (scheduler == null) {
+                scheduler = new ScheduledThreadPoolExecutor(2, EsExecutors.daemonThreadFactory("ingest_processor"));
+                scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            }
+            return scheduler;
+        }
+    }
+
+    private void scheduleRestore(long delay) {
+        scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                restorePermits();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void restorePermits() {
+        synchronized (permitLock) {
+            long remaining = throttledUntil - System.currentTimeMillis();
+            if (remaining > 0L) {
+                // throttled again in the meantime
+                try {
+                    scheduleRestore(remaining);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // closed, give the permits back now
+                    throttledUntil = 0L;
+                }
+            }
+        }
+        adjustPermits();
+    }
 
 }
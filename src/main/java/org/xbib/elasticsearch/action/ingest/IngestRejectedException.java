@@ -0,0 +1,26 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+/**
+ * Thrown if an ingest request is not admitted because the node is overloaded.
+ * None of the actions of the request have been executed, the request can be sent
+ * again after the retry-after time.
+ */
+public class IngestRejectedException extends EsRejectedExecutionException {
+
+    private final long retryAfterMillis;
+
+    public IngestRejectedException(String msg, long retryAfterMillis) {
+        super(msg);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * The time after which the request should be sent again.
+     */
+    public TimeValue retryAfter() {
+        return new TimeValue(retryAfterMillis);
+    }
+}
@@ -13,25 +13,18 @@ import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.unit.TimeValue;
-import org.elasticsearch.common.xcontent.XContent;
-import org.elasticsearch.common.xcontent.XContentFactory;
-import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.index.VersionType;
 
 import java.io.IOException;
-import java.util.Queue;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.List;
 
 import static org.elasticsearch.action.ValidateActions.addValidationError;
-import static org.elasticsearch.common.collect.Queues.newConcurrentLinkedQueue;
+import static org.elasticsearch.common.collect.Lists.newArrayListWithCapacity;
 
 public class IngestRequest extends ActionRequest {
 
-    private static final int REQUEST_OVERHEAD = 50;
+    static final int REQUEST_OVERHEAD = 50;
 
-    private final Queue<ActionRequest> requests = newQueue();
-
-    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final ActionBuffer requests;
 
     private ReplicationType replicationType = ReplicationType.DEFAULT;
 
@@ -39,11 +32,19 @@ public class IngestRequest extends ActionRequest {
 
     private TimeValue timeout = IngestShardRequest.DEFAULT_TIMEOUT;
 
-    public Queue<ActionRequest> newQueue() {
-        return newConcurrentLinkedQueue();
+    private IngestEncoding encoding = IngestEncoding.PLAIN;
+
+    private boolean collapseDuplicates;
+
+    public IngestRequest() {
+        this(new ActionBuffer());
     }
 
-    protected Queue<ActionRequest> requests() {
+    private IngestRequest(ActionBuffer requests) {
+        this.requests = requests;
+    }
+
+    protected ActionBuffer requests() {
         return requests;
     }
 
@@ -95,9 +96,23 @@ public class IngestRequest extends ActionRequest {
     }
 
     IngestRequest internalAdd(IndexRequest request) {
-        requests.offer(request);
-        long length = request.source() != null ? request.source().length() + REQUEST_OVERHEAD : REQUEST_OVERHEAD;
-        sizeInBytes.addAndGet(length);
+        requests.add(request, estimatedSizeInBytes(request));
+        return this;
+    }
+
+    static int estimatedSizeInBytes(IndexRequest request) {
+        return request.source() != null ? request.source().length() + REQUEST_OVERHEAD : REQUEST_OVERHEAD;
+    }
+
+    static int estimatedSizeInBytes(ActionRequest request) {
+        return request instanceof IndexRequest ? estimatedSizeInBytes((IndexRequest) request) : REQUEST_OVERHEAD;
+    }
+
+    /**
+     * Adds the actions of a buffer, the buffer is taken over.
+     */
+    IngestRequest addAll(ActionBuffer buffer) {
+        requests.addAll(buffer);
         return this;
     }
 
@@ -105,8 +120,7 @@ public class IngestRequest extends ActionRequest {
      * Adds an {@link org.elasticsearch.action.delete.DeleteRequest} to the list of actions to execute.
      */
     public IngestRequest add(DeleteRequest request) {
-        requests.offer(request);
-        sizeInBytes.addAndGet(REQUEST_OVERHEAD);
+        requests.add(request, REQUEST_OVERHEAD);
         return this;
     }
 
@@ -114,7 +128,6 @@ public class IngestRequest extends ActionRequest {
      * The number of actions in the bulk request.
      */
     public int numberOfActions() {
-        // for ConcurrentLinkedList, this call is not O(n), and may not be the size of the current list
         return requests.size();
     }
 
@@ -122,7 +135,7 @@ public class IngestRequest extends ActionRequest {
      * The estimated size in bytes of the bulk request.
      */
     public long estimatedSizeInBytes() {
-        return sizeInBytes.longValue();
+        return requests.sizeInBytes();
     }
 
     /**
@@ -143,111 +156,7 @@ public class IngestRequest extends ActionRequest {
      * Adds a framed data in binary format
      */
     public IngestRequest add(BytesReference data, boolean contentUnsafe, @Nullable String defaultIndex, @Nullable String defaultType) throws Exception {
-        XContent xContent = XContentFactory.xContent(data);
-        int from = 0;
-        int length = data.length();
-        byte marker = xContent.streamSeparator();
-        while (true) {
-            int nextMarker = findNextMarker(marker, from, data, length);
-            if (nextMarker == -1) {
-                break;
-            }
-            // now parse the move
-            XContentParser parser = xContent.createParser(data.slice(from, nextMarker - from));
-
-            try {
-                // move pointers
-                from = nextMarker + 1;
-
-                // Move to START_OBJECT
-                XContentParser.Token token = parser.nextToken();
-                if (token == null) {
-                    continue;
-                }
-                assert token == XContentParser.Token.START_OBJECT;
-                // Move to FIELD_NAME, that's the move
-                token = parser.nextToken();
-                assert token == XContentParser.Token.FIELD_NAME;
-                String action = parser.currentName();
-
-                String index = defaultIndex;
-                String type = defaultType;
-                String id = null;
-                String routing = null;
-                String parent = null;
-                String timestamp = null;
-                Long ttl = null;
-                String opType = null;
-                long version = 0;
-                VersionType versionType = VersionType.INTERNAL;
-
-                // at this stage, next token can either be END_OBJECT (and use default index and type, with auto generated id)
-                // or START_OBJECT which will have another set of parameters
-
-                String currentFieldName = null;
-                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
-                    if (token == XContentParser.Token.FIELD_NAME) {
-                        currentFieldName = parser.currentName();
-                    } else if (token.isValue()) {
-                        if ("_index".equals(currentFieldName)) {
-                            index = parser.text();
-                        } else if ("_type".equals(currentFieldName)) {
-                            type = parser.text();
-                        } else if ("_id".equals(currentFieldName)) {
-                            id = parser.text();
-                        } else if ("_routing".equals(currentFieldName) || "routing".equals(currentFieldName)) {
-                            routing = parser.text();
-                        } else if ("_parent".equals(currentFieldName) || "parent".equals(currentFieldName)) {
-                            parent = parser.text();
-                        } else if ("_timestamp".equals(currentFieldName) || "timestamp".equals(currentFieldName)) {
-                            timestamp = parser.text();
-                        } else if ("_ttl".equals(currentFieldName) || "ttl".equals(currentFieldName)) {
-                            if (parser.currentToken() == XContentParser.Token.VALUE_STRING) {
-                                ttl = TimeValue.parseTimeValue(parser.text(), null).millis();
-                            } else {
-                                ttl = parser.longValue();
-                            }
-                        } else if ("op_type".equals(currentFieldName) || "opType".equals(currentFieldName)) {
-                            opType = parser.text();
-                        } else if ("_version".equals(currentFieldName) || "version".equals(currentFieldName)) {
-                            version = parser.longValue();
-                        } else if ("_version_type".equals(currentFieldName) || "_versionType".equals(currentFieldName) || "version_type".equals(currentFieldName) || "versionType".equals(currentFieldName)) {
-                            versionType = VersionType.fromString(parser.text());
-                        }
-                    }
-                }
-
-                if ("delete".equals(action)) {
-                    add(new DeleteRequest(index, type, id).parent(parent).version(version).versionType(versionType).routing(routing));
-                } else {
-                    nextMarker = findNextMarker(marker, from, data, length);
-                    if (nextMarker == -1) {
-                        break;
-                    }
-                    // order is important, we set parent after routing, so routing will be set to parent if not set explicitly
-                    // we use internalAdd so we don't fork here, this allows us not to copy over the big byte array to small chunks
-                    // of index request. All index requests are still unsafe if applicable.
-                    if ("index".equals(action)) {
-                        if (opType == null) {
-                            internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).timestamp(timestamp).ttl(ttl).version(version).versionType(versionType)
-                                    .source(data.slice(from, nextMarker - from), contentUnsafe));
-                        } else {
-                            internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).timestamp(timestamp).ttl(ttl).version(version).versionType(versionType)
-                                    .create("create".equals(opType))
-                                    .source(data.slice(from, nextMarker - from), contentUnsafe));
-                        }
-                    } else if ("create".equals(action)) {
-                        internalAdd(new IndexRequest(index, type, id).routing(routing).parent(parent).timestamp(timestamp).ttl(ttl).version(version).versionType(versionType)
-                                .create(true)
-                                .source(data.slice(from, nextMarker - from), contentUnsafe));
-                    }
-                    // move pointers
-                    from = nextMarker + 1;
-                }
-            } finally {
-                parser.close();
-            }
-        }
+        new IngestFramer(data).frame(this, contentUnsafe, defaultIndex, defaultType);
         return this;
     }
 
@@ -288,25 +197,37 @@ public class IngestRequest extends ActionRequest {
         return this.timeout;
     }
 
+    /**
+     * Set the wire encoding for this request.
+     */
+    public IngestRequest encoding(IngestEncoding encoding) {
+        this.encoding = encoding;
+        return this;
+    }
+
+    public IngestEncoding encoding() {
+        return this.encoding;
+    }
+
+    /**
+     * Set if actions replaced by a later action of this request on the same document are left out.
+     */
+    public IngestRequest collapseDuplicates(boolean collapseDuplicates) {
+        this.collapseDuplicates = collapseDuplicates;
+        return this;
+    }
+
+    public boolean collapseDuplicates() {
+        return this.collapseDuplicates;
+    }
+
     /**
      * Take all requests from queue. This method is thread safe.
      *
      * @return a bulk request
      */
     public IngestRequest takeAll() {
-        IngestRequest request = new IngestRequest();
-        while (!requests.isEmpty()) {
-            ActionRequest actionRequest = requests.poll();
-            request.add(actionRequest);
-            if (actionRequest instanceof IndexRequest) {
-                IndexRequest indexRequest = (IndexRequest) actionRequest;
-                long length = indexRequest.source() != null ? indexRequest.source().length() + REQUEST_OVERHEAD : REQUEST_OVERHEAD;
-                sizeInBytes.addAndGet(-length);
-            } else if (actionRequest instanceof DeleteRequest) {
-                sizeInBytes.addAndGet(REQUEST_OVERHEAD);
-            }
-        }
-        return request;
+        return newRequest(requests.takeAll());
     }
 
     /**
@@ -318,28 +239,21 @@ public class IngestRequest extends ActionRequest {
      * @return a partial bulk request
      */
     public IngestRequest take(int numRequests) {
-        IngestRequest request = new IngestRequest();
-        for (int i = 0; i < numRequests; i++) {
-            ActionRequest actionRequest = requests.poll();
-            request.add(actionRequest);
-            if (actionRequest instanceof IndexRequest) {
-                IndexRequest indexRequest = (IndexRequest) actionRequest;
-                long length = indexRequest.source() != null ? indexRequest.source().length() + REQUEST_OVERHEAD : REQUEST_OVERHEAD;
-                sizeInBytes.addAndGet(-length);
-            } else if (actionRequest instanceof DeleteRequest) {
-                sizeInBytes.addAndGet(REQUEST_OVERHEAD);
-            }
-        }
-        return request;
+        return newRequest(requests.take(numRequests));
     }
 
-    private int findNextMarker(byte marker, int from, BytesReference data, int length) {
-        for (int i = from; i < length; i++) {
-            if (data.get(i) == marker) {
-                return i;
-            }
-        }
-        return -1;
+    /**
+     * A request with the actions of a buffer and the settings of this request.
+     */
+    IngestRequest newRequest(ActionBuffer buffer) {
+        IngestRequest request = new IngestRequest(buffer);
+        request.replicationType = replicationType;
+        request.consistencyLevel = consistencyLevel;
+        request.timeout = timeout;
+        request.encoding = encoding;
+        request.collapseDuplicates = collapseDuplicates;
+        request.listenerThreaded(listenerThreaded());
+        return request;
     }
 
     @Override
@@ -362,29 +276,61 @@ public class IngestRequest extends ActionRequest {
 
     @Override
     public void readFrom(StreamInput in) throws IOException {
-        replicationType = ReplicationType.fromId(in.readByte());
+        byte b = in.readByte();
+        encoding = IngestEncoding.PLAIN;
+        collapseDuplicates = false;
+        if (b == IngestEncoding.HEADER) {
+            encoding = IngestEncoding.fromId(in.readByte());
+            byte flags = in.readByte();
+            if ((flags & ~IngestEncoding.COLLAPSE_DUPLICATES) != 0) {
+                throw new ElasticsearchIllegalArgumentException("unknown ingest request flags [" + flags + "]");
+            }
+            collapseDuplicates = (flags & IngestEncoding.COLLAPSE_DUPLICATES) != 0;
+            b = in.readByte();
+        }
+        replicationType = ReplicationType.fromId(b);
         consistencyLevel = WriteConsistencyLevel.fromId(in.readByte());
         timeout = TimeValue.readTimeValue(in);
+        if (encoding != IngestEncoding.PLAIN) {
+            for (ActionRequest request : CompactActionCodec.read(in, false).actions) {
+                add(request);
+            }
+            return;
+        }
         int size = in.readVInt();
         for (int i = 0; i < size; i++) {
             byte type = in.readByte();
             if (type == 0) {
                 IndexRequest request = new IndexRequest();
                 request.readFrom(in);
-                requests.add(request);
+                internalAdd(request);
             } else if (type == 1) {
                 DeleteRequest request = new DeleteRequest();
                 request.readFrom(in);
-                requests.add(request);
+                add(request);
             }
         }
     }
 
     @Override
     public void writeTo(StreamOutput out) throws IOException {
+        if (encoding != IngestEncoding.PLAIN || collapseDuplicates) {
+            // an earlier version fails on the header, it is not a replication type
+            out.writeByte(IngestEncoding.HEADER);
+            out.writeByte(encoding.id());
+            out.writeByte(collapseDuplicates ? IngestEncoding.COLLAPSE_DUPLICATES : 0);
+        }
         out.writeByte(replicationType.id());
         out.writeByte(consistencyLevel.id());
         timeout.writeTo(out);
+        if (encoding != IngestEncoding.PLAIN) {
+            List<ActionRequest> actions = newArrayListWithCapacity(requests.size());
+            for (ActionRequest request : requests) {
+                actions.add(request);
+            }
+            CompactActionCodec.write(out, encoding, actions, null);
+            return;
+        }
         out.writeVInt(requests.size());
         for (ActionRequest request : requests) {
             if (request instanceof IndexRequest) {
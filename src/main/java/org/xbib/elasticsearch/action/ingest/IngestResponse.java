@@ -4,6 +4,7 @@ import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
 
 import java.io.IOException;
 import java.util.List;
@@ -18,13 +19,25 @@ public class IngestResponse extends ActionResponse {
 
     private long tookInMillis;
 
+    private int[] collapsed;
+
+    private int queueSize;
+
+    private long inFlightBytes;
+
     public IngestResponse() {
         this.failure = newLinkedList();
+        this.collapsed = new int[0];
     }
 
     public IngestResponse(int successSize, List<IngestItemFailure> failure, long tookInMillis) {
+        this(successSize, failure, new int[0], tookInMillis);
+    }
+
+    public IngestResponse(int successSize, List<IngestItemFailure> failure, int[] collapsed, long tookInMillis) {
         this.successSize = successSize;
         this.failure = failure;
+        this.collapsed = collapsed;
         this.tookInMillis = tookInMillis;
     }
 
@@ -40,6 +53,48 @@ public class IngestResponse extends ActionResponse {
         return failure;
     }
 
+    /**
+     * The number of actions that were not executed because a later action
+     * of the same request on the same document replaces them.
+     */
+    public int collapsedSize() {
+        return collapsed.length;
+    }
+
+    /**
+     * The positions of the collapsed actions in the request.
+     */
+    public int[] collapsed() {
+        return collapsed;
+    }
+
+    /**
+     * Set the load of the node that executed the request.
+     *
+     * @param queueSize     the number of tasks in the bulk queue of the node
+     * @param inFlightBytes the estimated size of the ingest requests in flight on the node
+     * @return this response
+     */
+    public IngestResponse load(int queueSize, long inFlightBytes) {
+        this.queueSize = queueSize;
+        this.inFlightBytes = inFlightBytes;
+        return this;
+    }
+
+    /**
+     * The number of tasks waiting in the bulk queue of the node that executed the request.
+     */
+    public int queueSize() {
+        return queueSize;
+    }
+
+    /**
+     * The estimated size in bytes of the ingest requests in flight on the node that executed the request.
+     */
+    public long inFlightBytes() {
+        return inFlightBytes;
+    }
+
     /**
      * How long the bulk execution took.
      */
@@ -90,9 +145,17 @@ public class IngestResponse extends ActionResponse {
         failure = newLinkedList();
         int size = in.readVInt();
         for (int i = 0; i < size; i++) {
-            failure.add(new IngestItemFailure(in.readVInt(), in.readString()));
+            failure.add(new IngestItemFailure(in.readVInt(), in.readString(), RestStatus.readFrom(in)));
         }
         tookInMillis = in.readVLong();
+        collapsed = new int[in.readVInt()];
+        int pos = 0;
+        for (int i = 0; i < collapsed.length; i++) {
+            pos += in.readVInt();
+            collapsed[i] = pos;
+        }
+        queueSize = in.readVInt();
+        inFlightBytes = in.readVLong();
     }
 
     @Override
@@ -102,7 +165,17 @@ public class IngestResponse extends ActionResponse {
         for (IngestItemFailure f : failure) {
             out.writeVInt(f.pos());
             out.writeString(f.message());
+            RestStatus.writeTo(out, f.status());
         }
         out.writeVLong(tookInMillis);
+        // the positions are in ascending order, write the deltas
+        out.writeVInt(collapsed.length);
+        int pos = 0;
+        for (int c : collapsed) {
+            out.writeVInt(c - pos);
+            pos = c;
+        }
+        out.writeVInt(queueSize);
+        out.writeVLong(inFlightBytes);
     }
 }
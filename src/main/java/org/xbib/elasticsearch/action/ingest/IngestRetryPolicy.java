@@ -0,0 +1,146 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.NoShardAvailableActionException;
+import org.elasticsearch.action.UnavailableShardsException;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.ConnectTransportException;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A retry policy for the failed actions of an ingest processor.
+ * <p/>
+ * Rejections, timeouts, unavailable shards and lost connections are retriable, all other failures
+ * are permanent. A failed action is classified by its status, a failed request by its exception. A retriable action is retried after an exponential backoff with jitter, up to
+ * the maximum number of retries, the backoff after the n-th failure is a random time between
+ * half and all of the initial backoff times 2^(n-1), at most the maximum backoff.
+ * The attempts are counted per action, until the action succeeds or fails permanently.
+ */
+public class IngestRetryPolicy {
+
+    private final int maxRetries;
+
+    private final long initialBackoffMillis;
+
+    private final long maxBackoffMillis;
+
+    private final Random random = new Random();
+
+    private final Map<ActionRequest, Integer> attempts = new IdentityHashMap<ActionRequest, Integer>();
+
+    public IngestRetryPolicy(int maxRetries, TimeValue initialBackoff, TimeValue maxBackoff) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = Math.max(1L, initialBackoff.millis());
+        this.maxBackoffMillis = Math.max(initialBackoffMillis, maxBackoff.millis());
+    }
+
+    public int maxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * If the failure of an action is retriable, by its status.
+     *
+     * @param failure the failure of the action
+     * @return true if retriable
+     */
+    public boolean isRetriable(IngestItemFailure failure) {
+        return isRetriable(failure.status());
+    }
+
+    /**
+     * If a status is retriable. A rejection or an unavailable shard or node is an unavailable
+     * service, a timeout is a request or gateway timeout.
+     *
+     * @param status the status
+     * @return true if retriable
+     */
+    public boolean isRetriable(RestStatus status) {
+        return status == RestStatus.SERVICE_UNAVAILABLE
+                || status == RestStatus.REQUEST_TIMEOUT
+                || status == RestStatus.GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * If the failure of a request is retriable.
+     *
+     * @param failure the failure
+     * @return true if retriable
+     */
+    public boolean isRetriable(Throwable failure) {
+        Throwable cause = ExceptionsHelper.unwrapCause(failure);
+        return cause instanceof EsRejectedExecutionException
+                || cause instanceof IngestRejectedException
+                || cause instanceof UnavailableShardsException
+                || cause instanceof NoShardAvailableActionException
+                || cause instanceof NoNodeAvailableException
+                || cause instanceof ConnectTransportException
+                || cause instanceof ElasticsearchTimeoutException;
+    }
+
+    /**
+     * Count a failed attempt of an action.
+     *
+     * @param request the action
+     * @return the number of failed attempts, or 0 if the action is not to be retried again,
+     * then it is forgotten
+     */
+    public synchronized int failed(ActionRequest request) {
+        Integer n = attempts.get(request);
+        int attempt = n != null ? n + 1 : 1;
+        if (attempt > maxRetries) {
+            attempts.remove(request);
+            return 0;
+        }
+        attempts.put(request, attempt);
+        return attempt;
+    }
+
+    /**
+     * Forget the attempts of the actions of an answered request that are not retried.
+     *
+     * @param request the request
+     * @param retried the positions of the retried actions, or null if none are retried
+     */
+    public synchronized void done(IngestRequest request, boolean[] retried) {
+        if (attempts.isEmpty()) {
+            return;
+        }
+        int pos = 0;
+        for (ActionRequest action : request.requests()) {
+            if (retried == null || !retried[pos]) {
+                attempts.remove(action);
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * The backoff before the next attempt.
+     *
+     * @param attempt the number of failed attempts, at least 1
+     * @return the backoff in milliseconds
+     */
+    public long backoff(int attempt) {
+        long backoff = initialBackoffMillis << Math.min(attempt - 1, 30);
+        if (backoff <= 0L || backoff > maxBackoffMillis) {
+            backoff = maxBackoffMillis;
+        }
+        return backoff - (long) (random.nextDouble() * (backoff / 2));
+    }
+
+    /**
+     * The number of actions with failed attempts that are not forgotten.
+     */
+    public synchronized int size() {
+        return attempts.size();
+    }
+}
@@ -0,0 +1,316 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.cluster.routing.operation.OperationRouting;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Lists.newArrayListWithCapacity;
+import static org.elasticsearch.common.collect.Lists.newLinkedList;
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+
+/**
+ * Plans the shard requests of an ingest request in a single pass.
+ * <p/>
+ * Index, alias and mapping metadata is resolved once per distinct index and type of a batch,
+ * and the items are collected in one array list per shard.
+ */
+public class IngestRoutingPlanner {
+
+    private final OperationRouting operationRouting;
+
+    private final boolean allowIdGeneration;
+
+    public IngestRoutingPlanner(OperationRouting operationRouting, boolean allowIdGeneration) {
+        this.operationRouting = operationRouting;
+        this.allowIdGeneration = allowIdGeneration;
+    }
+
+    /**
+     * Plan the shard requests.
+     *
+     * @param clusterState the cluster state
+     * @param requests     the requests of the ingest request
+     * @return the plan
+     */
+    public Plan plan(ClusterState clusterState, Iterable<ActionRequest> requests) {
+        return plan(clusterState, requests, false);
+    }
+
+    /**
+     * Plan the shard requests.
+     * <p/>
+     * If duplicates are collapsed, an action is left out if a later action of the request on the same
+     * index, type, id and routing replaces the document regardless of its state, that is an index action
+     * or a delete action without a version. The positions of the remaining actions are not changed.
+     * Note that the document version then counts only the remaining actions. An action left out is
+     * done when the action that replaces it succeeds, and fails when it fails, see
+     * {@link Plan#collapsed(List)}.
+     *
+     * @param clusterState       the cluster state
+     * @param requests           the requests of the ingest request
+     * @param collapseDuplicates true if duplicates should be collapsed
+     * @return the plan
+     */
+    public Plan plan(ClusterState clusterState, Iterable<ActionRequest> requests, boolean collapseDuplicates) {
+        long t0 = System.nanoTime();
+        MetaData metaData = clusterState.metaData();
+        Map<String, IndexInfo> indices = newHashMap();
+        Map<String, Integer> lastPositions = collapseDuplicates ? new HashMap<String, Integer>() : null;
+        Plan plan = new Plan();
+        IndexInfo last = null;
+        int i = 0;
+        for (ActionRequest request : requests) {
+            if (request instanceof IndexRequest) {
+                IndexRequest indexRequest = (IndexRequest) request;
+                String aliasOrIndex = indexRequest.index();
+                if (last == null || !last.aliasOrIndex.equals(aliasOrIndex)) {
+                    // this can throw IndexMissingException
+                    last = indexInfo(metaData, indices, aliasOrIndex);
+                }
+                indexRequest.index(last.concreteIndex);
+                try {
+                    indexRequest.process(metaData, aliasOrIndex, last.mapping(indexRequest.type()), allowIdGeneration);
+                    ShardId shardId = operationRouting.indexShards(clusterState, indexRequest.index(), indexRequest.type(),
+                            indexRequest.id(), indexRequest.routing()).shardId();
+                    plan.add(shardId, new IngestItemRequest(i, request));
+                    if (lastPositions != null) {
+                        collapse(plan, lastPositions, i, indexRequest.index(), indexRequest.type(), indexRequest.id(),
+                                indexRequest.routing(), indexRequest.opType() == IndexRequest.OpType.INDEX
+                                        && indexRequest.version() == Versions.MATCH_ANY);
+                    }
+                } catch (ElasticsearchParseException e) {
+                    // error in request
+                    plan.failure.add(new IngestItemFailure(i, e.getMessage(), e.status()));
+                }
+            } else if (request instanceof DeleteRequest) {
+                DeleteRequest deleteRequest = (DeleteRequest) request;
+                String aliasOrIndex = deleteRequest.index();
+                if (last == null || !last.aliasOrIndex.equals(aliasOrIndex)) {
+                    last = indexInfo(metaData, indices, aliasOrIndex);
+                }
+                deleteRequest.routing(deleteRequest.routing() == null ? last.routing :
+                        metaData.resolveIndexRouting(deleteRequest.routing(), aliasOrIndex));
+                deleteRequest.index(last.concreteIndex);
+                MappingMetaData mappingMd = last.mapping(deleteRequest.type());
+                if (mappingMd != null && mappingMd.routing().required() && deleteRequest.routing() == null) {
+                    // if routing is required, and no routing on the delete request, we need to broadcast it....
+                    if (last.broadcastShards == null) {
+                        last.broadcastShards = operationRouting.broadcastDeleteShards(clusterState, deleteRequest.index());
+                    }
+                    for (ShardIterator shardIt : last.broadcastShards) {
+                        plan.add(shardIt.shardId(), new IngestItemRequest(i, deleteRequest));
+                    }
+                } else {
+                    ShardId shardId = operationRouting.deleteShards(clusterState, deleteRequest.index(), deleteRequest.type(),
+                            deleteRequest.id(), deleteRequest.routing()).shardId();
+                    plan.add(shardId, new IngestItemRequest(i, request));
+                }
+                if (lastPositions != null) {
+                    collapse(plan, lastPositions, i, deleteRequest.index(), deleteRequest.type(), deleteRequest.id(),
+                            deleteRequest.routing(), deleteRequest.version() == Versions.MATCH_ANY);
+                }
+            }
+            i++;
+        }
+        if (plan.collapsed != null) {
+            plan.removeCollapsed();
+        }
+        plan.numberOfIndices = indices.size();
+        plan.planNanos = System.nanoTime() - t0;
+        return plan;
+    }
+
+    private void collapse(Plan plan, Map<String, Integer> lastPositions, int pos,
+                          String index, String type, String id, String routing, boolean replaces) {
+        if (id == null) {
+            return;
+        }
+        String key = index + '\u0000' + type + '\u0000' + id + '\u0000' + (routing != null ? routing : "");
+        Integer previous = lastPositions.put(key, pos);
+        if (previous != null && replaces) {
+            if (plan.collapsed == null) {
+                plan.collapsed = new BitSet();
+                plan.replacedBy = newHashMap();
+            }
+            plan.collapsed.set(previous);
+            plan.replacedBy.put(previous, pos);
+        }
+    }
+
+    private IndexInfo indexInfo(MetaData metaData, Map<String, IndexInfo> indices, String aliasOrIndex) {
+        IndexInfo info = indices.get(aliasOrIndex);
+        if (info == null) {
+            info = new IndexInfo(aliasOrIndex, metaData.concreteSingleIndex(aliasOrIndex));
+            info.indexMetaData = metaData.index(info.concreteIndex);
+            info.routing = metaData.resolveIndexRouting(null, aliasOrIndex);
+            indices.put(aliasOrIndex, info);
+        }
+        return info;
+    }
+
+    /**
+     * The items per shard and the failures found while planning.
+     */
+    public static class Plan {
+
+        private final Map<ShardId, List<IngestItemRequest>> requestsByShard = newHashMap();
+
+        private final List<IngestItemFailure> failure = newLinkedList();
+
+        private int numberOfIndices;
+
+        private long planNanos;
+
+        private BitSet collapsed;
+
+        private Map<Integer, Integer> replacedBy;
+
+        private void add(ShardId shardId, IngestItemRequest item) {
+            List<IngestItemRequest> list = requestsByShard.get(shardId);
+            if (list == null) {
+                list = newArrayList();
+                requestsByShard.put(shardId, list);
+            }
+            list.add(item);
+        }
+
+        private void removeCollapsed() {
+            Iterator<Map.Entry<ShardId, List<IngestItemRequest>>> it = requestsByShard.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<ShardId, List<IngestItemRequest>> entry = it.next();
+                List<IngestItemRequest> items = newArrayListWithCapacity(entry.getValue().size());
+                for (IngestItemRequest item : entry.getValue()) {
+                    if (!collapsed.get(item.id())) {
+                        items.add(item);
+                    }
+                }
+                if (items.isEmpty()) {
+                    it.remove();
+                } else {
+                    entry.setValue(items);
+                }
+            }
+        }
+
+        public Map<ShardId, List<IngestItemRequest>> requestsByShard() {
+            return requestsByShard;
+        }
+
+        public List<IngestItemFailure> failure() {
+            return failure;
+        }
+
+        /**
+         * The number of distinct indices or aliases in the plan.
+         */
+        public int numberOfIndices() {
+            return numberOfIndices;
+        }
+
+        /**
+         * The positions of the actions left out because a later action replaces them.
+         */
+        public int[] collapsed() {
+            if (collapsed == null) {
+                return new int[0];
+            }
+            int[] positions = new int[collapsed.cardinality()];
+            int n = 0;
+            for (int pos = collapsed.nextSetBit(0); pos >= 0; pos = collapsed.nextSetBit(pos + 1)) {
+                positions[n++] = pos;
+            }
+            return positions;
+        }
+
+        /**
+         * The positions of the actions left out that are done, because the action that finally
+         * replaces them succeeded. An action left out whose replacing action failed gets the
+         * failure of the replacing action instead.
+         *
+         * @param failure the failures of the request, the failures of the actions left out are added
+         * @return the positions
+         */
+        public int[] collapsed(List<IngestItemFailure> failure) {
+            if (collapsed == null) {
+                return new int[0];
+            }
+            Map<Integer, IngestItemFailure> failed = newHashMap();
+            for (IngestItemFailure f : failure) {
+                failed.put(f.pos(), f);
+            }
+            int[] positions = new int[collapsed.cardinality()];
+            int n = 0;
+            for (int pos = collapsed.nextSetBit(0); pos >= 0; pos = collapsed.nextSetBit(pos + 1)) {
+                int survivor = pos;
+                while (collapsed.get(survivor)) {
+                    survivor = replacedBy.get(survivor);
+                }
+                IngestItemFailure f = failed.get(survivor);
+                if (f != null) {
+                    failure.add(new IngestItemFailure(pos, "replaced by [" + survivor + "], which failed: " + f.message(),
+                            f.status()));
+                } else {
+                    positions[n++] = pos;
+                }
+            }
+            return n < positions.length ? Arrays.copyOf(positions, n) : positions;
+        }
+
+        /**
+         * The time used for planning in nanoseconds.
+         */
+        public long planNanos() {
+            return planNanos;
+        }
+    }
+
+    private static class IndexInfo {
+
+        final String aliasOrIndex;
+
+        final String concreteIndex;
+
+        final Map<String, MappingMetaData> mappings = newHashMap();
+
+        IndexMetaData indexMetaData;
+
+        String routing;
+
+        GroupShardsIterator broadcastShards;
+
+        IndexInfo(String aliasOrIndex, String concreteIndex) {
+            this.aliasOrIndex = aliasOrIndex;
+            this.concreteIndex = concreteIndex;
+        }
+
+        MappingMetaData mapping(String type) {
+            if (indexMetaData == null) {
+                return null;
+            }
+            MappingMetaData mappingMd = mappings.get(type);
+            if (mappingMd == null && !mappings.containsKey(type)) {
+                mappingMd = indexMetaData.mappingOrDefault(type);
+                mappings.put(type, mappingMd);
+            }
+            return mappingMd;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.xbib.elasticsearch.action.ingest;
 
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.support.replication.ShardReplicationOperationRequest;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
@@ -7,7 +8,7 @@ import org.elasticsearch.common.io.stream.StreamOutput;
 import java.io.IOException;
 import java.util.List;
 
-import static org.elasticsearch.common.collect.Lists.newLinkedList;
+import static org.elasticsearch.common.collect.Lists.newArrayListWithCapacity;
 
 public class IngestShardRequest extends ShardReplicationOperationRequest<IngestShardRequest> {
 
@@ -15,6 +16,8 @@ public class IngestShardRequest extends ShardReplicationOperationRequest<IngestS
 
     private List<IngestItemRequest> items;
 
+    private IngestEncoding encoding = IngestEncoding.PLAIN;
+
     public IngestShardRequest() {
     }
 
@@ -32,6 +35,19 @@ public class IngestShardRequest extends ShardReplicationOperationRequest<IngestS
         return items;
     }
 
+    /**
+     * Set the wire encoding for this request. A request read from the wire keeps the encoding
+     * it was read with, so it is passed on to the replicas in the same encoding.
+     */
+    public IngestShardRequest encoding(IngestEncoding encoding) {
+        this.encoding = encoding;
+        return this;
+    }
+
+    public IngestEncoding encoding() {
+        return encoding;
+    }
+
     /**
      * Before we fork on a local thread, make sure we copy over the bytes if they are unsafe
      */
@@ -46,6 +62,25 @@ public class IngestShardRequest extends ShardReplicationOperationRequest<IngestS
     public void writeTo(StreamOutput out) throws IOException {
         super.writeTo(out);
         out.writeVInt(shardId);
+        if (encoding != IngestEncoding.PLAIN) {
+            // one item with the header as action type, an earlier version fails on it
+            out.writeVInt(1);
+            out.writeBoolean(true);
+            out.writeVInt(0);
+            out.writeByte(IngestEncoding.HEADER);
+            out.writeByte(encoding.id());
+            // failed items are nulled out by the primary, leave them out
+            List<ActionRequest> actions = newArrayListWithCapacity(items.size());
+            int[] positions = new int[items.size()];
+            for (IngestItemRequest item : items) {
+                if (item != null) {
+                    positions[actions.size()] = item.id();
+                    actions.add(item.request());
+                }
+            }
+            CompactActionCodec.write(out, encoding, actions, positions);
+            return;
+        }
         out.writeVInt(items.size());
         for (IngestItemRequest item : items) {
             if (item != null) {
@@ -62,10 +97,22 @@ public class IngestShardRequest extends ShardReplicationOperationRequest<IngestS
         super.readFrom(in);
         shardId = in.readVInt();
         int size = in.readVInt();
-        items = newLinkedList();
+        encoding = IngestEncoding.PLAIN;
+        items = newArrayListWithCapacity(size);
         for (int i = 0; i < size; i++) {
             if (in.readBoolean()) {
-                items.add(IngestItemRequest.readBulkItem(in));
+                int id = in.readVInt();
+                byte type = in.readByte();
+                if (type == IngestEncoding.HEADER) {
+                    encoding = IngestEncoding.fromId(in.readByte());
+                    CompactActionCodec.Actions actions = CompactActionCodec.read(in, true);
+                    items = newArrayListWithCapacity(actions.actions.length);
+                    for (int j = 0; j < actions.actions.length; j++) {
+                        items.add(new IngestItemRequest(actions.positions[j], actions.actions[j]));
+                    }
+                    return;
+                }
+                items.add(IngestItemRequest.readBulkItem(id, type, in));
             }
         }
     }
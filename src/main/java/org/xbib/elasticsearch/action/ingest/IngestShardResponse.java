@@ -5,6 +5,7 @@ import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
 
 import java.io.IOException;
 import java.util.List;
@@ -44,10 +45,11 @@ public class IngestShardResponse extends ActionResponse {
         shardId = ShardId.readShardId(in);
         successSize = in.readVInt();
         failure = Lists.newLinkedList();
-        for (int i = 0; i < in.readVInt(); i++) {
+        int size = in.readVInt();
+        for (int i = 0; i < size; i++) {
             int pos = in.readVInt();
             String msg = in.readString();
-            failure.add(new IngestItemFailure(pos, msg));
+            failure.add(new IngestItemFailure(pos, msg, RestStatus.readFrom(in)));
         }
     }
 
@@ -59,6 +61,7 @@ public class IngestShardResponse extends ActionResponse {
         for (IngestItemFailure f : failure) {
             out.writeVInt(f.pos());
             out.writeString(f.message());
+            RestStatus.writeTo(out, f.status());
         }
     }
 }
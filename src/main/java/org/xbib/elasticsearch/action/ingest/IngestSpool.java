@@ -0,0 +1,328 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+
+/**
+ * A write-ahead spool for the actions of an ingest processor, in append-only segment files
+ * that are memory-mapped.
+ * <p/>
+ * An action is appended when it is added. A record is the length of the action, followed by the
+ * type and the serialized action, the length is written last, so an action torn by a crash is
+ * never read. An acknowledged action is marked in its record, so it is not read again. Memory-mapped
+ * writes are in the page cache of the operating system once they are written, so they survive the
+ * death of the JVM, but not of the operating system. A segment is deleted when all its actions are
+ * acknowledged and no more actions are appended to it. The actions of failed requests are released,
+ * they are forgotten by the spool but stay in their segment, so they are read with the next run.
+ * <p/>
+ * Segments left by an earlier run are the unacknowledged actions of that run. They are read
+ * sequentially from the mapped file, and should be deleted after their actions are spooled again.
+ */
+public class IngestSpool {
+
+    private static final String PREFIX = "spool-";
+
+    private static final String SUFFIX = ".log";
+
+    private static final byte INDEX = 0;
+
+    private static final byte DELETE = 1;
+
+    private static final byte ACKNOWLEDGED = 2;
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final List<File> recovered;
+
+    private final Map<ActionRequest, Record> pending = new IdentityHashMap<ActionRequest, Record>();
+
+    private long nextId;
+
+    private Segment current;
+
+    private boolean closed;
+
+    public IngestSpool(File directory, ByteSizeValue segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can not create spool directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = (int) Math.min(Math.max(segmentSize.bytes(), 4096L), Integer.MAX_VALUE);
+        this.recovered = newArrayList();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                long id = segmentId(file);
+                if (id >= 0L) {
+                    recovered.add(file);
+                    nextId = Math.max(nextId, id + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * The segment files left by an earlier run, in the order they were written.
+     */
+    public List<File> recovered() {
+        return recovered;
+    }
+
+    /**
+     * The number of actions that are not acknowledged.
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Append an action.
+     *
+     * @param request the index or delete request
+     * @throws IOException if the segment file can not be written
+     */
+    public void append(ActionRequest request) throws IOException {
+        // serialize outside of the lock, only the copy into the segment is serialized
+        BytesStreamOutput out = new BytesStreamOutput();
+        if (request instanceof IndexRequest) {
+            out.writeByte(INDEX);
+        } else if (request instanceof DeleteRequest) {
+            out.writeByte(DELETE);
+        } else {
+            throw new ElasticsearchIllegalArgumentException("no support for request [" + request + "]");
+        }
+        request.writeTo(out);
+        // the output is paged, large actions span more than one page
+        BytesArray bytes = out.bytes().toBytesArray();
+        int length = bytes.length();
+        synchronized (this) {
+            if (closed) {
+                throw new ElasticsearchIllegalStateException("spool already closed");
+            }
+            if (current == null || current.buffer.remaining() < length + 8) {
+                roll(length + 8);
+            }
+            MappedByteBuffer buffer = current.buffer;
+            int position = buffer.position();
+            buffer.position(position + 4);
+            buffer.put(bytes.array(), bytes.arrayOffset(), length);
+            buffer.putInt(position, length);
+            current.actions++;
+            pending.put(request, new Record(current, position));
+        }
+    }
+
+    /**
+     * Acknowledge the actions of a request. Segments with all actions acknowledged are deleted,
+     * except the segment actions are appended to.
+     *
+     * @param request the request
+     */
+    public synchronized void acknowledge(IngestRequest request) {
+        for (ActionRequest action : request.requests()) {
+            acknowledge(action);
+        }
+    }
+
+    /**
+     * Acknowledge an action.
+     *
+     * @param action the action
+     */
+    public synchronized void acknowledge(ActionRequest action) {
+        Record record = pending.remove(action);
+        if (record == null) {
+            return;
+        }
+        Segment segment = record.segment;
+        if (--segment.actions == 0 && segment != current) {
+            segment.delete();
+        } else {
+            segment.buffer.put(record.position + 4, ACKNOWLEDGED);
+        }
+    }
+
+    /**
+     * Release the actions of a failed request. They are no longer tracked, but stay in their
+     * segment, which is kept for the next run.
+     *
+     * @param request the request
+     */
+    public synchronized void release(IngestRequest request) {
+        for (ActionRequest action : request.requests()) {
+            release(action);
+        }
+    }
+
+    /**
+     * Release a failed action.
+     *
+     * @param action the action
+     */
+    public synchronized void release(ActionRequest action) {
+        pending.remove(action);
+    }
+
+    /**
+     * Close the spool. The current segment is deleted if all its actions are acknowledged.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (current != null) {
+            if (current.actions == 0) {
+                current.delete();
+            } else {
+                current.close();
+            }
+            current = null;
+        }
+    }
+
+    /**
+     * Delete a recovered segment file, after its actions are spooled again.
+     *
+     * @param file the segment file
+     */
+    public synchronized void discard(File file) {
+        recovered.remove(file);
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Read the actions of a segment file sequentially from the mapped file, except the acknowledged
+     * actions. Reading stops at the first record that was not written completely. Each record is copied once from the mapping,
+     * the source of an index action shares the copy.
+     *
+     * @param file the segment file
+     * @return the actions
+     * @throws IOException if the file can not be read
+     */
+    public static List<ActionRequest> read(File file) throws IOException {
+        List<ActionRequest> actions = newArrayList();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                buffer.get(record);
+                BytesStreamInput in = new BytesStreamInput(record, false);
+                byte type = in.readByte();
+                if (type == INDEX) {
+                    IndexRequest request = new IndexRequest();
+                    request.readFrom(in);
+                    actions.add(request);
+                } else if (type == DELETE) {
+                    DeleteRequest request = new DeleteRequest();
+                    request.readFrom(in);
+                    actions.add(request);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return actions;
+    }
+
+    private void roll(int minSize) throws IOException {
+        Segment segment = current;
+        if (segment != null) {
+            segment.buffer.force();
+            if (segment.actions == 0) {
+                segment.delete();
+            } else {
+                segment.close();
+            }
+        }
+        File file = new File(directory, PREFIX + String.format("%019d", nextId++) + SUFFIX);
+        current = new Segment(file, Math.max(segmentSize, minSize));
+    }
+
+    private static long segmentId(File file) {
+        String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private static class Record {
+
+        final Segment segment;
+
+        final int position;
+
+        Record(Segment segment, int position) {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    private static class Segment {
+
+        final File file;
+
+        final RandomAccessFile raf;
+
+        final MappedByteBuffer buffer;
+
+        int actions;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // the mapping stays valid
+            }
+        }
+
+        void delete() {
+            close();
+            // a mapped file can not be deleted on every platform until the mapping is collected
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.action.ActionRequest;
+
+/**
+ * Staging buffers for actions added by many threads, striped by thread.
+ * <p/>
+ * A thread adds to the stripe selected by its thread id, so threads on different stripes
+ * never contend for a lock. When a stripe holds a batch of actions, the adding thread hands
+ * them over to the consumer as a whole, the consumer is then locked once per batch
+ * instead of once per action. Draining locks all stripes, so it sees every added action.
+ */
+public class StripedActionBuffer {
+
+    private final Stripe[] stripes;
+
+    private final int mask;
+
+    private boolean closed;
+
+    /**
+     * @param stripes the number of stripes, rounded up to a power of two
+     */
+    public StripedActionBuffer(int stripes) {
+        int n = 1;
+        while (n < stripes) {
+            n <<= 1;
+        }
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.mask = n - 1;
+    }
+
+    /**
+     * The number of stripes.
+     */
+    public int stripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Add an action to the stripe of the current thread. When the stripe reaches the batch size,
+     * its actions are handed over to the target, under the lock of the stripe.
+     *
+     * @param request   the action request
+     * @param bytes     the estimated size of the action in bytes
+     * @param batchSize the number of actions of a stripe to hand over
+     * @param target    the buffer to hand the actions over to
+     * @return true if the actions of the stripe were handed over
+     */
+    public boolean add(ActionRequest request, int bytes, int batchSize, ActionBuffer target) {
+        Stripe stripe = stripes[(int) Thread.currentThread().getId() & mask];
+        synchronized (stripe) {
+            if (closed) {
+                throw new ElasticsearchIllegalStateException("staging buffer closed");
+            }
+            stripe.add(request, bytes);
+            if (stripe.size() < batchSize) {
+                return false;
+            }
+            target.addAll(stripe.takeAll());
+            return true;
+        }
+    }
+
+    /**
+     * The number of actions in all stripes.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * Hand over the actions of all stripes to the target, in the order of the stripes.
+     * All stripes are locked at once, so no action is on its way to the target meanwhile.
+     *
+     * @param target the buffer to hand the actions over to
+     */
+    public void drainTo(ActionBuffer target) {
+        drainTo(0, target, false);
+    }
+
+    /**
+     * Hand over the actions of all stripes to the target, and refuse further actions.
+     *
+     * @param target the buffer to hand the actions over to
+     */
+    public void close(ActionBuffer target) {
+        drainTo(0, target, true);
+    }
+
+    private void drainTo(int i, ActionBuffer target, boolean close) {
+        if (i < stripes.length) {
+            synchronized (stripes[i]) {
+                drainTo(i + 1, target, close);
+            }
+            return;
+        }
+        for (Stripe stripe : stripes) {
+            if (!stripe.isEmpty()) {
+                target.addAll(stripe.takeAll());
+            }
+        }
+        if (close) {
+            closed = true;
+        }
+    }
+
+    /**
+     * A stripe, padded so that the counters of neighbouring stripes do not share a cache line.
+     */
+    private static class Stripe extends ActionBuffer {
+
+        @SuppressWarnings("unused")
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
@@ -1,6 +1,5 @@
 package org.xbib.elasticsearch.action.ingest;
 
-import org.elasticsearch.ElasticsearchParseException;
 import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
@@ -10,23 +9,30 @@ import org.elasticsearch.action.support.TransportAction;
 import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.block.ClusterBlockLevel;
-import org.elasticsearch.cluster.metadata.MappingMetaData;
-import org.elasticsearch.cluster.metadata.MetaData;
-import org.elasticsearch.cluster.routing.GroupShardsIterator;
-import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.ShardRouting;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.BaseTransportRequestHandler;
 import org.elasticsearch.transport.TransportChannel;
 import org.elasticsearch.transport.TransportService;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import static org.elasticsearch.common.collect.Lists.newLinkedList;
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Lists.newArrayListWithCapacity;
 import static org.elasticsearch.common.collect.Maps.newHashMap;
 
 /**
@@ -34,139 +40,420 @@ import static org.elasticsearch.common.collect.Maps.newHashMap;
  */
 public class TransportIngestAction extends TransportAction<IngestRequest, IngestResponse> {
 
-    private final boolean allowIdGeneration;
-
     private final ClusterService clusterService;
 
+    private final IngestRoutingPlanner routingPlanner;
+
     private final TransportShardIngestAction shardBulkAction;
 
+    private final TransportNodeIngestAction nodeIngestAction;
+
+    private final boolean coalesceByNode;
+
+    private final int maxShardActions;
+
+    private final long maxShardSizeInBytes;
+
+    private final int maxShardConcurrency;
+
+    private final IngestEncoding encoding;
+
+    private final IngestAdmissionController admissionController;
+
     @Inject
     public TransportIngestAction(Settings settings, ThreadPool threadPool, TransportService transportService, ClusterService clusterService,
-                                 TransportShardIngestAction shardBulkAction) {
+                                 TransportShardIngestAction shardBulkAction, TransportNodeIngestAction nodeIngestAction) {
         super(settings, threadPool);
         this.clusterService = clusterService;
         this.shardBulkAction = shardBulkAction;
-        this.allowIdGeneration = componentSettings.getAsBoolean("action.allow_id_generation", true);
+        this.nodeIngestAction = nodeIngestAction;
+        // send the shard requests for the primary shards on a node in a single node request
+        this.coalesceByNode = settings.getAsBoolean("action.ingest.coalesce_by_node", false);
+        // split the items of a shard into shard requests of bounded size, 0 means no limit
+        this.maxShardActions = settings.getAsInt("action.ingest.shard.max_actions", 0);
+        this.maxShardSizeInBytes = settings.getAsBytesSize("action.ingest.shard.max_size", new ByteSizeValue(0)).bytes();
+        // the number of shard requests of a shard in flight, the actions on a document are always in the same one
+        this.maxShardConcurrency = Math.max(1, settings.getAsInt("action.ingest.shard.concurrency", 1));
+        // the wire encoding of the shard requests
+        this.encoding = IngestEncoding.fromSettings(settings);
+        this.admissionController = new IngestAdmissionController(settings, threadPool);
+        this.routingPlanner = new IngestRoutingPlanner(clusterService.operationRouting(),
+                componentSettings.getAsBoolean("action.allow_id_generation", true));
         transportService.registerHandler(IngestAction.NAME, new IngestTransportHandler());
     }
 
     @Override
     protected void doExecute(final IngestRequest ingestRequest, final ActionListener<IngestResponse> listener) {
+        final long sizeInBytes = ingestRequest.estimatedSizeInBytes();
+        try {
+            admissionController.admit(sizeInBytes);
+        } catch (IngestRejectedException e) {
+            listener.onFailure(e);
+            return;
+        }
+        // release the admission once, and report the load of this node with the response
+        final AtomicBoolean released = new AtomicBoolean();
+        ActionListener<IngestResponse> admittedListener = new ActionListener<IngestResponse>() {
+            @Override
+            public void onResponse(IngestResponse response) {
+                if (released.compareAndSet(false, true)) {
+                    admissionController.release(sizeInBytes);
+                }
+                listener.onResponse(response.load(admissionController.queueSize(), admissionController.inFlightBytes()));
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                if (released.compareAndSet(false, true)) {
+                    admissionController.release(sizeInBytes);
+                }
+                listener.onFailure(e);
+            }
+        };
+        try {
+            executeAdmitted(ingestRequest, admittedListener);
+        } catch (Throwable e) {
+            admittedListener.onFailure(e);
+        }
+    }
+
+    private void executeAdmitted(final IngestRequest ingestRequest, final ActionListener<IngestResponse> listener) {
         final long startTime = System.currentTimeMillis();
-        final List<IngestItemFailure> failure = newLinkedList();
         ClusterState clusterState = clusterService.state();
         // TODO use timeout to wait here if its blocked...
         clusterState.blocks().globalBlockedRaiseException(ClusterBlockLevel.WRITE);
-        MetaData metaData = clusterState.metaData();
-        final List<ActionRequest> requests = newLinkedList();
-        // first, iterate over all requests and parse them for mapping, filter out erraneous requests
-        int i = 0;
-        for (ActionRequest request : ingestRequest.requests()) {
-            if (request instanceof IndexRequest) {
-                IndexRequest indexRequest = (IndexRequest) request;
-                String aliasOrIndex = indexRequest.index();
-                // this can throw IndexMissingException
-                indexRequest.index(clusterState.metaData().concreteSingleIndex(indexRequest.index()));
-                MappingMetaData mappingMd = null;
-                if (metaData.hasIndex(indexRequest.index())) {
-                    mappingMd = metaData.index(indexRequest.index()).mappingOrDefault(indexRequest.type());
-                }
-                try {
-                    indexRequest.process(metaData, aliasOrIndex, mappingMd, allowIdGeneration);
-                    requests.add(indexRequest);
-                } catch (ElasticsearchParseException e) {
-                    // error in request
-                    IngestItemFailure f = new IngestItemFailure(i, e.getMessage());
-                    failure.add(f);
-                }
-            } else if (request instanceof DeleteRequest) {
-                DeleteRequest deleteRequest = (DeleteRequest) request;
-                deleteRequest.routing(clusterState.metaData().resolveIndexRouting(deleteRequest.routing(), deleteRequest.index()));
-                deleteRequest.index(clusterState.metaData().concreteSingleIndex(deleteRequest.index()));
-                requests.add(deleteRequest);
-            }
-            i++;
-        }
-        // second, go over all the requests and create a ShardId -> Operations mapping
-        Map<ShardId, List<IngestItemRequest>> requestsByShard = newHashMap();
-        i = 0;
-        for (ActionRequest request : requests) {
-            if (request instanceof IndexRequest) {
-                IndexRequest indexRequest = (IndexRequest) request;
-                ShardId shardId = clusterService.operationRouting().indexShards(clusterState, indexRequest.index(), indexRequest.type(), indexRequest.id(), indexRequest.routing()).shardId();
-                List<IngestItemRequest> list = requestsByShard.get(shardId);
-                if (list == null) {
-                    list = newLinkedList();
-                    requestsByShard.put(shardId, list);
-                }
-                list.add(new IngestItemRequest(i, request));
-            } else if (request instanceof DeleteRequest) {
-                DeleteRequest deleteRequest = (DeleteRequest) request;
-                MappingMetaData mappingMd = clusterState.metaData().index(deleteRequest.index()).mappingOrDefault(deleteRequest.type());
-                if (mappingMd != null && mappingMd.routing().required() && deleteRequest.routing() == null) {
-                    // if routing is required, and no routing on the delete request, we need to broadcast it....
-                    GroupShardsIterator groupShards = clusterService.operationRouting().broadcastDeleteShards(clusterState, deleteRequest.index());
-                    for (ShardIterator shardIt : groupShards) {
-                        List<IngestItemRequest> list = requestsByShard.get(shardIt.shardId());
-                        if (list == null) {
-                            list = newLinkedList();
-                            requestsByShard.put(shardIt.shardId(), list);
-                        }
-                        list.add(new IngestItemRequest(i, deleteRequest));
-                    }
-                } else {
-                    ShardId shardId = clusterService.operationRouting().deleteShards(clusterState, deleteRequest.index(), deleteRequest.type(), deleteRequest.id(), deleteRequest.routing()).shardId();
-                    List<IngestItemRequest> list = requestsByShard.get(shardId);
-                    if (list == null) {
-                        list = newLinkedList();
-                        requestsByShard.put(shardId, list);
-                    }
-                    list.add(new IngestItemRequest(i, request));
+        // resolve indices and mappings, and group the requests by shard, in a single pass
+        IngestRoutingPlanner.Plan plan = routingPlanner.plan(clusterState, ingestRequest.requests(),
+                ingestRequest.collapseDuplicates());
+        Map<ShardId, List<IngestItemRequest>> requestsByShard = plan.requestsByShard();
+        if (requestsByShard.isEmpty()) {
+            List<IngestItemFailure> failure = plan.failure();
+            int[] collapsed = plan.collapsed(failure);
+            listener.onResponse(new IngestResponse(0, failure, collapsed, System.currentTimeMillis() - startTime));
+            return;
+        }
+        // split the items of the shards into shard requests of bounded size, in lanes
+        Map<ShardId, List<List<List<IngestItemRequest>>>> lanesByShard = newHashMap();
+        int numberOfRequests = 0;
+        for (Map.Entry<ShardId, List<IngestItemRequest>> entry : requestsByShard.entrySet()) {
+            List<List<List<IngestItemRequest>>> lanes = lanes(entry.getValue());
+            lanesByShard.put(entry.getKey(), lanes);
+            for (List<List<IngestItemRequest>> chunks : lanes) {
+                numberOfRequests += chunks.size();
+            }
+        }
+        final ResponseCollector collector = new ResponseCollector(ingestRequest, plan, numberOfRequests, startTime, listener);
+        for (Map.Entry<ShardId, List<List<List<IngestItemRequest>>>> entry : lanesByShard.entrySet()) {
+            List<List<List<IngestItemRequest>>> lanes = entry.getValue();
+            if (!isSingleRequest(lanes)) {
+                // execute the chunks of a lane one after another, the lanes in parallel
+                for (List<List<IngestItemRequest>> chunks : lanes) {
+                    new ShardChunks(ingestRequest, entry.getKey(), chunks, collector).next();
                 }
+            } else if (!coalesceByNode) {
+                executeShard(ingestRequest, entry.getKey(), lanes.get(0).get(0), collector, null);
             }
-            i++;
         }
-        if (requestsByShard.isEmpty()) {
-            listener.onResponse(new IngestResponse(0, failure, System.currentTimeMillis() - startTime));
+        if (!coalesceByNode) {
             return;
         }
-        final AtomicInteger successSize = new AtomicInteger(0);
-        // third, for each shard, execute bulk actions for the shard
-        final AtomicInteger counter = new AtomicInteger(requestsByShard.size());
-        for (Map.Entry<ShardId, List<IngestItemRequest>> entry : requestsByShard.entrySet()) {
-            final ShardId shardId = entry.getKey();
-            final List<IngestItemRequest> itemRequests = entry.getValue();
-            IngestShardRequest ingestShardRequest = new IngestShardRequest(shardId.index().name(), shardId.id(), itemRequests);
-            ingestShardRequest.replicationType(ingestRequest.replicationType());
-            ingestShardRequest.consistencyLevel(ingestRequest.consistencyLevel());
-            ingestShardRequest.timeout(ingestRequest.timeout());
-            shardBulkAction.execute(ingestShardRequest, new ActionListener<IngestShardResponse>() {
+        // group the shard requests by the node of the primary shard
+        Map<String, List<ShardId>> shardsByNode = newHashMap();
+        for (Map.Entry<ShardId, List<List<List<IngestItemRequest>>>> entry : lanesByShard.entrySet()) {
+            if (!isSingleRequest(entry.getValue())) {
+                continue;
+            }
+            ShardId shardId = entry.getKey();
+            String nodeId = primaryNodeId(clusterState, shardId);
+            if (nodeId == null) {
+                // let the shard action wait for the primary
+                executeShard(ingestRequest, shardId, requestsByShard.get(shardId), collector, null);
+                continue;
+            }
+            List<ShardId> shardIds = shardsByNode.get(nodeId);
+            if (shardIds == null) {
+                shardIds = newArrayList();
+                shardsByNode.put(nodeId, shardIds);
+            }
+            shardIds.add(shardId);
+        }
+        for (Map.Entry<String, List<ShardId>> entry : shardsByNode.entrySet()) {
+            List<ShardId> shardIds = entry.getValue();
+            if (shardIds.size() == 1) {
+                executeShard(ingestRequest, shardIds.get(0), requestsByShard.get(shardIds.get(0)), collector, null);
+                continue;
+            }
+            final List<List<IngestItemRequest>> itemRequests = newArrayListWithCapacity(shardIds.size());
+            IngestNodeRequest nodeRequest = new IngestNodeRequest();
+            for (ShardId shardId : shardIds) {
+                List<IngestItemRequest> items = requestsByShard.get(shardId);
+                itemRequests.add(items);
+                nodeRequest.add(newShardRequest(ingestRequest, shardId, items));
+            }
+            nodeIngestAction.execute(clusterState.nodes().get(entry.getKey()), nodeRequest, new ActionListener<IngestNodeResponse>() {
                 @Override
-                public void onResponse(IngestShardResponse ingestShardResponse) {
-                    successSize.addAndGet(ingestShardResponse.getSuccessSize());
-                    if (counter.decrementAndGet() == 0) {
-                        finishHim();
+                public void onResponse(IngestNodeResponse response) {
+                    for (int i = 0; i < response.size(); i++) {
+                        if (response.response(i) != null) {
+                            collector.onResponse(response.response(i));
+                        } else {
+                            collector.onFailure(itemRequests.get(i), response.failure(i), response.status(i));
+                        }
                     }
                 }
 
                 @Override
                 public void onFailure(Throwable e) {
-                    // create failures for all relevant requests
                     String message = ExceptionsHelper.detailedMessage(e);
-                    synchronized (failure) {
-                        for (IngestItemRequest request : itemRequests) {
-                            failure.add(new IngestItemFailure(request.id(), message));
-                        }
-                    }
-                    if (counter.decrementAndGet() == 0) {
-                        finishHim();
+                    RestStatus status = IngestItemFailure.status(e);
+                    for (List<IngestItemRequest> items : itemRequests) {
+                        collector.onFailure(items, message, status);
                     }
                 }
+            });
+        }
+    }
 
-                private void finishHim() {
-                    listener.onResponse(new IngestResponse(successSize.get(), failure, System.currentTimeMillis() - startTime));
+    private void executeShard(IngestRequest ingestRequest, ShardId shardId, final List<IngestItemRequest> itemRequests,
+                              final ResponseCollector collector, final ShardChunks chunks) {
+        shardBulkAction.execute(newShardRequest(ingestRequest, shardId, itemRequests), new ActionListener<IngestShardResponse>() {
+            @Override
+            public void onResponse(IngestShardResponse ingestShardResponse) {
+                collector.onResponse(ingestShardResponse);
+                if (chunks != null) {
+                    chunks.next();
                 }
-            });
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                collector.onFailure(itemRequests, ExceptionsHelper.detailedMessage(e), IngestItemFailure.status(e));
+                if (chunks != null) {
+                    chunks.next();
+                }
+            }
+        });
+    }
+
+    /**
+     * Split the items of a shard into chunks that do not exceed the maximum number of actions
+     * and the maximum size in bytes. A single item larger than the maximum size is a chunk of its own.
+     */
+    private List<List<IngestItemRequest>> split(List<IngestItemRequest> items) {
+        if ((maxShardActions <= 0 || items.size() <= maxShardActions) && maxShardSizeInBytes <= 0) {
+            return Collections.singletonList(items);
+        }
+        List<List<IngestItemRequest>> chunks = newArrayList();
+        int from = 0;
+        long sizeInBytes = 0L;
+        for (int i = 0; i < items.size(); i++) {
+            long itemSize = estimatedSizeInBytes(items.get(i));
+            boolean full = (maxShardActions > 0 && i - from >= maxShardActions)
+                    || (maxShardSizeInBytes > 0 && i > from && sizeInBytes + itemSize > maxShardSizeInBytes);
+            if (full) {
+                chunks.add(items.subList(from, i));
+                from = i;
+                sizeInBytes = 0L;
+            }
+            sizeInBytes += itemSize;
+        }
+        chunks.add(items.subList(from, items.size()));
+        return chunks;
+    }
+
+    /**
+     * Split the items of a shard into chunks, in lanes that are executed in parallel, at most the
+     * shard concurrency. The chunks of a lane are executed one after another. All actions on a
+     * document are in the same lane, so they are applied on the shard in the order of the request.
+     */
+    private List<List<List<IngestItemRequest>>> lanes(List<IngestItemRequest> items) {
+        List<List<IngestItemRequest>> chunks = split(items);
+        if (maxShardConcurrency <= 1 || chunks.size() <= 1) {
+            return Collections.singletonList(chunks);
+        }
+        List<List<IngestItemRequest>> partitions = newArrayList();
+        for (int i = 0; i < maxShardConcurrency; i++) {
+            List<IngestItemRequest> partition = newArrayList();
+            partitions.add(partition);
+        }
+        for (int i = 0; i < items.size(); i++) {
+            partitions.get(laneOf(items.get(i).request(), i)).add(items.get(i));
+        }
+        List<List<List<IngestItemRequest>>> lanes = newArrayList();
+        for (List<IngestItemRequest> partition : partitions) {
+            if (!partition.isEmpty()) {
+                lanes.add(split(partition));
+            }
+        }
+        return lanes;
+    }
+
+    /**
+     * The lane of an action by its type and id. An action without an id can not be referred to
+     * by another action of the request, it is spread by its position.
+     */
+    private int laneOf(ActionRequest request, int pos) {
+        String type = null;
+        String id = null;
+        if (request instanceof IndexRequest) {
+            type = ((IndexRequest) request).type();
+            id = ((IndexRequest) request).id();
+        } else if (request instanceof DeleteRequest) {
+            type = ((DeleteRequest) request).type();
+            id = ((DeleteRequest) request).id();
+        }
+        int hash = id != null ? 31 * (type != null ? type.hashCode() : 0) + id.hashCode() : pos;
+        return (hash & 0x7fffffff) % maxShardConcurrency;
+    }
+
+    private static boolean isSingleRequest(List<List<List<IngestItemRequest>>> lanes) {
+        return lanes.size() == 1 && lanes.get(0).size() == 1;
+    }
+
+    private static long estimatedSizeInBytes(IngestItemRequest item) {
+        if (item.request() instanceof IndexRequest) {
+            IndexRequest indexRequest = (IndexRequest) item.request();
+            return indexRequest.source() != null ?
+                    indexRequest.source().length() + IngestRequest.REQUEST_OVERHEAD : IngestRequest.REQUEST_OVERHEAD;
+        }
+        return IngestRequest.REQUEST_OVERHEAD;
+    }
+
+    private IngestShardRequest newShardRequest(IngestRequest ingestRequest, ShardId shardId, List<IngestItemRequest> itemRequests) {
+        IngestShardRequest ingestShardRequest = new IngestShardRequest(shardId.index().name(), shardId.id(), itemRequests);
+        ingestShardRequest.replicationType(ingestRequest.replicationType());
+        ingestShardRequest.consistencyLevel(ingestRequest.consistencyLevel());
+        ingestShardRequest.timeout(ingestRequest.timeout());
+        ingestShardRequest.encoding(encoding);
+        return ingestShardRequest;
+    }
+
+    /**
+     * The node of the active primary shard, or null if the primary shard is not active or its node is not known
+     */
+    private String primaryNodeId(ClusterState clusterState, ShardId shardId) {
+        IndexRoutingTable indexRoutingTable = clusterState.routingTable().index(shardId.index().name());
+        if (indexRoutingTable == null) {
+            return null;
+        }
+        IndexShardRoutingTable shardRoutingTable = indexRoutingTable.shard(shardId.id());
+        if (shardRoutingTable == null) {
+            return null;
+        }
+        ShardRouting primary = shardRoutingTable.primaryShard();
+        if (primary == null || !primary.active() || !clusterState.nodes().nodeExists(primary.currentNodeId())) {
+            return null;
+        }
+        return primary.currentNodeId();
+    }
+
+    /**
+     * The chunks of a lane of a shard, executed one after another
+     */
+    class ShardChunks {
+
+        private final IngestRequest ingestRequest;
+
+        private final ShardId shardId;
+
+        private final Queue<List<IngestItemRequest>> pending;
+
+        private final ResponseCollector collector;
+
+        ShardChunks(IngestRequest ingestRequest, ShardId shardId, List<List<IngestItemRequest>> chunks,
+                    ResponseCollector collector) {
+            this.ingestRequest = ingestRequest;
+            this.shardId = shardId;
+            this.pending = new ConcurrentLinkedQueue<List<IngestItemRequest>>(chunks);
+            this.collector = collector;
+        }
+
+        void next() {
+            List<IngestItemRequest> items = pending.poll();
+            if (items != null) {
+                executeShard(ingestRequest, shardId, items, collector, this);
+            }
+        }
+    }
+
+    /**
+     * Collects the shard responses into the ingest response
+     */
+    class ResponseCollector {
+
+        private final IngestRequest ingestRequest;
+
+        private final ActionListener<IngestResponse> listener;
+
+        private final List<IngestItemFailure> failure;
+
+        private final AtomicInteger successSize = new AtomicInteger(0);
+
+        private final AtomicInteger counter;
+
+        private final int numberOfShards;
+
+        private final int numberOfRequests;
+
+        private final long startTime;
+
+        private final long planNanos;
+
+        private final IngestRoutingPlanner.Plan plan;
+
+        private final long dispatchStart;
+
+        ResponseCollector(IngestRequest ingestRequest, IngestRoutingPlanner.Plan plan, int numberOfRequests, long startTime,
+                          ActionListener<IngestResponse> listener) {
+            this.ingestRequest = ingestRequest;
+            this.listener = listener;
+            this.failure = plan.failure();
+            this.numberOfShards = plan.requestsByShard().size();
+            this.numberOfRequests = numberOfRequests;
+            this.counter = new AtomicInteger(numberOfRequests);
+            this.startTime = startTime;
+            this.planNanos = plan.planNanos();
+            this.plan = plan;
+            this.dispatchStart = System.nanoTime();
+        }
+
+        void onResponse(IngestShardResponse ingestShardResponse) {
+            successSize.addAndGet(ingestShardResponse.getSuccessSize());
+            if (!ingestShardResponse.getFailure().isEmpty()) {
+                synchronized (failure) {
+                    failure.addAll(ingestShardResponse.getFailure());
+                }
+            }
+            if (counter.decrementAndGet() == 0) {
+                finishHim();
+            }
+        }
+
+        void onFailure(List<IngestItemRequest> itemRequests, String message, RestStatus status) {
+            // create failures for all relevant requests
+            synchronized (failure) {
+                for (IngestItemRequest request : itemRequests) {
+                    failure.add(new IngestItemFailure(request.id(), message, status));
+                }
+            }
+            if (counter.decrementAndGet() == 0) {
+                finishHim();
+            }
+        }
+
+        private void finishHim() {
+            if (logger.isDebugEnabled()) {
+                logger.debug("ingest of {} actions to {} shards in {} shard requests: plan [{}ms], shards [{}ms]",
+                        ingestRequest.numberOfActions(), numberOfShards, numberOfRequests,
+                        TimeUnit.NANOSECONDS.toMillis(planNanos),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dispatchStart));
+            }
+            // the actions left out are done with the actions that replace them
+            int[] collapsed;
+            synchronized (failure) {
+                collapsed = plan.collapsed(failure);
+            }
+            listener.onResponse(new IngestResponse(successSize.get(), failure, collapsed, System.currentTimeMillis() - startTime));
         }
     }
 
@@ -0,0 +1,149 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportRequestHandler;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Node ingest transport action.
+ * <p/>
+ * Carries the shard requests for all primary shards on a node in a single transport message,
+ * the receiving node executes the shard requests locally.
+ */
+public class TransportNodeIngestAction extends AbstractComponent {
+
+    public static final String ACTION = IngestAction.NAME + ".node";
+
+    private final TransportService transportService;
+
+    private final ClusterService clusterService;
+
+    private final TransportShardIngestAction shardIngestAction;
+
+    @Inject
+    public TransportNodeIngestAction(Settings settings, TransportService transportService, ClusterService clusterService,
+                                     TransportShardIngestAction shardIngestAction) {
+        super(settings);
+        this.transportService = transportService;
+        this.clusterService = clusterService;
+        this.shardIngestAction = shardIngestAction;
+        transportService.registerHandler(ACTION, new NodeIngestTransportHandler());
+    }
+
+    /**
+     * Execute a node ingest request. The request is executed without a network round trip
+     * if the node is the local node.
+     *
+     * @param node     the node of the primary shards
+     * @param request  the node ingest request
+     * @param listener the listener
+     */
+    public void execute(DiscoveryNode node, IngestNodeRequest request, final ActionListener<IngestNodeResponse> listener) {
+        if (node.id().equals(clusterService.localNode().id())) {
+            executeLocally(request, listener);
+            return;
+        }
+        transportService.sendRequest(node, ACTION, request, IngestAction.INSTANCE.transportOptions(settings),
+                new BaseTransportResponseHandler<IngestNodeResponse>() {
+                    @Override
+                    public IngestNodeResponse newInstance() {
+                        return new IngestNodeResponse();
+                    }
+
+                    @Override
+                    public void handleResponse(IngestNodeResponse response) {
+                        listener.onResponse(response);
+                    }
+
+                    @Override
+                    public void handleException(TransportException exp) {
+                        listener.onFailure(exp);
+                    }
+
+                    @Override
+                    public String executor() {
+                        return ThreadPool.Names.SAME;
+                    }
+                });
+    }
+
+    private void executeLocally(IngestNodeRequest request, final ActionListener<IngestNodeResponse> listener) {
+        List<IngestShardRequest> shardRequests = request.shardRequests();
+        final IngestNodeResponse response = new IngestNodeResponse(shardRequests.size());
+        if (shardRequests.isEmpty()) {
+            listener.onResponse(response);
+            return;
+        }
+        final AtomicInteger counter = new AtomicInteger(shardRequests.size());
+        for (int i = 0; i < shardRequests.size(); i++) {
+            final int pos = i;
+            IngestShardRequest shardRequest = shardRequests.get(i);
+            shardIngestAction.execute(shardRequest, new ActionListener<IngestShardResponse>() {
+                @Override
+                public void onResponse(IngestShardResponse ingestShardResponse) {
+                    response.setResponse(pos, ingestShardResponse);
+                    if (counter.decrementAndGet() == 0) {
+                        listener.onResponse(response);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    response.setFailure(pos, ExceptionsHelper.detailedMessage(e), IngestItemFailure.status(e));
+                    if (counter.decrementAndGet() == 0) {
+                        listener.onResponse(response);
+                    }
+                }
+            });
+        }
+    }
+
+    class NodeIngestTransportHandler extends BaseTransportRequestHandler<IngestNodeRequest> {
+
+        @Override
+        public IngestNodeRequest newInstance() {
+            return new IngestNodeRequest();
+        }
+
+        @Override
+        public void messageReceived(final IngestNodeRequest request, final TransportChannel channel) throws Exception {
+            executeLocally(request, new ActionListener<IngestNodeResponse>() {
+                @Override
+                public void onResponse(IngestNodeResponse result) {
+                    try {
+                        channel.sendResponse(result);
+                    } catch (Exception e) {
+                        onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    try {
+                        channel.sendResponse(e);
+                    } catch (Exception e1) {
+                        logger.warn("Failed to send error response for action [" + ACTION + "] and request [" + request + "]", e1);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public String executor() {
+            return ThreadPool.Names.SAME;
+        }
+    }
+}
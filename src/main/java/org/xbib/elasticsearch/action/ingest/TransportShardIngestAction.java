@@ -2,9 +2,13 @@ package org.xbib.elasticsearch.action.ingest;
 
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.RoutingMissingException;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.TransportActions;
+import org.elasticsearch.action.support.replication.ReplicationType;
 import org.elasticsearch.action.support.replication.TransportShardReplicationOperationAction;
 import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.cluster.ClusterState;
@@ -13,37 +17,143 @@ import org.elasticsearch.cluster.action.shard.ShardStateAction;
 import org.elasticsearch.cluster.block.ClusterBlockException;
 import org.elasticsearch.cluster.block.ClusterBlockLevel;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.ShardRouting;
 import org.elasticsearch.cluster.routing.ShardIterator;
 import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.component.LifecycleListener;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.engine.DocumentAlreadyExistsException;
 import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.index.mapper.SourceToParse;
 import org.elasticsearch.index.shard.ShardId;
 import org.elasticsearch.index.shard.service.IndexShard;
 import org.elasticsearch.indices.IndicesService;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportRequestHandler;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
 import org.elasticsearch.transport.TransportRequestOptions;
+import org.elasticsearch.transport.TransportResponse;
 import org.elasticsearch.transport.TransportService;
 
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.elasticsearch.common.collect.Lists.newArrayList;
 import static org.elasticsearch.common.collect.Lists.newLinkedList;
 import static org.elasticsearch.common.collect.Sets.newHashSet;
 
 
 public class TransportShardIngestAction extends TransportShardReplicationOperationAction<IngestShardRequest, IngestShardRequest, IngestShardResponse> {
 
+    public static final String CHUNK_ACTION = IngestAction.NAME + ".shard.chunk";
+
     private final MappingUpdatedAction mappingUpdatedAction;
 
+    private final int parseThreads;
+
+    private final int parseMinItems;
+
+    private final ExecutorService parseExecutor;
+
+    private final int replicationChunkSize;
+
+    private final ExecutorService replicationExecutor;
+
+    private final ConcurrentMap<IngestShardRequest, ReplicaPipeline> pipelines = ConcurrentCollections.newConcurrentMap();
+
     @Inject
     public TransportShardIngestAction(Settings settings, TransportService transportService, ClusterService clusterService,
                                       IndicesService indicesService, ThreadPool threadPool, ShardStateAction shardStateAction,
                                       MappingUpdatedAction mappingUpdatedAction) {
         super(settings, transportService, clusterService, indicesService, threadPool, shardStateAction);
         this.mappingUpdatedAction = mappingUpdatedAction;
+        // the number of threads for parsing the documents of a shard request in parallel, 0 means no parallel parsing
+        this.parseThreads = settings.getAsInt("action.ingest.parse.threads", 0);
+        this.parseMinItems = Math.max(1, settings.getAsInt("action.ingest.parse.min_items", 16));
+        this.parseExecutor = parseThreads > 0 ?
+                EsExecutors.newScaling(0, parseThreads, 60L, TimeUnit.SECONDS, EsExecutors.daemonThreadFactory(settings, "ingest_parse")) :
+                null;
+        // the number of items after which completed items are replicated while the primary continues, 0 means no pipelining
+        this.replicationChunkSize = settings.getAsInt("action.ingest.replication.chunk_size", 0);
+        // replicated chunks are executed outside of the bulk thread pool, so they are not rejected by its queue
+        this.replicationExecutor = EsExecutors.newScaling(0, EsExecutors.boundedNumberOfProcessors(settings), 60L, TimeUnit.SECONDS,
+                EsExecutors.daemonThreadFactory(settings, "ingest_replica"));
+        transportService.registerHandler(CHUNK_ACTION, new ReplicaChunkTransportHandler());
+        clusterService.addLifecycleListener(new LifecycleListener() {
+            @Override
+            public void beforeStart() {
+            }
+
+            @Override
+            public void afterStart() {
+            }
+
+            @Override
+            public void beforeStop() {
+            }
+
+            @Override
+            public void afterStop() {
+            }
+
+            @Override
+            public void beforeClose() {
+            }
+
+            @Override
+            public void afterClose() {
+                doClose();
+            }
+        });
+    }
+
+    /**
+     * Shut down the parse and replication threads, when the node is closed.
+     */
+    protected void doClose() {
+        if (parseExecutor != null) {
+            parseExecutor.shutdownNow();
+        }
+        replicationExecutor.shutdownNow();
+    }
+
+    @Override
+    protected void doExecute(final IngestShardRequest request, final ActionListener<IngestShardResponse> listener) {
+        super.doExecute(request, new ActionListener<IngestShardResponse>() {
+            @Override
+            public void onResponse(IngestShardResponse response) {
+                // on the primary node, wait for the replicated chunks of the request
+                ReplicaPipeline pipeline = pipelines.remove(request);
+                if (pipeline != null) {
+                    pipeline.respond(listener, response);
+                } else {
+                    listener.onResponse(response);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                pipelines.remove(request);
+                listener.onFailure(e);
+            }
+        });
     }
 
     @Override
@@ -105,32 +215,36 @@ public class TransportShardIngestAction extends TransportShardReplicationOperati
         int size = request.items().size();
         long[] versions = new long[size];
         Set<Tuple<String, String>> mappingsToUpdate = newHashSet();
+        ReplicaPipeline pipeline = replicationChunkSize > 0 && size > replicationChunkSize ?
+                newReplicaPipeline(clusterState, request) : null;
+        Engine.IndexingOperation[] prepared = null;
+        Throwable[] prepareFailures = null;
+        if (parseExecutor != null && size >= parseMinItems) {
+            prepared = new Engine.IndexingOperation[size];
+            prepareFailures = new Throwable[size];
+            prepareInParallel(clusterState, request, indexShard, prepared, prepareFailures);
+        }
         for (int i = 0; i < size; i++) {
             IngestItemRequest item = request.items().get(i);
             if (item.request() instanceof IndexRequest) {
                 IndexRequest indexRequest = (IndexRequest) item.request();
                 Engine.IndexingOperation op = null;
                 try {
-                    // validate, if routing is required, that we got routing
-                    MappingMetaData mappingMd = clusterState.metaData().index(request.index()).mappingOrDefault(indexRequest.type());
-                    if (mappingMd != null && mappingMd.routing().required()) {
-                        if (indexRequest.routing() == null) {
-                            throw new RoutingMissingException(indexRequest.index(), indexRequest.type(), indexRequest.id());
+                    if (prepared != null) {
+                        if (prepareFailures[i] != null) {
+                            throw prepareFailures[i];
                         }
+                        op = prepared[i];
+                    } else {
+                        op = prepareIndex(clusterState, request, indexShard, indexRequest);
                     }
-                    SourceToParse sourceToParse = SourceToParse.source(SourceToParse.Origin.PRIMARY, indexRequest.source()).type(indexRequest.type()).id(indexRequest.id())
-                            .routing(indexRequest.routing()).parent(indexRequest.parent()).timestamp(indexRequest.timestamp()).ttl(indexRequest.ttl());
                     long version;
-                    if (indexRequest.opType() == IndexRequest.OpType.INDEX) {
-                        Engine.Index index = indexShard.prepareIndex(sourceToParse, indexRequest.version(), indexRequest.versionType(), Engine.Operation.Origin.PRIMARY,
-                                request.canHaveDuplicates() || indexRequest.canHaveDuplicates());
-                        op = index;
+                    if (op instanceof Engine.Index) {
+                        Engine.Index index = (Engine.Index) op;
                         indexShard.index(index);
                         version = index.version();
                     } else {
-                        Engine.Create create = indexShard.prepareCreate(sourceToParse, indexRequest.version(), indexRequest.versionType(), Engine.Operation.Origin.PRIMARY,
-                                request.canHaveDuplicates() || indexRequest.canHaveDuplicates(), indexRequest.autoGeneratedId());
-                        op = create;
+                        Engine.Create create = (Engine.Create) op;
                         indexShard.create(create);
                         version = create.version();
                     }
@@ -153,7 +267,7 @@ public class TransportShardIngestAction extends TransportShardReplicationOperati
                     } else {
                         logger.error("[{}][{}] failed to execute bulk item (index) {}", e, shardRequest.request.index(), shardRequest.shardId, indexRequest);
                     }
-                    failure.add(new IngestItemFailure(item.id(), ExceptionsHelper.detailedMessage(e)));
+                    failure.add(new IngestItemFailure(item.id(), ExceptionsHelper.detailedMessage(e), IngestItemFailure.status(e)));
                     // nullify the request so it won't execute on the replicas
                     request.items().set(i, null);
                 } finally {
@@ -185,11 +299,15 @@ public class TransportShardIngestAction extends TransportShardReplicationOperati
                     } else {
                         logger.debug("[{}][{}] failed to execute bulk item (delete) {}", e, shardRequest.request.index(), shardRequest.shardId, deleteRequest);
                     }
-                    failure.add(new IngestItemFailure(item.id(), ExceptionsHelper.detailedMessage(e)));
+                    failure.add(new IngestItemFailure(item.id(), ExceptionsHelper.detailedMessage(e), IngestItemFailure.status(e)));
                     // nullify the request so it won't execute on the replicas
                     request.items().set(i, null);
                 }
             }
+            if (pipeline != null && (i + 1) % replicationChunkSize == 0 && i + 1 < size) {
+                // the chunk is complete on the primary, replicate it while indexing the next chunk
+                pipeline.replicate(i + 1);
+            }
         }
         if (!mappingsToUpdate.isEmpty()) {
             for (Tuple<String, String> mappingToUpdate : mappingsToUpdate) {
@@ -197,7 +315,13 @@ public class TransportShardIngestAction extends TransportShardReplicationOperati
             }
         }
         IngestShardResponse shardResponse = new IngestShardResponse(new ShardId(request.index(), request.shardId()), successSize, failure);
-        return new PrimaryResponse<IngestShardResponse, IngestShardRequest>(shardRequest.request, shardResponse, null);
+        // with a pipeline, only the items not yet replicated are left for the replica request
+        IngestShardRequest replicaRequest = shardRequest.request;
+        if (pipeline != null) {
+            replicaRequest = pipeline.remaining();
+            pipelines.put(request, pipeline);
+        }
+        return new PrimaryResponse<IngestShardResponse, IngestShardRequest>(replicaRequest, shardResponse, null);
     }
 
     @Override
@@ -221,11 +345,11 @@ public class TransportShardIngestAction extends TransportShardReplicationOperati
                             .timestamp(indexRequest.timestamp())
                             .ttl(indexRequest.ttl());
                     if (indexRequest.opType() == IndexRequest.OpType.INDEX) {
-                        Engine.Index index = indexShard.prepareIndex(sourceToParse, indexRequest.version(), indexRequest.versionType(),
+                        Engine.Index index = indexShard.prepareIndex(sourceToParse, indexRequest.version(), indexRequest.versionType().versionTypeForReplicationAndRecovery(),
                                 Engine.Operation.Origin.REPLICA, request.canHaveDuplicates() || indexRequest.canHaveDuplicates());
                         indexShard.index(index);
                     } else {
-                        Engine.Create create = indexShard.prepareCreate(sourceToParse, indexRequest.version(), indexRequest.versionType(),
+                        Engine.Create create = indexShard.prepareCreate(sourceToParse, indexRequest.version(), indexRequest.versionType().versionTypeForReplicationAndRecovery(),
                                 Engine.Operation.Origin.REPLICA, request.canHaveDuplicates() || indexRequest.canHaveDuplicates(), indexRequest.autoGeneratedId());
                         indexShard.create(create);
                     }
@@ -235,7 +359,8 @@ public class TransportShardIngestAction extends TransportShardReplicationOperati
             } else if (item.request() instanceof DeleteRequest) {
                 DeleteRequest deleteRequest = (DeleteRequest) item.request();
                 try {
-                    Engine.Delete delete = indexShard.prepareDelete(deleteRequest.type(), deleteRequest.id(), deleteRequest.version(), deleteRequest.versionType(), Engine.Operation.Origin.REPLICA);
+                    Engine.Delete delete = indexShard.prepareDelete(deleteRequest.type(), deleteRequest.id(), deleteRequest.version(), deleteRequest.versionType().versionTypeForReplicationAndRecovery(),
+                            Engine.Operation.Origin.REPLICA);
                     indexShard.delete(delete);
                 } catch (Throwable e) {
                     // ignore, we are on backup
@@ -245,6 +370,104 @@ public class TransportShardIngestAction extends TransportShardReplicationOperati
         // no auto refresh
     }
 
+    /**
+     * Validate the index request and prepare the engine operation. This parses the document.
+     */
+    private Engine.IndexingOperation prepareIndex(ClusterState clusterState, IngestShardRequest request,
+                                                  IndexShard indexShard, IndexRequest indexRequest) {
+        // validate, if routing is required, that we got routing
+        MappingMetaData mappingMd = clusterState.metaData().index(request.index()).mappingOrDefault(indexRequest.type());
+        if (mappingMd != null && mappingMd.routing().required()) {
+            if (indexRequest.routing() == null) {
+                throw new RoutingMissingException(indexRequest.index(), indexRequest.type(), indexRequest.id());
+            }
+        }
+        SourceToParse sourceToParse = SourceToParse.source(SourceToParse.Origin.PRIMARY, indexRequest.source()).type(indexRequest.type()).id(indexRequest.id())
+                .routing(indexRequest.routing()).parent(indexRequest.parent()).timestamp(indexRequest.timestamp()).ttl(indexRequest.ttl());
+        if (indexRequest.opType() == IndexRequest.OpType.INDEX) {
+            return indexShard.prepareIndex(sourceToParse, indexRequest.version(), indexRequest.versionType(), Engine.Operation.Origin.PRIMARY,
+                    request.canHaveDuplicates() || indexRequest.canHaveDuplicates());
+        } else {
+            return indexShard.prepareCreate(sourceToParse, indexRequest.version(), indexRequest.versionType(), Engine.Operation.Origin.PRIMARY,
+                    request.canHaveDuplicates() || indexRequest.canHaveDuplicates(), indexRequest.autoGeneratedId());
+        }
+    }
+
+    /**
+     * Prepare the engine operations of all index requests of a shard request in parallel.
+     * The current thread takes part in the work, so the batch completes even if no parse thread is available.
+     * Only the preparation runs in parallel, the operations are executed on the engine in order by the caller.
+     */
+    private void prepareInParallel(final ClusterState clusterState, final IngestShardRequest request, final IndexShard indexShard,
+                                   final Engine.IndexingOperation[] prepared, final Throwable[] prepareFailures) {
+        final List<IngestItemRequest> items = request.items();
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(items.size());
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < items.size()) {
+                    try {
+                        ActionRequest actionRequest = items.get(i).request();
+                        if (actionRequest instanceof IndexRequest) {
+                            prepared[i] = prepareIndex(clusterState, request, indexShard, (IndexRequest) actionRequest);
+                        }
+                    } catch (Throwable e) {
+                        prepareFailures[i] = e;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }
+        };
+        int helpers = Math.min(parseThreads, items.size() / parseMinItems);
+        for (int i = 0; i < helpers; i++) {
+            try {
+                parseExecutor.execute(worker);
+            } catch (EsRejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchException("interrupted while preparing ingest operations", e);
+        }
+    }
+
+    /**
+     * Create a replica pipeline for a shard request, or return null if the request should be replicated as a whole.
+     * Pipelining is used only for synchronous replication to started replica shards, so that replicas which are
+     * initializing or relocating receive the whole request by the regular replication.
+     */
+    private ReplicaPipeline newReplicaPipeline(ClusterState clusterState, IngestShardRequest request) {
+        ReplicationType replicationType = request.replicationType() != ReplicationType.DEFAULT ?
+                request.replicationType() : defaultReplicationType;
+        if (replicationType != ReplicationType.SYNC || request.canHaveDuplicates()) {
+            return null;
+        }
+        IndexShardRoutingTable shardRoutingTable = clusterState.routingTable().index(request.index()).shard(request.shardId());
+        List<ReplicaPipeline.ReplicaLane> lanes = newArrayList();
+        ReplicaPipeline pipeline = new ReplicaPipeline(request, clusterState.metaData().index(request.index()).getUUID(), lanes);
+        for (ShardRouting shard : shardRoutingTable.replicaShards()) {
+            if (shard.unassigned()) {
+                continue;
+            }
+            if (!shard.started() || shard.relocating()) {
+                return null;
+            }
+            DiscoveryNode node = clusterState.nodes().get(shard.currentNodeId());
+            if (node == null) {
+                return null;
+            }
+            lanes.add(pipeline.new ReplicaLane(shard, node));
+        }
+        return lanes.isEmpty() ? null : pipeline;
+    }
+
     private void applyVersion(IngestItemRequest item, long version) {
         if (item.request() instanceof IndexRequest) {
             ((IndexRequest) item.request()).version(version);
@@ -252,4 +475,230 @@ public class TransportShardIngestAction extends TransportShardReplicationOperati
             ((DeleteRequest) item.request()).version(version);
         }
     }
+
+    /**
+     * Replicates completed chunks of a shard request to the replica shards while the primary continues
+     * with the next chunks. The chunks are sent in order, one at a time per replica. Failed items are
+     * already nulled out and the versions are updated when a chunk is sent.
+     * The response is passed on when all chunks are answered, without waiting in the bulk thread.
+     * A replica shard that fails a chunk is failed, as by the regular replication, and gets no more chunks.
+     */
+    class ReplicaPipeline {
+
+        private final IngestShardRequest request;
+
+        private final String indexUUID;
+
+        private final List<ReplicaLane> lanes;
+
+        private int from;
+
+        private int outstanding;
+
+        private ActionListener<IngestShardResponse> listener;
+
+        private IngestShardResponse response;
+
+        ReplicaPipeline(IngestShardRequest request, String indexUUID, List<ReplicaLane> lanes) {
+            this.request = request;
+            this.indexUUID = indexUUID;
+            this.lanes = lanes;
+        }
+
+        /**
+         * Replicate the items up to a position, which are complete on the primary.
+         *
+         * @param to the position of the first item not yet complete
+         */
+        void replicate(int to) {
+            IngestShardRequest chunk = newShardRequest(newArrayList(request.items().subList(from, to)));
+            from = to;
+            synchronized (this) {
+                outstanding += lanes.size();
+            }
+            for (ReplicaLane lane : lanes) {
+                lane.send(chunk);
+            }
+        }
+
+        /**
+         * Return the replica request with the items not yet replicated.
+         */
+        IngestShardRequest remaining() {
+            return newShardRequest(newArrayList(request.items().subList(from, request.items().size())));
+        }
+
+        /**
+         * Pass on the response of the shard request when all chunks are answered.
+         */
+        void respond(ActionListener<IngestShardResponse> listener, IngestShardResponse response) {
+            synchronized (this) {
+                if (outstanding > 0) {
+                    this.listener = listener;
+                    this.response = response;
+                    return;
+                }
+            }
+            listener.onResponse(response);
+        }
+
+        private IngestShardRequest newShardRequest(List<IngestItemRequest> items) {
+            IngestShardRequest shardRequest = new IngestShardRequest(request.index(), request.shardId(), items);
+            shardRequest.replicationType(request.replicationType());
+            shardRequest.consistencyLevel(request.consistencyLevel());
+            shardRequest.timeout(request.timeout());
+            shardRequest.encoding(request.encoding());
+            return shardRequest;
+        }
+
+        private void done() {
+            ActionListener<IngestShardResponse> listener = null;
+            synchronized (this) {
+                outstanding--;
+                if (outstanding == 0 && this.listener != null) {
+                    listener = this.listener;
+                    this.listener = null;
+                }
+            }
+            if (listener != null) {
+                listener.onResponse(response);
+            }
+        }
+
+        class ReplicaLane {
+
+            private final ShardRouting shard;
+
+            private final DiscoveryNode node;
+
+            private final Queue<IngestShardRequest> pending = newLinkedList();
+
+            private boolean inFlight;
+
+            private boolean failed;
+
+            ReplicaLane(ShardRouting shard, DiscoveryNode node) {
+                this.shard = shard;
+                this.node = node;
+            }
+
+            void send(IngestShardRequest chunk) {
+                synchronized (this) {
+                    if (failed) {
+                        // the replica shard is failed, it recovers from the primary
+                        done();
+                        return;
+                    }
+                    if (inFlight) {
+                        pending.add(chunk);
+                        return;
+                    }
+                    inFlight = true;
+                }
+                doSend(chunk);
+            }
+
+            private void doSend(IngestShardRequest chunk) {
+                transportService.sendRequest(node, CHUNK_ACTION,
+                        new ReplicaOperationRequest(request.shardId(), chunk), transportOptions,
+                        new BaseTransportResponseHandler<TransportResponse.Empty>() {
+                            @Override
+                            public TransportResponse.Empty newInstance() {
+                                return TransportResponse.Empty.INSTANCE;
+                            }
+
+                            @Override
+                            public void handleResponse(TransportResponse.Empty response) {
+                                completed(false);
+                            }
+
+                            @Override
+                            public void handleException(TransportException exp) {
+                                if (!ignoreChunkException(exp)) {
+                                    logger.warn("[{}][{}] failed to replicate chunk to node {}, failing replica shard",
+                                            exp, request.index(), request.shardId(), node);
+                                    shardStateAction.shardFailed(shard, indexUUID,
+                                            "Failed to perform [" + CHUNK_ACTION + "] on replica, message [" + ExceptionsHelper.detailedMessage(exp) + "]");
+                                }
+                                completed(true);
+                            }
+
+                            @Override
+                            public String executor() {
+                                return ThreadPool.Names.SAME;
+                            }
+                        });
+            }
+
+            private void completed(boolean failure) {
+                IngestShardRequest next;
+                int dropped = 0;
+                synchronized (this) {
+                    if (failure) {
+                        failed = true;
+                        while (pending.poll() != null) {
+                            dropped++;
+                        }
+                    }
+                    next = pending.poll();
+                    if (next == null) {
+                        inFlight = false;
+                    }
+                }
+                for (int i = 0; i < dropped; i++) {
+                    done();
+                }
+                if (next != null) {
+                    doSend(next);
+                }
+                done();
+            }
+        }
+    }
+
+    /**
+     * Failures of a chunk that do not fail the replica shard, because the shard or its node is gone
+     * or a newer change reached the replica, as for the regular replication.
+     */
+    private static boolean ignoreChunkException(Throwable e) {
+        if (TransportActions.isShardNotAvailableException(e)) {
+            return true;
+        }
+        Throwable cause = ExceptionsHelper.unwrapCause(e);
+        return cause instanceof ConnectTransportException
+                || cause instanceof VersionConflictEngineException
+                || cause instanceof DocumentAlreadyExistsException;
+    }
+
+    class ReplicaChunkTransportHandler extends BaseTransportRequestHandler<ReplicaOperationRequest> {
+
+        @Override
+        public ReplicaOperationRequest newInstance() {
+            return new ReplicaOperationRequest();
+        }
+
+        @Override
+        public void messageReceived(final ReplicaOperationRequest request, final TransportChannel channel) throws Exception {
+            replicationExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        shardOperationOnReplica(request);
+                        channel.sendResponse(TransportResponse.Empty.INSTANCE);
+                    } catch (Throwable e) {
+                        try {
+                            channel.sendResponse(e);
+                        } catch (Exception e1) {
+                            logger.warn("Failed to send error response for action [" + CHUNK_ACTION + "] and request [" + request + "]", e1);
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public String executor() {
+            return ThreadPool.Names.SAME;
+        }
+    }
 }
@@ -0,0 +1,14 @@
+package org.xbib.elasticsearch.plugin.support;
+
+import org.elasticsearch.common.inject.AbstractModule;
+
+/**
+ * Support module
+ */
+public class SupportModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(TransportServiceRegistry.class).asEagerSingleton();
+    }
+}
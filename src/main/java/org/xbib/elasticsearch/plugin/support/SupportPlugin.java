@@ -1,6 +1,8 @@
 package org.xbib.elasticsearch.plugin.support;
 
 import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
 import org.xbib.elasticsearch.action.ingest.IngestAction;
@@ -13,6 +15,8 @@ import org.xbib.elasticsearch.rest.action.ingest.RestIngestAction;
 import org.xbib.elasticsearch.rest.action.river.execute.RestRiverExecuteAction;
 import org.xbib.elasticsearch.rest.action.river.state.RestRiverStateAction;
 
+import java.util.Collection;
+
 /**
  * Support plugin
  */
@@ -30,6 +34,11 @@ public class SupportPlugin extends AbstractPlugin {
         return "Support plugin";
     }
 
+    @Override
+    public Collection<Class<? extends Module>> modules() {
+        return ImmutableList.<Class<? extends Module>>of(SupportModule.class);
+    }
+
     public void onModule(ActionModule module) {
         module.registerAction(IngestAction.INSTANCE, TransportIngestAction.class);
         module.registerAction(RiverExecuteAction.INSTANCE, TransportRiverExecuteAction.class);
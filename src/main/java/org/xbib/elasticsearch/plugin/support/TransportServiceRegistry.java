@@ -0,0 +1,42 @@
+package org.xbib.elasticsearch.plugin.support;
+
+import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.collect.MapMaker;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The transport client has no public access to its transport service, which is needed to
+ * send a request to a node of choice. The support plugin is loaded by the transport client
+ * like by a node, so the transport service is registered here by the settings instance of
+ * the client. The registry holds neither the settings nor the transport service.
+ */
+public class TransportServiceRegistry {
+
+    private final static ConcurrentMap<Settings, TransportService> transportServices =
+            new MapMaker().weakKeys().weakValues().makeMap();
+
+    @Inject
+    public TransportServiceRegistry(Settings settings, TransportService transportService) {
+        transportServices.put(settings, transportService);
+    }
+
+    /**
+     * The transport service of a transport client.
+     *
+     * @param client the transport client
+     * @return the transport service
+     * @throws ElasticsearchIllegalStateException if the support plugin is not loaded by the client
+     */
+    public static TransportService transportService(TransportClient client) {
+        TransportService transportService = transportServices.get(client.settings());
+        if (transportService == null) {
+            throw new ElasticsearchIllegalStateException("no transport service of the client, support plugin not loaded");
+        }
+        return transportService;
+    }
+}
@@ -1,5 +1,6 @@
 package org.xbib.elasticsearch.rest.action.ingest;
 
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.WriteConsistencyLevel;
 import org.elasticsearch.action.support.replication.ReplicationType;
 import org.elasticsearch.client.Client;
@@ -70,7 +71,14 @@ public class RestIngestAction extends BaseRestHandler {
         ByteSizeValue volume = settings.getAsBytesSize("action.ingest.maxvolume", ByteSizeValue.parseBytesSizeValue("10m"));
         TimeValue waitingTime = settings.getAsTime("action.ingest.waitingtime", TimeValue.timeValueSeconds(60));
 
-        this.ingestProcessor = new IngestProcessor(client, concurrency, actions, volume, waitingTime);
+        this.ingestProcessor = new IngestProcessor(client, concurrency, actions, volume, waitingTime)
+                .memoryBudget(settings.getAsBytesSize("action.ingest.memory_budget", null),
+                        settings.getAsTime("action.ingest.memory_budget.max_wait", null));
+        if (settings.getAsBoolean("action.ingest.adaptive", false)) {
+            ingestProcessor.adaptive(settings.getAsInt("action.ingest.adaptive.max_actions", null),
+                    settings.getAsInt("action.ingest.adaptive.max_concurrency", null),
+                    settings.getAsTime("action.ingest.adaptive.latency_target", null));
+        }
     }
 
     @Override
@@ -79,7 +87,7 @@ public class RestIngestAction extends BaseRestHandler {
         final BulkIdHolder idHolder = new BulkIdHolder();
         final CountDownLatch latch = new CountDownLatch(1);
 
-        IngestProcessor.Listener listener = new IngestProcessor.Listener() {
+        IngestProcessor.ExtendedListener listener = new IngestProcessor.ExtendedListener() {
             @Override
             public void beforeBulk(long bulkId, int concurrency, IngestRequest ingestRequest) {
                 long v = volumeCounter.addAndGet(ingestRequest.estimatedSizeInBytes());
@@ -94,8 +102,8 @@ public class RestIngestAction extends BaseRestHandler {
             @Override
             public void afterBulk(long bulkId, int concurrency, IngestResponse response) {
                 if (logger.isDebugEnabled()) {
-                    logger.debug("after bulk [{}] [{} items succeeded] [{} items failed] [{}ms]",
-                            bulkId, response.successSize(), response.failureSize(), response.took().millis());
+                    logger.debug("after bulk [{}] [{} items succeeded] [{} items failed] [{} items collapsed] [{}ms]",
+                            bulkId, response.successSize(), response.failureSize(), response.collapsedSize(), response.took().millis());
                 }
                 if (!response.failure().isEmpty()) {
                     for (IngestItemFailure f : response.failure()) {
@@ -108,11 +116,41 @@ public class RestIngestAction extends BaseRestHandler {
             public void afterBulk(long bulkId, int concurrency, Throwable failure) {
                 logger.error("bulk [{}] error", bulkId, failure);
             }
+
+            @Override
+            public void adapted(int actions, int concurrency) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("adapted to {} actions per bulk request, {} concurrent bulk requests",
+                            actions, concurrency);
+                }
+            }
+
+            @Override
+            public void blocked(long millis) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("blocked {} ms by the memory budget", millis);
+                }
+            }
+
+            @Override
+            public void retried(long bulkId, int actions, long delayMillis) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("bulk [{}] retrying {} actions in {}ms", bulkId, actions, delayMillis);
+                }
+            }
+
+            @Override
+            public void failed(long bulkId, ActionRequest request, String reason) {
+                logger.error("bulk [{}] dead letter {}, reason: {}", bulkId, request, reason);
+            }
         };
         String replicationType = request.param("replication");
         if (replicationType != null) {
             ingestProcessor.replicationType(ReplicationType.fromString(replicationType));
         }
+        if (request.hasParam("collapse")) {
+            ingestProcessor.collapseDuplicates(request.paramAsBoolean("collapse", false));
+        }
         String consistencyLevel = request.param("consistency");
         if (consistencyLevel != null) {
             ingestProcessor.consistencyLevel(WriteConsistencyLevel.fromString(consistencyLevel));
@@ -1,7 +1,6 @@
 package org.xbib.elasticsearch.support.client;
 
 import org.elasticsearch.action.admin.cluster.state.ClusterStateRequest;
-import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.cluster.node.DiscoveryNode;
@@ -11,7 +10,10 @@ import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.transport.TransportAddress;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.xbib.metrics.CounterMetric;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,13 +29,18 @@ import java.net.UnknownHostException;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Maps.newHashMap;
 import static org.elasticsearch.common.collect.Sets.newHashSet;
 import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
 
@@ -45,29 +52,57 @@ public abstract class BaseTransportClient {
 
     private final Set<InetSocketTransportAddress> addresses = newHashSet();
 
+    private final Map<InetSocketTransportAddress, DiscoveryNode> sniffed = newHashMap();
+
+    private final Set<InetSocketTransportAddress> missing = newHashSet();
+
+    private final CounterMetric sniffs = new CounterMetric();
+
+    private final CounterMetric sniffFailures = new CounterMetric();
+
+    private final CounterMetric nodesAdded = new CounterMetric();
+
+    private final CounterMetric nodesRemoved = new CounterMetric();
+
+    private ScheduledExecutorService sniffer;
+
     protected TimeValue maxWaitTime = new TimeValue(60, TimeUnit.SECONDS);
 
     protected TransportClient client;
 
+    /**
+     * The pool of transport clients, the first is the client, the others have their own
+     * connections and thread pools to the same addresses
+     */
+    protected final List<TransportClient> clients = newArrayList();
+
     protected ConfigHelper configHelper = new ConfigHelper();
 
     public BaseTransportClient newClient(URI uri, Settings settings) {
         if (client != null) {
             logger.warn("client is open, closing...");
-            client.close();
-            client.threadPool().shutdown();
+            closeClients();
             logger.warn("client is closed");
-            client = null;
         }
         if (settings != null) {
             logger.info("creating transport client, java version {}, effective settings {}",
                     System.getProperty("java.version"), settings.getAsMap());
-            // false = do not load config settings from environment
-            this.client = new TransportClient(settings, false);
+            NodeLoadBalancer balancer = settings.getAsBoolean("client.transport.load_balancing", false) ?
+                    new NodeLoadBalancer(settings) : null;
+            this.client = newTransportClient(settings, balancer);
+            clients.add(client);
+            int poolSize = settings.getAsInt("client.transport.pool_size", 1);
+            for (int i = 1; i < poolSize; i++) {
+                clients.add(newTransportClient(settings, balancer));
+            }
+            if (poolSize > 1) {
+                logger.info("created pool of {} transport clients", clients.size());
+            }
         } else {
             logger.info("creating transport client, java version {}, using default settings",
                     System.getProperty("java.version"));
             this.client = new TransportClient();
+            clients.add(client);
         }
         try {
             connect(uri, settings);
@@ -78,6 +113,21 @@ public abstract class BaseTransportClient {
         } catch (IOException e) {
             logger.error(e.getMessage(), e);
         }
+        TimeValue sniffInterval = settings != null ? settings.getAsTime("client.transport.sniff_interval", null) : null;
+        if (sniffInterval != null && sniffInterval.millis() > 0L) {
+            logger.info("sniffing every {}", sniffInterval);
+            sniffer = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("sniffer"));
+            sniffer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sniff();
+                    } catch (Throwable t) {
+                        logger.error("error while sniffing", t);
+                    }
+                }
+            }, sniffInterval.millis(), sniffInterval.millis(), TimeUnit.MILLISECONDS);
+        }
         return this;
     }
 
@@ -90,6 +140,9 @@ public abstract class BaseTransportClient {
                 .put("client.transport.ignore_cluster_name", false)
                 .put("client.transport.ping_timeout", "30s")
                 .put("client.transport.nodes_sampler_interval", "30s")
+                .put("client.transport.pool_size", 1)
+                .put("client.transport.load_balancing", false)
+                .put("client.transport.sniff_interval", "0s")
                 .put("action.ingest.timeout", maxWaitTime)
                 .build();
     }
@@ -98,6 +151,15 @@ public abstract class BaseTransportClient {
         return client;
     }
 
+    /**
+     * The pool of transport clients, with the client first.
+     *
+     * @return the transport clients
+     */
+    public List<TransportClient> clients() {
+        return Collections.unmodifiableList(clients);
+    }
+
     public String healthColor() {
         return ClientHelper.healthColor(client);
     }
@@ -109,12 +171,47 @@ public abstract class BaseTransportClient {
     public synchronized void shutdown() {
         if (client != null) {
         	logger.info("Closing client...");
-            client.close();
-        	logger.info("Shutting down thread pool...");
-            client.threadPool().shutdown();
+            closeClients();
+        }
+        synchronized (addresses) {
+            addresses.clear();
+            sniffed.clear();
+            missing.clear();
+        }
+    }
+
+    /**
+     * Create a transport client, with the pooled clients sharing the load balancer.
+     */
+    private TransportClient newTransportClient(Settings settings, NodeLoadBalancer balancer) {
+        // false = do not load config settings from environment
+        return balancer != null ?
+                new LoadBalancingTransportClient(settings, false, balancer) :
+                new TransportClient(settings, false);
+    }
+
+    private void closeClients() {
+        if (sniffer != null) {
+            sniffer.shutdownNow();
+            try {
+                if (!sniffer.awaitTermination(maxWaitTime.millis(), TimeUnit.MILLISECONDS)) {
+                    logger.warn("sniffer not terminated within {}", maxWaitTime);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sniffer = null;
+        }
+        // a sniff iterates the clients while holding the addresses
+        synchronized (addresses) {
+            for (TransportClient c : clients) {
+                c.close();
+                logger.info("Shutting down thread pool...");
+                c.threadPool().shutdown();
+            }
+            clients.clear();
             client = null;
         }
-        addresses.clear();
     }
 
     protected URI findURI() {
@@ -191,7 +288,7 @@ public abstract class BaseTransportClient {
             InetSocketTransportAddress address = new InetSocketTransportAddress(InetAddress.getLocalHost().getHostName(), port);
             if (!addresses.contains(address)) {
                 logger.info("adding hostname address for transport client: {}", address);
-                client.addTransportAddress(address);
+                addTransportAddress(address);
                 addresses.add(address);
                 newaddresses = true;
             }
@@ -205,7 +302,7 @@ public abstract class BaseTransportClient {
                     InetSocketTransportAddress address = new InetSocketTransportAddress(addr, port);
                     if (!addresses.contains(address)) {
                         logger.info("adding address to transport client: {}", address);
-                        client.addTransportAddress(address);
+                        addTransportAddress(address);
                         addresses.add(address);
                         newaddresses = true;
                     }
@@ -222,7 +319,7 @@ public abstract class BaseTransportClient {
                         InetSocketTransportAddress address = new InetSocketTransportAddress(addr, port);
                         if (!addresses.contains(address)) {
                             logger.info("adding address for transport client: {}", address);
-                            client.addTransportAddress(address);
+                            addTransportAddress(address);
                             addresses.add(address);
                             newaddresses = true;
                         }
@@ -240,7 +337,7 @@ public abstract class BaseTransportClient {
                         InetSocketTransportAddress address = new InetSocketTransportAddress(addr, port);
                         if (!addresses.contains(address)) {
                             logger.info("adding address for transport client: {}", address);
-                            client.addTransportAddress(address);
+                            addTransportAddress(address);
                             addresses.add(address);
                             newaddresses = true;
                         }
@@ -251,7 +348,7 @@ public abstract class BaseTransportClient {
             InetSocketTransportAddress address = new InetSocketTransportAddress(hostname, port);
             if (!addresses.contains(address)) {
                 logger.info("adding custom address for transport client: {}", address);
-                client.addTransportAddress(address);
+                addTransportAddress(address);
                 addresses.add(address);
                 newaddresses = true;
             }
@@ -268,7 +365,7 @@ public abstract class BaseTransportClient {
                     Map<String, String> params = parseQueryString(uri, "UTF-8");
                     if (params.containsKey("es.sniff")) {
                         try {
-                            connectMore();
+                            sniff();
                         } catch (Exception e) {
                             logger.error("error while connecting to more nodes", e);
                         }
@@ -326,19 +423,115 @@ public abstract class BaseTransportClient {
         return configHelper.mappings();
     }
 
-    private void connectMore() throws IOException {
-        logger.info("trying to discover more nodes...");
-        ClusterStateResponse clusterStateResponse = client.admin().cluster().state(new ClusterStateRequest()).actionGet();
-        DiscoveryNodes nodes = clusterStateResponse.getState().getNodes();
-        for (DiscoveryNode node : nodes) {
-            logger.info("adding discovered node {}", node);
-            try {
-                client.addTransportAddress(node.address());
-            } catch (Exception e) {
-                logger.warn("can't add node " + node, e);
+    /**
+     * Discover the nodes of the cluster and diff them against the transport addresses. The addresses
+     * of new nodes are added. An address found by sniffing is removed when its node is missing from
+     * the cluster in two sniffs in a row, and has no outstanding requests if the client balances
+     * the load, so requests in flight are not cut off. Configured addresses are never removed.
+     * Client nodes are skipped.
+     */
+    public void sniff() {
+        TransportClient client = this.client;
+        if (client == null) {
+            return;
+        }
+        sniffs.inc();
+        DiscoveryNodes nodes;
+        try {
+            ClusterStateRequest request = new ClusterStateRequest().clear().nodes(true);
+            nodes = client.admin().cluster().state(request).actionGet(maxWaitTime).getState().getNodes();
+        } catch (Exception e) {
+            sniffFailures.inc();
+            logger.warn("can't discover nodes: {}", e.getMessage());
+            return;
+        }
+        synchronized (addresses) {
+            if (this.client != client) {
+                // the clients are closed
+                return;
+            }
+            Set<InetSocketTransportAddress> found = newHashSet();
+            for (DiscoveryNode node : nodes) {
+                if (node.clientNode() || !(node.address() instanceof InetSocketTransportAddress)) {
+                    continue;
+                }
+                InetSocketTransportAddress address = (InetSocketTransportAddress) node.address();
+                found.add(address);
+                missing.remove(address);
+                if (!addresses.contains(address)) {
+                    logger.info("adding discovered node {}", node);
+                    try {
+                        addTransportAddress(address);
+                    } catch (Exception e) {
+                        logger.warn("can't add node " + node, e);
+                        continue;
+                    }
+                    addresses.add(address);
+                    sniffed.put(address, node);
+                    nodesAdded.inc();
+                }
             }
+            Iterator<Map.Entry<InetSocketTransportAddress, DiscoveryNode>> it = sniffed.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<InetSocketTransportAddress, DiscoveryNode> entry = it.next();
+                InetSocketTransportAddress address = entry.getKey();
+                if (found.contains(address) || missing.add(address) || outstanding(entry.getValue()) > 0) {
+                    continue;
+                }
+                logger.info("removing node {}, it left the cluster", entry.getValue());
+                for (TransportClient c : clients) {
+                    c.removeTransportAddress(address);
+                }
+                addresses.remove(address);
+                missing.remove(address);
+                it.remove();
+                nodesRemoved.inc();
+            }
+        }
+    }
+
+    /**
+     * The number of sniffs.
+     */
+    public CounterMetric getSniffs() {
+        return sniffs;
+    }
+
+    /**
+     * The number of sniffs that could not discover the nodes.
+     */
+    public CounterMetric getSniffFailures() {
+        return sniffFailures;
+    }
+
+    /**
+     * The number of node addresses added by sniffing.
+     */
+    public CounterMetric getNodesAdded() {
+        return nodesAdded;
+    }
+
+    /**
+     * The number of node addresses removed by sniffing.
+     */
+    public CounterMetric getNodesRemoved() {
+        return nodesRemoved;
+    }
+
+    private int outstanding(DiscoveryNode node) {
+        for (TransportClient c : clients) {
+            if (c instanceof LoadBalancingTransportClient) {
+                // the balancer is shared by the pool
+                return ((LoadBalancingTransportClient) c).balancer().outstanding(node);
+            }
+        }
+        return 0;
+    }
+
+    private void addTransportAddress(TransportAddress address) {
+        for (TransportClient c : clients) {
+            c.addTransportAddress(address);
         }
-        logger.info("... discovery done");
     }
 
     private Map<String, String> parseQueryString(URI uri, String encoding)
@@ -4,22 +4,57 @@ import org.elasticsearch.ElasticsearchTimeoutException;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.ListenableActionFuture;
 import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsResponse;
 import org.elasticsearch.action.admin.indices.recovery.RecoveryResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.NoNodeAvailableException;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import static org.elasticsearch.common.collect.Lists.newLinkedList;
+import static org.elasticsearch.common.collect.Maps.newHashMap;
 
 public class ClientHelper {
 
+    private final static ESLogger logger = ESLoggerFactory.getLogger(ClientHelper.class.getSimpleName());
+
+    private final static String REPLICAS = "index.number_of_replicas";
+
+    /**
+     * The index settings for bulk loading. The translog of Elasticsearch 1.x is already synced
+     * asynchronously, so it is only flushed less often.
+     */
+    private final static Map<String, String> BULK_PROFILE = ImmutableMap.<String, String>builder()
+            .put("index.refresh_interval", "-1")
+            .put(REPLICAS, "0")
+            .put("index.translog.flush_threshold_size", "1gb")
+            .put("index.translog.flush_threshold_ops", "1000000")
+            .put("index.store.throttle.type", "none")
+            .build();
+
+    /**
+     * The defaults of Elasticsearch for the bulk load settings, restored if an index did not have them.
+     */
+    private final static Map<String, String> BULK_PROFILE_DEFAULTS = ImmutableMap.<String, String>builder()
+            .put("index.refresh_interval", "1s")
+            .put(REPLICAS, "1")
+            .put("index.translog.flush_threshold_size", "200mb")
+            .put("index.translog.flush_threshold_ops", Integer.toString(Integer.MAX_VALUE))
+            .put("index.store.throttle.type", "node")
+            .build();
+
     public static List<String> getConnectedNodes(TransportClient client) {
         List<String> nodes = newLinkedList();
         if (client.connectedNodes() != null) {
@@ -95,12 +130,116 @@ public class ClientHelper {
         return waitForRecovery(client, index);
     }
 
-    public static void startBulk(Client client, String index) throws IOException {
-        updateIndexSetting(client, index, "refresh_interval", -1);
+    /**
+     * Switch an index to the bulk load profile: no refresh, no replicas, a relaxed translog flush
+     * threshold, and no merge throttling. Replicas are kept if they auto expand.
+     *
+     * @param client the client
+     * @param index  the index
+     * @return the snapshot of the original index settings changed by the profile
+     * @throws IOException if the index settings can not be read
+     */
+    public static Settings startBulk(Client client, String index) throws IOException {
+        if (client == null) {
+            throw new IOException("no client");
+        }
+        if (index == null) {
+            throw new IOException("no index name given");
+        }
+        Settings current = client.admin().indices().prepareGetSettings(index).execute().actionGet()
+                .getIndexToSettings().get(index);
+        if (current == null) {
+            throw new IOException("no settings for index " + index);
+        }
+        ImmutableSettings.Builder snapshot = ImmutableSettings.settingsBuilder();
+        ImmutableSettings.Builder profile = ImmutableSettings.settingsBuilder();
+        String autoExpandReplicas = current.get("index.auto_expand_replicas");
+        for (Map.Entry<String, String> entry : BULK_PROFILE.entrySet()) {
+            String key = entry.getKey();
+            if (REPLICAS.equals(key) && autoExpandReplicas != null && !"false".equals(autoExpandReplicas)) {
+                continue;
+            }
+            String value = current.get(key);
+            snapshot.put(key, value != null ? value : BULK_PROFILE_DEFAULTS.get(key));
+            profile.put(key, entry.getValue());
+        }
+        client.admin().indices().updateSettings(new UpdateSettingsRequest(index).settings(profile)).actionGet();
+        return snapshot.build();
     }
 
-    public static void stopBulk(Client client, String index) throws IOException {
-        updateIndexSetting(client, index, "refresh_interval", 1000);
+    /**
+     * Restore the original settings of an index in bulk load profile, see {@link #stopBulk(Client, Map, TimeValue)}.
+     *
+     * @param client   the client
+     * @param index    the index
+     * @param snapshot the snapshot of the original settings, or null for the defaults
+     * @param timeout  the maximum time to wait for the replicas
+     * @return true if all shards are active within the timeout
+     * @throws IOException if there is no client
+     */
+    public static boolean stopBulk(Client client, String index, Settings snapshot, TimeValue timeout) throws IOException {
+        Map<String, Settings> snapshots = newHashMap();
+        snapshots.put(index, snapshot);
+        return stopBulk(client, snapshots, timeout);
+    }
+
+    /**
+     * Restore the original settings of indices in bulk load profile. Without snapshot, the Elasticsearch
+     * defaults are restored. The replicas are added last, to all indices at once. Then all shards of
+     * the indices are awaited together, up to the timeout, so a cluster that can not place every
+     * replica does not block longer. If the wait times out, it is logged.
+     *
+     * @param client    the client
+     * @param snapshots the snapshots of the original settings by index
+     * @param timeout   the maximum time to wait for the replicas
+     * @return true if all shards are active within the timeout
+     * @throws IOException if there is no client
+     */
+    public static boolean stopBulk(Client client, Map<String, Settings> snapshots, TimeValue timeout) throws IOException {
+        if (client == null) {
+            throw new IOException("no client");
+        }
+        if (snapshots.isEmpty()) {
+            return true;
+        }
+        Map<String, String> replicas = newHashMap();
+        for (Map.Entry<String, Settings> entry : snapshots.entrySet()) {
+            String index = entry.getKey();
+            Settings snapshot = entry.getValue() != null ?
+                    entry.getValue() : ImmutableSettings.settingsBuilder().put(BULK_PROFILE_DEFAULTS).build();
+            ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder();
+            for (Map.Entry<String, String> setting : snapshot.getAsMap().entrySet()) {
+                if (REPLICAS.equals(setting.getKey())) {
+                    if (!"0".equals(setting.getValue())) {
+                        replicas.put(index, setting.getValue());
+                    }
+                } else {
+                    settings.put(setting.getKey(), setting.getValue());
+                }
+            }
+            client.admin().indices().updateSettings(new UpdateSettingsRequest(index).settings(settings)).actionGet();
+        }
+        if (replicas.isEmpty()) {
+            return true;
+        }
+        List<ListenableActionFuture<UpdateSettingsResponse>> futures = newLinkedList();
+        for (Map.Entry<String, String> entry : replicas.entrySet()) {
+            futures.add(client.admin().indices().prepareUpdateSettings(entry.getKey())
+                    .setSettings(ImmutableSettings.settingsBuilder().put(REPLICAS, entry.getValue()))
+                    .execute());
+        }
+        for (ListenableActionFuture<UpdateSettingsResponse> future : futures) {
+            future.actionGet();
+        }
+        String[] indices = replicas.keySet().toArray(new String[replicas.size()]);
+        ClusterHealthResponse healthResponse = client.admin().cluster().prepareHealth(indices)
+                .setWaitForGreenStatus().setTimeout(timeout).execute().actionGet();
+        if (healthResponse.isTimedOut()) {
+            logger.warn("indices {} not recovered within {} ms, status is {}",
+                    replicas.keySet(), timeout.millis(), healthResponse.getStatus().name());
+            return false;
+        }
+        return true;
     }
 
     public static void refresh(Client client, String index) {
@@ -0,0 +1,144 @@
+package org.xbib.elasticsearch.support.client;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportService;
+import org.xbib.elasticsearch.action.ingest.IngestAction;
+import org.xbib.elasticsearch.plugin.support.TransportServiceRegistry;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport client that sends bulk, ingest and search requests to the least loaded connected
+ * node, see {@link NodeLoadBalancer}, instead of the next node in turn. All other requests, and
+ * requests for which no node can be selected, are sent as by the transport client. A request
+ * that can not be sent because the node is not reachable counts as a failure of the node and is
+ * sent again as by the transport client.
+ */
+public class LoadBalancingTransportClient extends TransportClient {
+
+    private final NodeLoadBalancer balancer;
+
+    private final TransportService transportService;
+
+    public LoadBalancingTransportClient(Settings settings, boolean loadConfigSettings, NodeLoadBalancer balancer)
+            throws ElasticsearchException {
+        super(settings, loadConfigSettings);
+        this.balancer = balancer;
+        this.transportService = TransportServiceRegistry.transportService(this);
+    }
+
+    public NodeLoadBalancer balancer() {
+        return balancer;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>>
+    ActionFuture<Response> execute(Action<Request, Response, RequestBuilder> action, Request request) {
+        PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+        execute(action, request, future);
+        return future;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>>
+    void execute(final Action<Request, Response, RequestBuilder> action, final Request request, final ActionListener<Response> listener) {
+        if (!isBalanced(action)) {
+            super.execute(action, request, listener);
+            return;
+        }
+        ActionRequestValidationException validationException = request.validate();
+        if (validationException != null) {
+            listener.onFailure(validationException);
+            return;
+        }
+        List<DiscoveryNode> nodes = connectedNodes();
+        final DiscoveryNode node = balancer.select(nodes);
+        if (node == null) {
+            super.execute(action, request, listener);
+            return;
+        }
+        final long startNanos = System.nanoTime();
+        try {
+            transportService.sendRequest(node, action.name(), request, action.transportOptions(settings()),
+                    new BaseTransportResponseHandler<Response>() {
+                        @Override
+                        public Response newInstance() {
+                            return action.newResponse();
+                        }
+
+                        @Override
+                        public void handleResponse(Response response) {
+                            balancer.onResponse(node, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                            listener.onResponse(response);
+                        }
+
+                        @Override
+                        public void handleException(TransportException exp) {
+                            if (ExceptionsHelper.unwrapCause(exp) instanceof ConnectTransportException) {
+                                balancer.onFailure(node);
+                                LoadBalancingTransportClient.super.execute(action, request, listener);
+                            } else {
+                                // the node answered with a failure
+                                balancer.onResponse(node, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                                listener.onFailure(exp);
+                            }
+                        }
+
+                        @Override
+                        public String executor() {
+                            return request.listenerThreaded() ? ThreadPool.Names.GENERIC : ThreadPool.Names.SAME;
+                        }
+                    });
+        } catch (Throwable t) {
+            balancer.onFailure(node);
+            super.execute(action, request, listener);
+        }
+    }
+
+    @Override
+    public ActionFuture<BulkResponse> bulk(BulkRequest request) {
+        return execute(BulkAction.INSTANCE, request);
+    }
+
+    @Override
+    public void bulk(BulkRequest request, ActionListener<BulkResponse> listener) {
+        execute(BulkAction.INSTANCE, request, listener);
+    }
+
+    @Override
+    public ActionFuture<SearchResponse> search(SearchRequest request) {
+        return execute(SearchAction.INSTANCE, request);
+    }
+
+    @Override
+    public void search(SearchRequest request, ActionListener<SearchResponse> listener) {
+        execute(SearchAction.INSTANCE, request, listener);
+    }
+
+    private static boolean isBalanced(Action<?, ?, ?> action) {
+        return action == BulkAction.INSTANCE || action == SearchAction.INSTANCE || action == IngestAction.INSTANCE;
+    }
+}
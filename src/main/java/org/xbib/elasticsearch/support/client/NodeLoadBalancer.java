@@ -0,0 +1,330 @@
+package org.xbib.elasticsearch.support.client;
+
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.xbib.metrics.ExpWeightedMovingAverage;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Selects the least loaded node for a request, by the response latency and the number of
+ * outstanding requests of the nodes.
+ * <p/>
+ * The latency of a node is an exponentially weighted moving average of its response times, decayed
+ * every second with a window of ten seconds. The load of a node is its latency times its outstanding
+ * requests plus one, a node without responses yet counts with the average latency of the others.
+ * A node whose latency exceeds the median latency by the outlier factor, or whose requests failed
+ * the maximum number of times in a row, is ejected for the ejection time, at most half of the
+ * nodes at once. An ejected node is only selected if all nodes are ejected.
+ */
+public class NodeLoadBalancer {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(NodeLoadBalancer.class.getSimpleName());
+
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final double ALPHA = 1 - Math.exp(-1 / 10.0);
+
+    private final ConcurrentMap<String, NodeStats> stats = ConcurrentCollections.newConcurrentMap();
+
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final double outlierFactor;
+
+    private final long minOutlierLatencyMillis;
+
+    private final int maxFailures;
+
+    private final long ejectionNanos;
+
+    public NodeLoadBalancer(Settings settings) {
+        this(settings.getAsDouble("client.transport.load_balancing.outlier_factor", 3.0d),
+                settings.getAsTime("client.transport.load_balancing.min_outlier_latency", TimeValue.timeValueMillis(100)),
+                settings.getAsInt("client.transport.load_balancing.max_failures", 3),
+                settings.getAsTime("client.transport.load_balancing.ejection_time", TimeValue.timeValueSeconds(30)));
+    }
+
+    public NodeLoadBalancer(double outlierFactor, TimeValue minOutlierLatency, int maxFailures, TimeValue ejectionTime) {
+        this.outlierFactor = Math.max(1.0d, outlierFactor);
+        this.minOutlierLatencyMillis = minOutlierLatency.millis();
+        this.maxFailures = Math.max(1, maxFailures);
+        this.ejectionNanos = ejectionTime.nanos();
+    }
+
+    /**
+     * Select the least loaded node, and count a request outstanding on it. Of equally loaded
+     * nodes, the next one in turn is selected.
+     *
+     * @param nodes the connected nodes
+     * @return the node, or null if there are no nodes
+     */
+    public DiscoveryNode select(List<DiscoveryNode> nodes) {
+        if (nodes == null || nodes.isEmpty()) {
+            return null;
+        }
+        tickIfNecessary(System.nanoTime(), nodes);
+        long now = System.nanoTime();
+        double fallback = averageLatency();
+        int size = nodes.size();
+        int start = (next.getAndIncrement() & 0x7fffffff) % size;
+        DiscoveryNode best = null;
+        NodeStats bestStats = null;
+        double bestLoad = Double.MAX_VALUE;
+        boolean bestEjected = true;
+        for (int k = 0; k < size; k++) {
+            DiscoveryNode node = nodes.get((start + k) % size);
+            NodeStats s = stats(node);
+            boolean ejected = s.isEjected(now);
+            if (ejected && !bestEjected) {
+                continue;
+            }
+            double latency = s.latency();
+            double load = (latency > 0.0d ? latency : Math.max(fallback, 1.0d)) * (s.outstanding.get() + 1);
+            if (best == null || (bestEjected && !ejected) || load < bestLoad) {
+                best = node;
+                bestStats = s;
+                bestLoad = load;
+                bestEjected = ejected;
+            }
+        }
+        bestStats.outstanding.incrementAndGet();
+        return best;
+    }
+
+    /**
+     * A request to a node is answered.
+     *
+     * @param node          the node
+     * @param latencyMillis the response time in milliseconds
+     */
+    public void onResponse(DiscoveryNode node, long latencyMillis) {
+        NodeStats s = stats(node);
+        s.done();
+        s.failures.set(0);
+        s.latency.update(latencyMillis);
+        s.responses.update(1);
+    }
+
+    /**
+     * A request to a node failed because of the node, for example it is not reachable.
+     *
+     * @param node the node
+     */
+    public void onFailure(DiscoveryNode node) {
+        NodeStats s = stats(node);
+        s.done();
+        if (s.failures.incrementAndGet() >= maxFailures) {
+            eject(s, System.nanoTime(), "failed " + s.failures.get() + " times in a row");
+        }
+    }
+
+    /**
+     * Forget the nodes that are no longer connected and have no outstanding requests.
+     *
+     * @param nodes the connected nodes
+     */
+    public void retain(List<DiscoveryNode> nodes) {
+        Iterator<NodeStats> it = stats.values().iterator();
+        while (it.hasNext()) {
+            NodeStats s = it.next();
+            if (s.outstanding.get() > 0) {
+                continue;
+            }
+            boolean found = false;
+            for (DiscoveryNode node : nodes) {
+                if (node.id().equals(s.id)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * The moving average of the response times of a node in milliseconds, 0 if unknown.
+     */
+    public double latency(DiscoveryNode node) {
+        NodeStats s = stats.get(node.id());
+        return s != null ? s.latency() : 0.0d;
+    }
+
+    /**
+     * The number of outstanding requests of a node.
+     */
+    public int outstanding(DiscoveryNode node) {
+        NodeStats s = stats.get(node.id());
+        return s != null ? s.outstanding.get() : 0;
+    }
+
+    /**
+     * If a node is ejected.
+     */
+    public boolean isEjected(DiscoveryNode node) {
+        NodeStats s = stats.get(node.id());
+        return s != null && s.isEjected(System.nanoTime());
+    }
+
+    /**
+     * Forget the nodes that are gone, decay the moving averages and eject the outliers, once per second.
+     */
+    private void tickIfNecessary(long now, List<DiscoveryNode> nodes) {
+        long last = lastTick.get();
+        long age = now - last;
+        if (age < TICK_NANOS) {
+            return;
+        }
+        if (lastTick.compareAndSet(last, now - age % TICK_NANOS)) {
+            retain(nodes);
+            long ticks = Math.min(age / TICK_NANOS, 60L);
+            for (long i = 0; i < ticks; i++) {
+                tick();
+            }
+        }
+    }
+
+    /**
+     * Decay the moving averages and eject the outliers.
+     */
+    void tick() {
+        for (NodeStats s : stats.values()) {
+            s.latency.tick();
+            s.responses.tick();
+        }
+        ejectOutliers(System.nanoTime());
+    }
+
+    private void ejectOutliers(long now) {
+        double[] latencies = new double[stats.size()];
+        int n = 0;
+        for (NodeStats s : stats.values()) {
+            double latency = s.latency();
+            if (!s.isEjected(now) && latency > 0.0d && n < latencies.length) {
+                latencies[n++] = latency;
+            }
+        }
+        if (n < 3) {
+            // no median of other nodes to compare with
+            return;
+        }
+        Arrays.sort(latencies, 0, n);
+        double median = latencies[n / 2];
+        double threshold = Math.max(median * outlierFactor, minOutlierLatencyMillis);
+        for (NodeStats s : stats.values()) {
+            double latency = s.latency();
+            if (latency > threshold) {
+                eject(s, now, String.format("latency %.1f ms, median %.1f ms", latency, median));
+            }
+        }
+    }
+
+    private void eject(NodeStats s, long now, String reason) {
+        int ejected = 0;
+        for (NodeStats other : stats.values()) {
+            if (other != s && other.isEjected(now)) {
+                ejected++;
+            }
+        }
+        if (s.isEjected(now) || 2 * (ejected + 1) > stats.size()) {
+            return;
+        }
+        logger.warn("ejecting node [{}] for {} ms: {}", s.id, TimeUnit.NANOSECONDS.toMillis(ejectionNanos), reason);
+        s.ejectedUntil = now + ejectionNanos;
+        s.failures.set(0);
+        // start over when readmitted
+        s.reset();
+    }
+
+    private double averageLatency() {
+        double sum = 0.0d;
+        int n = 0;
+        for (NodeStats s : stats.values()) {
+            double latency = s.latency();
+            if (latency > 0.0d) {
+                sum += latency;
+                n++;
+            }
+        }
+        return n > 0 ? sum / n : 0.0d;
+    }
+
+    private NodeStats stats(DiscoveryNode node) {
+        NodeStats s = stats.get(node.id());
+        if (s == null) {
+            s = new NodeStats(node.id());
+            NodeStats previous = stats.putIfAbsent(node.id(), s);
+            if (previous != null) {
+                s = previous;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * The latency, outstanding requests and failures of a node.
+     */
+    private static class NodeStats {
+
+        final String id;
+
+        final AtomicInteger outstanding = new AtomicInteger();
+
+        final AtomicInteger failures = new AtomicInteger();
+
+        volatile ExpWeightedMovingAverage latency = newAverage();
+
+        volatile ExpWeightedMovingAverage responses = newAverage();
+
+        volatile long ejectedUntil;
+
+        NodeStats(String id) {
+            this.id = id;
+        }
+
+        double latency() {
+            double rate = responses.rate(TimeUnit.SECONDS);
+            return rate > 0.0d ? latency.rate(TimeUnit.SECONDS) / rate : 0.0d;
+        }
+
+        /**
+         * A request is answered. The stats may be new if the node was forgotten while the
+         * request was outstanding, so the count does not go below zero.
+         */
+        void done() {
+            while (true) {
+                int n = outstanding.get();
+                if (n <= 0 || outstanding.compareAndSet(n, n - 1)) {
+                    return;
+                }
+            }
+        }
+
+        boolean isEjected(long now) {
+            long until = ejectedUntil;
+            return until != 0L && now - until < 0L;
+        }
+
+        void reset() {
+            latency = newAverage();
+            responses = newAverage();
+        }
+
+        private static ExpWeightedMovingAverage newAverage() {
+            return new ExpWeightedMovingAverage(ALPHA, 1, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -1,15 +1,22 @@
 package org.xbib.elasticsearch.support.client;
 
+import org.elasticsearch.common.settings.Settings;
 import org.xbib.metrics.CounterMetric;
 import org.xbib.metrics.MeanMetric;
+import org.xbib.metrics.MeterMetric;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 public class State {
 
     private final Set<String> indexNames = new HashSet();
 
+    private final Map<String, Settings> bulkSettings = new HashMap<String, Settings>();
+
     private final MeanMetric totalIngest = new MeanMetric();
 
     private final CounterMetric totalIngestSizeInBytes = new CounterMetric();
@@ -24,6 +31,16 @@ public class State {
 
     private final CounterMetric failed = new CounterMetric();
 
+    private final MeanMetric blocked = new MeanMetric();
+
+    private final CounterMetric retried = new CounterMetric();
+
+    private volatile Map<String, MeterMetric> indexThroughput = Collections.emptyMap();
+
+    private volatile int bulkActions;
+
+    private volatile int bulkConcurrency;
+
     public MeanMetric getTotalIngest() {
         return totalIngest;
     }
@@ -52,6 +69,52 @@ public class State {
         return failed;
     }
 
+    /**
+     * The time adds were blocked by the memory budget, in milliseconds.
+     */
+    public MeanMetric getBlocked() {
+        return blocked;
+    }
+
+    /**
+     * The number of failed actions that were sent again.
+     */
+    public CounterMetric getRetried() {
+        return retried;
+    }
+
+    /**
+     * The throughput of answered actions by index, if the actions are scheduled by index.
+     */
+    public Map<String, MeterMetric> getIndexThroughput() {
+        return indexThroughput;
+    }
+
+    public State setIndexThroughput(Map<String, MeterMetric> indexThroughput) {
+        this.indexThroughput = indexThroughput;
+        return this;
+    }
+
+    /**
+     * The current number of actions per bulk request.
+     */
+    public int getBulkActions() {
+        return bulkActions;
+    }
+
+    /**
+     * The current number of concurrent bulk requests.
+     */
+    public int getBulkConcurrency() {
+        return bulkConcurrency;
+    }
+
+    public State setBulkLimits(int actions, int concurrency) {
+        this.bulkActions = actions;
+        this.bulkConcurrency = concurrency;
+        return this;
+    }
+
     public State startBulk(String indexName) {
         synchronized (indexNames) {
             indexNames.add(indexName);
@@ -59,6 +122,32 @@ public class State {
         return this;
     }
 
+    /**
+     * Start bulk mode for an index, with the original index settings to restore when it stops.
+     */
+    public State startBulk(String indexName, Settings settings) {
+        synchronized (indexNames) {
+            indexNames.add(indexName);
+            if (settings != null) {
+                bulkSettings.put(indexName, settings);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * The original index settings of the indices in bulk mode, by index.
+     */
+    public Map<String, Settings> getBulkSettings() {
+        synchronized (indexNames) {
+            Map<String, Settings> settings = new HashMap<String, Settings>();
+            for (String indexName : indexNames) {
+                settings.put(indexName, bulkSettings.get(indexName));
+            }
+            return settings;
+        }
+    }
+
     public boolean isBulk(String indexName) {
         return indexNames.contains(indexName);
     }
@@ -66,6 +155,7 @@ public class State {
     public State stopBulk(String indexName) {
         synchronized (indexNames) {
             indexNames.remove(indexName);
+            bulkSettings.remove(indexName);
         }
         return this;
     }
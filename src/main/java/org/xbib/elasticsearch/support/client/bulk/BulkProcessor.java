@@ -0,0 +1,362 @@
+package org.xbib.elasticsearch.support.client.bulk;
+
+import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.xbib.metrics.MeanMetric;
+
+import java.io.Closeable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bulk processor with the API of the bulk processor of Elasticsearch, and with
+ * flushing and waiting for responses.
+ * <p/>
+ * The lock of the processor is held only while an action is added to the pending bulk request
+ * and while a due bulk request is taken. The bulk request is sent outside of the lock, so a
+ * producer waiting for a free concurrent request does not block other producers from filling
+ * the next bulk request. The round trip times of the bulk requests are measured.
+ */
+public class BulkProcessor implements Closeable {
+
+    /**
+     * A listener for the execution.
+     */
+    public static interface Listener {
+
+        /**
+         * Callback before the bulk is executed.
+         */
+        void beforeBulk(long executionId, BulkRequest request);
+
+        /**
+         * Callback after a successful execution of bulk request.
+         */
+        void afterBulk(long executionId, BulkRequest request, BulkResponse response);
+
+        /**
+         * Callback after a failed execution of bulk request.
+         */
+        void afterBulk(long executionId, BulkRequest request, Throwable failure);
+    }
+
+    /**
+     * A builder used to create a build an instance of a bulk processor.
+     */
+    public static class Builder {
+
+        private final Client client;
+
+        private final Listener listener;
+
+        private String name;
+
+        private int concurrentRequests = 1;
+
+        private int bulkActions = 1000;
+
+        private ByteSizeValue bulkSize = new ByteSizeValue(5, ByteSizeUnit.MB);
+
+        private TimeValue flushInterval = null;
+
+        /**
+         * Creates a builder of bulk processor with the client to use and the listener that will be used
+         * to be notified on the completion of bulk requests.
+         */
+        public Builder(Client client, Listener listener) {
+            this.client = client;
+            this.listener = listener;
+        }
+
+        /**
+         * Sets an optional name to identify this bulk processor.
+         */
+        public Builder setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Sets the number of concurrent requests allowed to be executed. A value of 0 means that only a single
+         * request will be allowed to be executed. A value of 1 means 1 concurrent request is allowed to be executed
+         * while accumulating new bulk requests. Defaults to <tt>1</tt>.
+         */
+        public Builder setConcurrentRequests(int concurrentRequests) {
+            this.concurrentRequests = concurrentRequests;
+            return this;
+        }
+
+        /**
+         * Sets when to flush a new bulk request based on the number of actions currently added. Defaults to
+         * <tt>1000</tt>. Can be set to <tt>-1</tt> to disable it.
+         */
+        public Builder setBulkActions(int bulkActions) {
+            this.bulkActions = bulkActions;
+            return this;
+        }
+
+        /**
+         * Sets when to flush a new bulk request based on the size of actions currently added. Defaults to
+         * <tt>5mb</tt>. Can be set to <tt>-1</tt> to disable it.
+         */
+        public Builder setBulkSize(ByteSizeValue bulkSize) {
+            this.bulkSize = bulkSize;
+            return this;
+        }
+
+        /**
+         * Sets a flush interval flushing *any* bulk actions pending if the interval passes. Defaults to not set.
+         */
+        public Builder setFlushInterval(TimeValue flushInterval) {
+            this.flushInterval = flushInterval;
+            return this;
+        }
+
+        /**
+         * Builds a new bulk processor.
+         */
+        public BulkProcessor build() {
+            return new BulkProcessor(client, listener, name, concurrentRequests, bulkActions, bulkSize, flushInterval);
+        }
+    }
+
+    public static Builder builder(Client client, Listener listener) {
+        return new Builder(client, listener);
+    }
+
+    private final Client client;
+
+    private final Listener listener;
+
+    private final int concurrentRequests;
+
+    private final int bulkActions;
+
+    private final long bulkSize;
+
+    private final Semaphore semaphore;
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    private final ScheduledFuture scheduledFuture;
+
+    private final AtomicLong executionIdGen = new AtomicLong();
+
+    private final MeanMetric responseTime = new MeanMetric();
+
+    private BulkRequest bulkRequest;
+
+    private volatile boolean closed;
+
+    BulkProcessor(Client client, Listener listener, String name, int concurrentRequests, int bulkActions,
+                  ByteSizeValue bulkSize, TimeValue flushInterval) {
+        this.client = client;
+        this.listener = listener;
+        this.concurrentRequests = concurrentRequests;
+        this.bulkActions = bulkActions;
+        this.bulkSize = bulkSize != null ? bulkSize.bytes() : -1L;
+        this.semaphore = new Semaphore(Math.max(1, concurrentRequests));
+        this.bulkRequest = new BulkRequest();
+        if (flushInterval != null) {
+            this.scheduler = new ScheduledThreadPoolExecutor(1,
+                    EsExecutors.daemonThreadFactory((name != null ? "[" + name + "]" : "") + "bulk_processor"));
+            this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            this.scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+            this.scheduledFuture = this.scheduler.scheduleWithFixedDelay(new Flush(),
+                    flushInterval.millis(), flushInterval.millis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.scheduler = null;
+            this.scheduledFuture = null;
+        }
+    }
+
+    /**
+     * Closes the processor. If flushing by time is enabled, then it is canceled. Any remaining bulk
+     * actions are flushed, without waiting for their responses.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (scheduledFuture != null) {
+            scheduledFuture.cancel(false);
+            scheduler.shutdown();
+        }
+        execute(takeAll());
+    }
+
+    /**
+     * Adds an {@link IndexRequest} to the list of actions to execute.
+     */
+    public BulkProcessor add(IndexRequest request) {
+        return add((ActionRequest) request);
+    }
+
+    /**
+     * Adds an {@link DeleteRequest} to the list of actions to execute.
+     */
+    public BulkProcessor add(DeleteRequest request) {
+        return add((ActionRequest) request);
+    }
+
+    /**
+     * Adds either a delete or an index request.
+     */
+    public BulkProcessor add(ActionRequest request) {
+        ensureOpen();
+        BulkRequest due = null;
+        synchronized (this) {
+            bulkRequest.add(request);
+            if (isOverTheLimit()) {
+                due = bulkRequest;
+                bulkRequest = new BulkRequest();
+            }
+        }
+        execute(due);
+        return this;
+    }
+
+    /**
+     * Flush pending bulk actions, without waiting for their responses. A closed processor has
+     * nothing to flush, its actions were flushed when it was closed.
+     */
+    public void flush() {
+        if (closed) {
+            return;
+        }
+        execute(takeAll());
+    }
+
+    /**
+     * Wait for the responses of all bulk requests in flight.
+     *
+     * @param maxWait the maximum time to wait
+     * @return true if all responses arrived within the waiting time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean waitForResponses(TimeValue maxWait) throws InterruptedException {
+        int permits = Math.max(1, concurrentRequests);
+        if (semaphore.tryAcquire(permits, maxWait.millis(), TimeUnit.MILLISECONDS)) {
+            semaphore.release(permits);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The number of bulk requests in flight.
+     */
+    public int inFlight() {
+        return Math.max(1, concurrentRequests) - semaphore.availablePermits();
+    }
+
+    /**
+     * The round trip times of the bulk requests in milliseconds.
+     */
+    public MeanMetric responseTime() {
+        return responseTime;
+    }
+
+    public void ensureOpen() {
+        if (closed) {
+            throw new ElasticsearchIllegalStateException("bulk process already closed");
+        }
+    }
+
+    private synchronized BulkRequest takeAll() {
+        if (bulkRequest.numberOfActions() == 0) {
+            return null;
+        }
+        BulkRequest request = bulkRequest;
+        bulkRequest = new BulkRequest();
+        return request;
+    }
+
+    private boolean isOverTheLimit() {
+        return (bulkActions != -1 && bulkRequest.numberOfActions() >= bulkActions)
+                || (bulkSize != -1L && bulkRequest.estimatedSizeInBytes() >= bulkSize);
+    }
+
+    private void execute(final BulkRequest request) {
+        if (request == null) {
+            return;
+        }
+        final long executionId = executionIdGen.incrementAndGet();
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            listener.afterBulk(executionId, request, e);
+            return;
+        }
+        final long start = System.nanoTime();
+        boolean sent = false;
+        try {
+            listener.beforeBulk(executionId, request);
+            if (concurrentRequests == 0) {
+                // sent and answered in the calling thread
+                try {
+                    BulkResponse response = client.bulk(request).actionGet();
+                    responseTime.inc(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    listener.afterBulk(executionId, request, response);
+                } catch (Exception e) {
+                    listener.afterBulk(executionId, request, e);
+                }
+                return;
+            }
+            client.bulk(request, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    responseTime.inc(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    try {
+                        listener.afterBulk(executionId, request, response);
+                    } finally {
+                        semaphore.release();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    try {
+                        listener.afterBulk(executionId, request, e);
+                    } finally {
+                        semaphore.release();
+                    }
+                }
+            });
+            sent = true;
+        } catch (Throwable t) {
+            listener.afterBulk(executionId, request, t);
+        } finally {
+            if (!sent) {
+                semaphore.release();
+            }
+        }
+    }
+
+    private class Flush implements Runnable {
+
+        @Override
+        public void run() {
+            if (closed) {
+                return;
+            }
+            execute(takeAll());
+        }
+    }
+}
@@ -3,14 +3,12 @@ package org.xbib.elasticsearch.support.client.bulk;
 import org.elasticsearch.ElasticsearchIllegalStateException;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
-import org.elasticsearch.common.collect.ImmutableSet;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
@@ -24,6 +22,7 @@ import org.xbib.elasticsearch.support.client.State;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -237,8 +236,7 @@ public class BulkTransportClient extends BaseIngestTransportClient implements In
             return this;
         }
         if (!state.isBulk(index)) {
-            state.startBulk(index);
-            ClientHelper.startBulk(client, index);
+            state.startBulk(index, ClientHelper.startBulk(client, index));
         }
         return this;
     }
@@ -249,8 +247,9 @@ public class BulkTransportClient extends BaseIngestTransportClient implements In
             return this;
         }
         if (state.isBulk(index)) {
+            Settings settings = state.getBulkSettings().get(index);
             state.stopBulk(index);
-            ClientHelper.stopBulk(client, index);
+            ClientHelper.stopBulk(client, index, settings, maxWaitTime);
         }
         return this;
     }
@@ -318,8 +317,7 @@ public class BulkTransportClient extends BaseIngestTransportClient implements In
             return this;
         }
         logger.info("flushing bulk processor");
-        // hacked BulkProcessor to execute the submission of remaining docs. Wait always 30 seconds at most.
-        BulkProcessorHelper.flush(bulkProcessor);
+        bulkProcessor.flush();
         return this;
     }
 
@@ -332,7 +330,9 @@ public class BulkTransportClient extends BaseIngestTransportClient implements In
             logger.warn("no client");
             return this;
         }
-        BulkProcessorHelper.waitFor(bulkProcessor, maxWaitTime);
+        if (!bulkProcessor.waitForResponses(maxWaitTime)) {
+            logger.warn("still {} bulk requests in flight after {}", bulkProcessor.inFlight(), maxWaitTime);
+        }
         return this;
     }
 
@@ -367,12 +367,6 @@ public class BulkTransportClient extends BaseIngestTransportClient implements In
                 logger.info("closing bulk processor...");
                 bulkProcessor.close();
             }
-            if (state.indices() != null && !state.indices().isEmpty()) {
-                logger.info("stopping bulk mode for indices {}...", state.indices());
-                for (String index : ImmutableSet.copyOf(state.indices())) {
-                    stopBulk(index);
-                }
-            }
             logger.info("waiting for outstandingRequests to be zero (timeout: " + Integer.toString(timeout) + ")");
             int sleepCycles = 0;
             while (outstandingRequests.get() > 0L && sleepCycles < timeout) {
@@ -384,7 +378,18 @@ public class BulkTransportClient extends BaseIngestTransportClient implements In
 	                Thread.currentThread().interrupt();
 	            }
             }
-            this.flush();
+            if (state.indices() != null && !state.indices().isEmpty()) {
+                logger.info("stopping bulk mode for indices {}...", state.indices());
+                Map<String, Settings> bulkSettings = state.getBulkSettings();
+                for (String index : bulkSettings.keySet()) {
+                    state.stopBulk(index);
+                }
+                try {
+                    ClientHelper.stopBulk(client, bulkSettings, maxWaitTime);
+                } catch (IOException e) {
+                    logger.warn(e.getMessage());
+                }
+            }
             logger.info("shutting down...");
             super.shutdown();
             logger.info("shutting down completed");
@@ -1,29 +1,40 @@
 package org.xbib.elasticsearch.support.client.ingest;
 
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ListenableActionFuture;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.PlainListenableActionFuture;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
-import org.elasticsearch.common.collect.ImmutableSet;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.xbib.elasticsearch.action.ingest.IngestClientPool;
+import org.xbib.elasticsearch.action.ingest.IngestClientRouter;
+import org.xbib.elasticsearch.action.ingest.IngestEncoding;
+import org.xbib.elasticsearch.action.ingest.IngestFairScheduler;
 import org.xbib.elasticsearch.action.ingest.IngestItemFailure;
 import org.xbib.elasticsearch.action.ingest.IngestProcessor;
 import org.xbib.elasticsearch.action.ingest.IngestRequest;
 import org.xbib.elasticsearch.action.ingest.IngestResponse;
+import org.xbib.elasticsearch.action.ingest.IngestRetryPolicy;
 import org.xbib.elasticsearch.support.client.BaseIngestTransportClient;
 import org.xbib.elasticsearch.support.client.ClientHelper;
 import org.xbib.elasticsearch.support.client.Ingest;
 import org.xbib.elasticsearch.support.client.State;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -45,6 +56,8 @@ public class IngestTransportClient extends BaseIngestTransportClient implements
 
     private ByteSizeValue maxVolumePerBulkRequest = new ByteSizeValue(10, ByteSizeUnit.MB);
 
+    private TimeValue flushInterval = TimeValue.timeValueSeconds(30);
+
     /**
      * The maximum wait time for responses when shutting down
      */
@@ -78,7 +91,7 @@ public class IngestTransportClient extends BaseIngestTransportClient implements
 
     @Override
     public IngestTransportClient flushInterval(TimeValue flushInterval) {
-        // ignore, not supported
+        this.flushInterval = flushInterval;
         return this;
     }
 
@@ -120,7 +133,7 @@ public class IngestTransportClient extends BaseIngestTransportClient implements
         super.newClient(uri, settings);
         this.state = new State();
         resetSettings();
-        IngestProcessor.Listener listener = new IngestProcessor.Listener() {
+        IngestProcessor.ExtendedListener listener = new IngestProcessor.ExtendedListener() {
             @Override
             public void beforeBulk(long executionId, int concurrency, IngestRequest request) {
                 int n = request.numberOfActions();
@@ -143,31 +156,122 @@ public class IngestTransportClient extends BaseIngestTransportClient implements
                     state.getTotalIngest().inc(response.tookInMillis());
                 }
                 if (logger.isDebugEnabled()) {
-                    logger.debug("after bulk [{}] [succeeded={}] [failed={}] [{}ms]",
+                    logger.debug("after bulk [{}] [succeeded={}] [failed={}] [{}ms] [queue={}] [inflight={}]",
                             executionId,
                             state.getSucceeded().count(),
                             state.getFailed().count(),
-                            response.tookInMillis());
+                            response.tookInMillis(),
+                            response.queueSize(),
+                            response.inFlightBytes());
                 }
                 if (response.hasFailures()) {
-                    closed = true;
+                    if (ingestProcessor.retryPolicy() == null) {
+                        closed = true;
+                    }
                     for (IngestItemFailure f : response.failure()) {
                         logger.error("after bulk [{}] [{}] failure, reason: {}", executionId, f.pos(), f.message());
                     }
                 } else {
-                    state.getCurrentIngestNumDocs().dec(response.successSize());
+                    state.getCurrentIngestNumDocs().dec(response.successSize() + response.collapsedSize());
                 }
             }
 
             @Override
             public void afterBulk(long executionId, int concurrency, Throwable failure) {
-                closed = true;
+                if (ingestProcessor.retryPolicy() == null) {
+                    closed = true;
+                }
                 logger.error("after bulk [" + executionId + "] failure", failure);
                 throwable = failure;
             }
+
+            @Override
+            public void adapted(int actions, int concurrency) {
+                if (state != null) {
+                    state.setBulkLimits(actions, concurrency);
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("adapted to {} actions per bulk request, {} concurrent bulk requests",
+                            actions, concurrency);
+                }
+            }
+
+            @Override
+            public void blocked(long millis) {
+                if (state != null) {
+                    state.getBlocked().inc(millis);
+                }
+            }
+
+            @Override
+            public void retried(long executionId, int actions, long delayMillis) {
+                if (state != null) {
+                    state.getRetried().inc(actions);
+                    // counted again before the retry
+                    state.getSubmitted().dec(actions);
+                    state.getCurrentIngestNumDocs().dec(actions);
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("bulk [{}] retrying {} actions in {}ms", executionId, actions, delayMillis);
+                }
+            }
+
+            @Override
+            public void failed(long executionId, ActionRequest request, String reason) {
+                logger.error("bulk [{}] dead letter {}, reason: {}", executionId, request, reason);
+            }
         };
         this.ingestProcessor = new IngestProcessor(client, maxConcurrentBulkRequests, maxActionsPerBulkRequest, maxVolumePerBulkRequest, maxWaitTime)
+                .encoding(IngestEncoding.fromSettings(settings))
+                .collapseDuplicates(settings.getAsBoolean("action.ingest.collapse_duplicates", false))
+                .maxLinger(settings.getAsTime("action.ingest.max_linger", null))
+                .staging(settings.getAsInt("action.ingest.staging_stripes", 0))
+                .lanes(settings.getAsInt("action.ingest.lanes", 0))
+                .memoryBudget(settings.getAsBytesSize("action.ingest.memory_budget", null),
+                        settings.getAsTime("action.ingest.memory_budget.max_wait", null))
+                .flushInterval(flushInterval)
                 .listener(listener);
+        if (settings.getAsBoolean("action.ingest.adaptive", false)) {
+            ingestProcessor.adaptive(settings.getAsInt("action.ingest.adaptive.max_actions", null),
+                    settings.getAsInt("action.ingest.adaptive.max_concurrency", null),
+                    settings.getAsTime("action.ingest.adaptive.latency_target", null));
+        }
+        int maxRetries = settings.getAsInt("action.ingest.retry.max_retries", 0);
+        if (maxRetries > 0) {
+            ingestProcessor.retryPolicy(new IngestRetryPolicy(maxRetries,
+                    settings.getAsTime("action.ingest.retry.initial_backoff", TimeValue.timeValueMillis(100)),
+                    settings.getAsTime("action.ingest.retry.max_backoff", TimeValue.timeValueSeconds(30))));
+        }
+        if (settings.getAsBoolean("action.ingest.fair", false)) {
+            IngestFairScheduler fairScheduler = new IngestFairScheduler()
+                    .idleTimeout(settings.getAsTime("action.ingest.fair.idle_timeout", TimeValue.timeValueMinutes(5)));
+            for (Map.Entry<String, Settings> entry : settings.getGroups("action.ingest.fair.index").entrySet()) {
+                Settings limits = entry.getValue();
+                fairScheduler.limits(entry.getKey(), limits.getAsInt("weight", 1),
+                        limits.getAsInt("max_concurrency", 0), limits.getAsBytesSize("max_volume", null));
+            }
+            ingestProcessor.fairScheduler(fairScheduler);
+            state.setIndexThroughput(fairScheduler.throughput());
+        }
+        if (clients.size() > 1) {
+            ingestProcessor.clientPool(new IngestClientPool(clients));
+        }
+        if (settings.getAsBoolean("action.ingest.client_routing", false)) {
+            ingestProcessor.router(new IngestClientRouter(client, settings));
+        }
+        String spoolPath = settings.get("action.ingest.spool.path");
+        if (spoolPath != null) {
+            try {
+                int n = ingestProcessor.spool(new File(spoolPath), settings.getAsBytesSize("action.ingest.spool.segment_size", null))
+                        .replay();
+                if (n > 0) {
+                    logger.info("replayed {} unacknowledged actions from spool {}", n, spoolPath);
+                }
+            } catch (IOException e) {
+                throw new ElasticsearchException("can not open spool " + spoolPath, e);
+            }
+        }
+        state.setBulkLimits(ingestProcessor.currentActions(), ingestProcessor.currentConcurrency());
         this.closed = false;
         return this;
     }
@@ -233,8 +337,7 @@ public class IngestTransportClient extends BaseIngestTransportClient implements
             return this;
         }
         if (!state.isBulk(index)) {
-            state.startBulk(index);
-            ClientHelper.startBulk(client, index);
+            state.startBulk(index, ClientHelper.startBulk(client, index));
         }
         return this;
     }
@@ -245,8 +348,9 @@ public class IngestTransportClient extends BaseIngestTransportClient implements
             return this;
         }
         if (state.isBulk(index)) {
+            Settings settings = state.getBulkSettings().get(index);
             state.stopBulk(index);
-            ClientHelper.stopBulk(client, index);
+            ClientHelper.stopBulk(client, index, settings, maxWaitTime);
         }
         return this;
     }
@@ -311,6 +415,60 @@ public class IngestTransportClient extends BaseIngestTransportClient implements
         return this;
     }
 
+    /**
+     * Index a document and return a future that is completed when the document is acknowledged
+     * by the cluster, or failed if it can not be indexed.
+     *
+     * @param indexRequest the index request
+     * @return the ack future
+     */
+    public ListenableActionFuture<ActionRequest> indexWithAck(IndexRequest indexRequest) {
+        if (closed) {
+            throw new ElasticsearchIllegalStateException("client is closed");
+        }
+        try {
+            state.getCurrentIngest().inc();
+            return ingestProcessor.addWithAck(indexRequest);
+        } catch (Exception e) {
+            throwable = e;
+            closed = true;
+            logger.error("bulk add of index request failed: " + e.getMessage(), e);
+            return failedAck(e);
+        } finally {
+            state.getCurrentIngest().dec();
+        }
+    }
+
+    /**
+     * Delete a document and return a future that is completed when the deletion is acknowledged
+     * by the cluster, or failed if it can not be deleted.
+     *
+     * @param deleteRequest the delete request
+     * @return the ack future
+     */
+    public ListenableActionFuture<ActionRequest> deleteWithAck(DeleteRequest deleteRequest) {
+        if (closed) {
+            throw new ElasticsearchIllegalStateException("client is closed");
+        }
+        try {
+            state.getCurrentIngest().inc();
+            return ingestProcessor.addWithAck(deleteRequest);
+        } catch (Exception e) {
+            throwable = e;
+            closed = true;
+            logger.error("bulk add of delete request failed: " + e.getMessage(), e);
+            return failedAck(e);
+        } finally {
+            state.getCurrentIngest().dec();
+        }
+    }
+
+    private static ListenableActionFuture<ActionRequest> failedAck(Throwable t) {
+        PlainListenableActionFuture<ActionRequest> ack = new PlainListenableActionFuture<ActionRequest>(false, null);
+        ack.onFailure(t);
+        return ack;
+    }
+
     @Override
     public IngestTransportClient flush() {
         if (closed) {
@@ -367,11 +525,21 @@ public class IngestTransportClient extends BaseIngestTransportClient implements
             if (ingestProcessor != null) {
                 logger.info("closing ingest processor...");
                 ingestProcessor.close();
+                if (ingestProcessor.clientPool() != null) {
+                    logger.info("requests sent per pooled client: {}",
+                            Arrays.toString(ingestProcessor.clientPool().sent()));
+                }
             }
             if (state.indices() != null && !state.indices().isEmpty()) {
                 logger.info("stopping bulk mode for indices {}...", state.indices());
-                for (String index : ImmutableSet.copyOf(state.indices())) {
-                    stopBulk(index);
+                Map<String, Settings> bulkSettings = state.getBulkSettings();
+                for (String index : bulkSettings.keySet()) {
+                    state.stopBulk(index);
+                }
+                try {
+                    ClientHelper.stopBulk(client, bulkSettings, maxWaitTime);
+                } catch (IOException e) {
+                    logger.warn(e.getMessage());
                 }
             }
             logger.info("shutting down...");
@@ -1,8 +1,11 @@
 package org.xbib.elasticsearch.support.client.ingest;
 
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ListenableActionFuture;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.PlainListenableActionFuture;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
@@ -68,6 +71,22 @@ public class MockIngestTransportClient extends IngestTransportClient {
         return this;
     }
 
+    @Override
+    public ListenableActionFuture<ActionRequest> indexWithAck(IndexRequest indexRequest) {
+        return ack(indexRequest);
+    }
+
+    @Override
+    public ListenableActionFuture<ActionRequest> deleteWithAck(DeleteRequest deleteRequest) {
+        return ack(deleteRequest);
+    }
+
+    private static ListenableActionFuture<ActionRequest> ack(ActionRequest request) {
+        PlainListenableActionFuture<ActionRequest> ack = new PlainListenableActionFuture<ActionRequest>(false, null);
+        ack.onResponse(request);
+        return ack;
+    }
+
     @Override
     public MockIngestTransportClient flush() {
         return this;
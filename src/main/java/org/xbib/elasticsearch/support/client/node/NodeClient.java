@@ -5,7 +5,6 @@ import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
@@ -24,12 +23,13 @@ import org.xbib.elasticsearch.support.client.ClientHelper;
 import org.xbib.elasticsearch.support.client.ConfigHelper;
 import org.xbib.elasticsearch.support.client.Ingest;
 import org.xbib.elasticsearch.support.client.State;
-import org.xbib.elasticsearch.support.client.bulk.BulkProcessorHelper;
+import org.xbib.elasticsearch.support.client.bulk.BulkProcessor;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -47,6 +47,11 @@ public class NodeClient implements Ingest {
 
     private TimeValue flushInterval = TimeValue.timeValueSeconds(30);
 
+    /**
+     * The maximum wait time for the indices when bulk mode stops
+     */
+    private TimeValue maxWaitTime = new TimeValue(60, TimeUnit.SECONDS);
+
     private final ConfigHelper configHelper = new ConfigHelper();
 
     private final AtomicLong outstandingBulkRequests = new AtomicLong(0L);
@@ -92,7 +97,7 @@ public class NodeClient implements Ingest {
     }
 
     public NodeClient maxRequestWait(TimeValue timeValue) {
-        // ignore, not implemented
+        this.maxWaitTime = timeValue;
         return this;
     }
 
@@ -239,7 +244,7 @@ public class NodeClient implements Ingest {
             throw new ElasticsearchIllegalStateException("client is closed");
         }
         logger.info("flushing bulk processor");
-        BulkProcessorHelper.flush(bulkProcessor);
+        bulkProcessor.flush();
         return this;
     }
 
@@ -248,7 +253,9 @@ public class NodeClient implements Ingest {
         if (closed) {
             throw new ElasticsearchIllegalStateException("client is closed");
         }
-        BulkProcessorHelper.waitFor(bulkProcessor, maxWaitTime);
+        if (!bulkProcessor.waitForResponses(maxWaitTime)) {
+            logger.warn("still {} bulk requests in flight after {}", bulkProcessor.inFlight(), maxWaitTime);
+        }
         return this;
     }
 
@@ -258,8 +265,7 @@ public class NodeClient implements Ingest {
             return this;
         }
         if (!state.isBulk(index)) {
-            state.startBulk(index);
-            ClientHelper.startBulk(client, index);
+            state.startBulk(index, ClientHelper.startBulk(client, index));
         }
         return this;
     }
@@ -270,8 +276,9 @@ public class NodeClient implements Ingest {
             return this;
         }
         if (state.isBulk(index)) {
+            Settings settings = state.getBulkSettings().get(index);
             state.stopBulk(index);
-            ClientHelper.stopBulk(client, index);
+            ClientHelper.stopBulk(client, index, settings, maxWaitTime);
         }
         return this;
     }
@@ -305,11 +312,20 @@ public class NodeClient implements Ingest {
             if (bulkProcessor != null) {
                 logger.info("closing bulk processor...");
                 bulkProcessor.close();
+                if (!bulkProcessor.waitForResponses(maxWaitTime)) {
+                    logger.warn("still {} bulk requests in flight after {}", bulkProcessor.inFlight(), maxWaitTime);
+                }
             }
             if (state.indices() != null && !state.indices().isEmpty()) {
                 logger.info("stopping bulk mode for indices {}...", state.indices());
-                for (String index : ImmutableSet.copyOf(state.indices())) {
-                    stopBulk(index);
+                Map<String, Settings> bulkSettings = state.getBulkSettings();
+                for (String index : bulkSettings.keySet()) {
+                    state.stopBulk(index);
+                }
+                try {
+                    ClientHelper.stopBulk(client, bulkSettings, maxWaitTime);
+                } catch (IOException e) {
+                    logger.warn(e.getMessage());
                 }
             }
             logger.info("shutting down...");
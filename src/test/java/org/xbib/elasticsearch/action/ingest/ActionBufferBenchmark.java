@@ -0,0 +1,88 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Add throughput of an ingest request for a batch, with the action count check
+ * the ingest processor does after every add, compared with the former
+ * concurrent linked queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@OperationsPerInvocation(32768)
+public class ActionBufferBenchmark {
+
+    private static final int ADDS = 32768;
+
+    @Param({"1000", "10000", "32768"})
+    public int actions;
+
+    private IndexRequest[] requests;
+
+    @Setup
+    public void setup() {
+        BytesArray source = new BytesArray("{\"name\":\"value\"}");
+        requests = new IndexRequest[ADDS];
+        for (int i = 0; i < ADDS; i++) {
+            requests[i] = new IndexRequest("test", "test", Integer.toString(i)).source(source, false);
+        }
+    }
+
+    @Benchmark
+    public int actionBuffer() {
+        IngestRequest ingestRequest = new IngestRequest();
+        int n = 0;
+        for (IndexRequest request : requests) {
+            ingestRequest.add(request);
+            if (ingestRequest.numberOfActions() >= actions) {
+                n += ingestRequest.take(actions).numberOfActions();
+            }
+        }
+        return n + ingestRequest.takeAll().numberOfActions();
+    }
+
+    @Benchmark
+    public int concurrentLinkedQueue() {
+        Queue<ActionRequest> queue = new ConcurrentLinkedQueue<ActionRequest>();
+        int n = 0;
+        for (IndexRequest request : requests) {
+            queue.offer(request);
+            if (queue.size() >= actions) {
+                Queue<ActionRequest> taken = new ConcurrentLinkedQueue<ActionRequest>();
+                for (int i = 0; i < actions; i++) {
+                    taken.offer(queue.poll());
+                }
+                n += taken.size();
+            }
+        }
+        return n + queue.size();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(ActionBufferBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,69 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ActionBufferTest {
+
+    @Test
+    public void testTake() {
+        ActionBuffer buffer = new ActionBuffer(4);
+        for (int i = 0; i < 10; i++) {
+            buffer.add(new DeleteRequest("test", "test", Integer.toString(i)), i);
+        }
+        assertEquals(10, buffer.size());
+        assertEquals(45L, buffer.sizeInBytes());
+        ActionBuffer taken = buffer.take(6);
+        assertEquals(6, taken.size());
+        assertEquals(15L, taken.sizeInBytes());
+        assertEquals(4, buffer.size());
+        assertEquals(30L, buffer.sizeInBytes());
+        assertIds(taken, 0, 6);
+        buffer.add(new DeleteRequest("test", "test", "10"), 10);
+        taken = buffer.take(3);
+        assertIds(taken, 6, 9);
+        assertEquals(21L, taken.sizeInBytes());
+        taken = buffer.takeAll();
+        assertIds(taken, 9, 11);
+        assertEquals(19L, taken.sizeInBytes());
+        assertTrue(buffer.isEmpty());
+        assertEquals(0L, buffer.sizeInBytes());
+        assertFalse(buffer.iterator().hasNext());
+        assertTrue(buffer.take(5).isEmpty());
+    }
+
+    @Test
+    public void testAddAll() {
+        ActionBuffer buffer = new ActionBuffer(4);
+        ActionBuffer other = new ActionBuffer(4);
+        for (int i = 0; i < 3; i++) {
+            buffer.add(new DeleteRequest("test", "test", Integer.toString(i)), 1);
+        }
+        for (int i = 3; i < 9; i++) {
+            other.add(new DeleteRequest("test", "test", Integer.toString(i)), 2);
+        }
+        buffer.addAll(other.take(5));
+        buffer.addAll(new ActionBuffer(4));
+        assertEquals(8, buffer.size());
+        assertEquals(13L, buffer.sizeInBytes());
+        buffer.add(new DeleteRequest("test", "test", "8"), 3);
+        ActionBuffer taken = buffer.take(7);
+        assertIds(taken, 0, 7);
+        assertIds(buffer.takeAll(), 7, 9);
+    }
+
+    private void assertIds(ActionBuffer buffer, int from, int to) {
+        Iterator<ActionRequest> it = buffer.iterator();
+        for (int i = from; i < to; i++) {
+            assertEquals(Integer.toString(i), ((DeleteRequest) it.next()).id());
+        }
+        assertFalse(it.hasNext());
+    }
+}
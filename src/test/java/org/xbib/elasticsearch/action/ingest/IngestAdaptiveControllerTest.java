@@ -0,0 +1,51 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IngestAdaptiveControllerTest {
+
+    @Test
+    public void testIncreaseAndDecrease() {
+        IngestAdaptiveController controller =
+                new IngestAdaptiveController(100, 2, 200, 4, TimeValue.timeValueMillis(500));
+        long epoch = controller.epoch();
+        // a round of two responses within the target
+        assertFalse(controller.onResponse(epoch, 100L, 100, 0));
+        assertTrue(controller.onResponse(epoch, 100L, 100, 0));
+        assertEquals(110, controller.actions());
+        assertEquals(3, controller.concurrency());
+        // slow response
+        assertTrue(controller.onResponse(epoch, 1000L, 110, 0));
+        assertEquals(55, controller.actions());
+        assertEquals(1, controller.concurrency());
+        // requests sent before the decrease do not decrease again
+        assertFalse(controller.onFailure(epoch));
+        assertFalse(controller.onResponse(epoch, 1000L, 110, 50));
+        assertEquals(55, controller.actions());
+        // failures of requests sent after the decrease do
+        assertTrue(controller.onResponse(controller.epoch(), 100L, 55, 10));
+        assertEquals(27, controller.actions());
+        assertEquals(1, controller.concurrency());
+    }
+
+    @Test
+    public void testLimits() {
+        IngestAdaptiveController controller =
+                new IngestAdaptiveController(10, 1, 12, 2, TimeValue.timeValueMillis(500));
+        for (int i = 0; i < 10; i++) {
+            controller.onResponse(controller.epoch(), 1L, 10, 0);
+        }
+        assertEquals(12, controller.actions());
+        assertEquals(2, controller.concurrency());
+        for (int i = 0; i < 10; i++) {
+            controller.onFailure(controller.epoch());
+        }
+        assertEquals(1, controller.actions());
+        assertEquals(1, controller.concurrency());
+    }
+}
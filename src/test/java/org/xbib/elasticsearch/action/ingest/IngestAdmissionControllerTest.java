@@ -0,0 +1,46 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IngestAdmissionControllerTest {
+
+    @Test
+    public void testAdmission() {
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put("action.ingest.admission.max_size", "1000b")
+                .put("action.ingest.admission.retry_after", "100ms")
+                .build();
+        ThreadPool threadPool = new ThreadPool(settings, null);
+        try {
+            IngestAdmissionController controller = new IngestAdmissionController(settings, threadPool);
+            // the first request is always admitted
+            controller.admit(1500L);
+            assertEquals(1500L, controller.inFlightBytes());
+            try {
+                controller.admit(500L);
+                fail("request admitted");
+            } catch (IngestRejectedException e) {
+                // overloaded by a factor of 2
+                assertEquals(200L, e.retryAfter().millis());
+            }
+            assertEquals(1500L, controller.inFlightBytes());
+            controller.release(1500L);
+            controller.admit(600L);
+            controller.admit(400L);
+            assertEquals(1000L, controller.inFlightBytes());
+            controller.release(600L);
+            controller.release(400L);
+            assertEquals(0L, controller.inFlightBytes());
+            assertTrue(controller.queueSize() >= 0);
+        } finally {
+            threadPool.shutdownNow();
+        }
+    }
+}
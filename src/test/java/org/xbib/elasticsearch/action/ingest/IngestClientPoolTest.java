@@ -0,0 +1,45 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.ActionListener;
+import org.junit.Test;
+import org.xbib.elasticsearch.support.helper.MockClientHelper.IngestSent;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.xbib.elasticsearch.support.helper.MockClientHelper.ingestClient;
+
+public class IngestClientPoolTest {
+
+    @Test
+    public void testLeastInFlight() {
+        List<IngestSent> first = new LinkedList<IngestSent>();
+        List<IngestSent> second = new LinkedList<IngestSent>();
+        IngestClientPool pool = new IngestClientPool(Arrays.asList(ingestClient(first), ingestClient(second)));
+        assertEquals(2, pool.size());
+        ActionListener<IngestResponse> listener = new ActionListener<IngestResponse>() {
+            @Override
+            public void onResponse(IngestResponse response) {
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+            }
+        };
+        for (int i = 0; i < 4; i++) {
+            pool.execute(new IngestRequest(), listener);
+        }
+        assertArrayEquals(new int[]{2, 2}, pool.inFlight());
+        // answered requests free their client
+        first.remove(0).listener.onResponse(null);
+        first.remove(0).listener.onFailure(new RuntimeException());
+        assertArrayEquals(new int[]{0, 2}, pool.inFlight());
+        pool.execute(new IngestRequest(), listener);
+        pool.execute(new IngestRequest(), listener);
+        assertArrayEquals(new int[]{2, 2}, pool.inFlight());
+        assertArrayEquals(new long[]{4L, 2L}, pool.sent());
+    }
+}
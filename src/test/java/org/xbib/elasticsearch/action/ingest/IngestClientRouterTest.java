@@ -0,0 +1,155 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.routing.ImmutableShardRouting;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.RoutingTable;
+import org.elasticsearch.cluster.routing.ShardRoutingState;
+import org.elasticsearch.cluster.routing.operation.hash.djb.DjbHashFunction;
+import org.elasticsearch.cluster.routing.operation.plain.PlainOperationRouting;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.DummyTransportAddress;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IngestClientRouterTest {
+
+    @Test
+    public void testMergePositions() {
+        IngestClientRouter.Part first = part(0, 2, 4);
+        IngestClientRouter.Part second = part(1, 3);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        IngestClientRouter.Merger merger = new IngestClientRouter.Merger(2, System.currentTimeMillis(), listener(result));
+        merger.onResponse(first, new IngestResponse(2, newArrayList(new IngestItemFailure(1, "failed")), new int[0], 1L));
+        assertNull(result.get());
+        merger.onResponse(second, new IngestResponse(1, newArrayList(new IngestItemFailure(0, "replaced")), new int[]{0}, 1L)
+                .load(5, 100L));
+        IngestResponse response = (IngestResponse) result.get();
+        assertEquals(3, response.successSize());
+        assertEquals(2, response.failureSize());
+        assertEquals(2, response.failure().get(0).pos());
+        assertEquals(1, response.failure().get(1).pos());
+        assertArrayEquals(new int[]{1}, response.collapsed());
+        assertEquals(5, response.queueSize());
+    }
+
+    @Test
+    public void testPartFailure() {
+        IngestClientRouter.Part first = part(0, 1);
+        IngestClientRouter.Part second = part(2);
+        AtomicReference<Object> result = new AtomicReference<Object>();
+        IngestClientRouter.Merger merger = new IngestClientRouter.Merger(2, System.currentTimeMillis(), listener(result));
+        merger.onFailure(first, new IngestRejectedException("rejected", 100L));
+        merger.onResponse(second, new IngestResponse(1, Lists.<IngestItemFailure>newArrayList(), 1L));
+        IngestResponse response = (IngestResponse) result.get();
+        assertEquals(1, response.successSize());
+        assertEquals(2, response.failureSize());
+        // all parts failed
+        result.set(null);
+        merger = new IngestClientRouter.Merger(2, System.currentTimeMillis(), listener(result));
+        merger.onFailure(first, new IngestRejectedException("rejected", 100L));
+        merger.onFailure(second, new IngestRejectedException("rejected", 100L));
+        assertTrue(result.get() instanceof IngestRejectedException);
+    }
+
+    @Test
+    public void testSplitByPrimaryNode() {
+        MetaData metaData = MetaData.builder()
+                .put(IndexMetaData.builder("test").numberOfShards(3).numberOfReplicas(0))
+                .build();
+        IndexRoutingTable.Builder indexRoutingTable = IndexRoutingTable.builder("test");
+        DiscoveryNodes.Builder nodes = DiscoveryNodes.builder();
+        for (int shard = 0; shard < 3; shard++) {
+            String nodeId = "node" + shard;
+            indexRoutingTable.addIndexShard(new IndexShardRoutingTable.Builder(new ShardId("test", shard), true)
+                    .addShard(new ImmutableShardRouting("test", shard, nodeId, true, ShardRoutingState.STARTED, 1L))
+                    .build());
+            nodes.put(new DiscoveryNode(nodeId, DummyTransportAddress.INSTANCE, Version.CURRENT));
+        }
+        ClusterState clusterState = ClusterState.builder(ClusterName.DEFAULT)
+                .metaData(metaData)
+                .routingTable(RoutingTable.builder().add(indexRoutingTable))
+                .nodes(nodes)
+                .build();
+        // the node of shard 2 is not connected
+        IngestClientRouter router = new IngestClientRouter(null, null, ImmutableSettings.EMPTY) {
+            @Override
+            boolean isConnected(DiscoveryNode node) {
+                return !"node2".equals(node.id());
+            }
+        };
+        IngestRequest request = new IngestRequest();
+        for (int i = 0; i < 30; i++) {
+            request.add(new IndexRequest("test", "type", Integer.toString(i)).source("{\"a\":" + i + "}"));
+        }
+        // missing ids are generated by the split
+        request.add(new IndexRequest("test", "type").source("{\"a\":30}"));
+        List<IngestClientRouter.Part> parts = router.split(clusterState, request);
+        assertEquals(3, parts.size());
+        PlainOperationRouting routing = new PlainOperationRouting(ImmutableSettings.EMPTY, new DjbHashFunction(), null);
+        int count = 0;
+        for (IngestClientRouter.Part part : parts) {
+            Iterator<ActionRequest> it = part.actions.iterator();
+            int last = -1;
+            for (int i = 0; i < part.size; i++) {
+                IndexRequest action = (IndexRequest) it.next();
+                assertNotNull(action.id());
+                assertTrue(part.positions[i] > last);
+                last = part.positions[i];
+                int shard = routing.indexShards(clusterState, "test", "type", action.id(), null).shardId().id();
+                if (shard == 2) {
+                    assertNull(part.node);
+                } else {
+                    assertEquals("node" + shard, part.node.id());
+                }
+                count++;
+            }
+        }
+        assertEquals(31, count);
+    }
+
+    private static IngestClientRouter.Part part(int... positions) {
+        IngestClientRouter.Part part = new IngestClientRouter.Part(null);
+        for (int pos : positions) {
+            part.add(pos, new DeleteRequest("test", "test", Integer.toString(pos)));
+        }
+        return part;
+    }
+
+    private static ActionListener<IngestResponse> listener(final AtomicReference<Object> result) {
+        return new ActionListener<IngestResponse>() {
+            @Override
+            public void onResponse(IngestResponse response) {
+                result.set(response);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                result.set(e);
+            }
+        };
+    }
+}
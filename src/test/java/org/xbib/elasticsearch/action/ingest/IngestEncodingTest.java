@@ -0,0 +1,220 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.WriteConsistencyLevel;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.replication.ReplicationType;
+import org.elasticsearch.action.support.replication.ShardReplicationOperationRequest;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.VersionType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IngestEncodingTest {
+
+    @Test
+    public void testIngestRequest() throws Exception {
+        int plainSize = 0;
+        for (IngestEncoding encoding : IngestEncoding.values()) {
+            IngestRequest request = newRequest(100).encoding(encoding);
+            BytesStreamOutput out = new BytesStreamOutput();
+            request.writeTo(out);
+            IngestRequest copy = new IngestRequest();
+            copy.readFrom(new BytesStreamInput(out.bytes()));
+            assertEquals(encoding, copy.encoding());
+            assertEquals(request.numberOfActions(), copy.numberOfActions());
+            assertEquals(request.estimatedSizeInBytes(), copy.estimatedSizeInBytes());
+            Iterator<ActionRequest> it = copy.requests().iterator();
+            for (ActionRequest expected : request.requests()) {
+                assertSame(expected, it.next());
+            }
+            if (encoding == IngestEncoding.PLAIN) {
+                plainSize = out.size();
+            } else {
+                assertTrue(encoding + " " + out.size() + " >= " + plainSize, out.size() < plainSize);
+            }
+        }
+    }
+
+    @Test
+    public void testPlainLayout() throws Exception {
+        // without an encoding byte, so earlier versions read plain requests
+        IngestRequest request = newRequest(10);
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        BytesStreamInput in = new BytesStreamInput(out.bytes());
+        assertEquals(request.replicationType(), ReplicationType.fromId(in.readByte()));
+        assertEquals(request.consistencyLevel(), WriteConsistencyLevel.fromId(in.readByte()));
+        assertEquals(request.timeout().millis(), TimeValue.readTimeValue(in).millis());
+        assertEquals(request.numberOfActions(), in.readVInt());
+        assertEquals(0, in.readByte());
+    }
+
+    @Test
+    public void testCollapseDuplicates() throws Exception {
+        for (IngestEncoding encoding : IngestEncoding.values()) {
+            BytesStreamOutput out = new BytesStreamOutput();
+            newRequest(10).encoding(encoding).collapseDuplicates(true).writeTo(out);
+            IngestRequest copy = new IngestRequest();
+            copy.readFrom(new BytesStreamInput(out.bytes()));
+            assertEquals(encoding, copy.encoding());
+            assertTrue(copy.collapseDuplicates());
+            assertEquals(10, copy.numberOfActions());
+            try {
+                // an earlier version does not know of the option
+                ReplicationType.fromId(new BytesStreamInput(out.bytes()).readByte());
+                fail();
+            } catch (ElasticsearchIllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testEarlierVersionFails() throws Exception {
+        for (IngestEncoding encoding : IngestEncoding.values()) {
+            if (encoding == IngestEncoding.PLAIN) {
+                continue;
+            }
+            BytesStreamOutput out = new BytesStreamOutput();
+            newRequest(10).encoding(encoding).writeTo(out);
+            try {
+                // an earlier version reads the replication type first
+                ReplicationType.fromId(new BytesStreamInput(out.bytes()).readByte());
+                fail();
+            } catch (ElasticsearchIllegalArgumentException e) {
+                // expected
+            }
+            List<IngestItemRequest> items = newArrayList();
+            items.add(new IngestItemRequest(0, new DeleteRequest("test", "type", "1")));
+            out = new BytesStreamOutput();
+            new IngestShardRequest("test", 1, items).encoding(encoding).writeTo(out);
+            try {
+                new EarlierShardRequest().readFrom(new BytesStreamInput(out.bytes()));
+                fail();
+            } catch (RuntimeException e) {
+                // not an empty request
+            }
+        }
+    }
+
+    @Test
+    public void testIngestShardRequest() throws Exception {
+        for (IngestEncoding encoding : IngestEncoding.values()) {
+            List<IngestItemRequest> items = newArrayList();
+            int i = 0;
+            for (ActionRequest request : newRequest(50).requests()) {
+                items.add(new IngestItemRequest(i, request));
+                i += 3;
+            }
+            IndexRequest autoId = new IndexRequest("test", "type").source("{\"auto\":true}");
+            autoId.process(MetaData.builder().build(), "test", null, true);
+            items.add(new IngestItemRequest(i, autoId));
+            // failed items are nulled out by the primary
+            items.set(1, null);
+            IngestShardRequest request = new IngestShardRequest("test", 1, items).encoding(encoding);
+            BytesStreamOutput out = new BytesStreamOutput();
+            request.writeTo(out);
+            IngestShardRequest copy = new IngestShardRequest();
+            copy.readFrom(new BytesStreamInput(out.bytes()));
+            assertEquals(encoding, copy.encoding());
+            assertEquals(1, copy.shardId());
+            assertEquals(items.size() - 1, copy.items().size());
+            Iterator<IngestItemRequest> it = copy.items().iterator();
+            for (IngestItemRequest expected : items) {
+                if (expected == null) {
+                    continue;
+                }
+                IngestItemRequest item = it.next();
+                assertEquals(expected.id(), item.id());
+                assertSame(expected.request(), item.request());
+            }
+            IndexRequest last = (IndexRequest) copy.items().get(copy.items().size() - 1).request();
+            assertTrue(last.autoGeneratedId());
+            assertEquals(IndexRequest.OpType.CREATE, last.opType());
+        }
+    }
+
+    private static IngestRequest newRequest(int n) {
+        IngestRequest request = new IngestRequest();
+        for (int i = 0; i < n; i++) {
+            if (i % 10 == 9) {
+                request.add(new DeleteRequest("test", "type", Integer.toString(i)).routing("r").version(i).versionType(VersionType.EXTERNAL));
+            } else {
+                IndexRequest indexRequest = new IndexRequest("test", i % 2 == 0 ? "type" : "other", Integer.toString(i))
+                        .source("{\"name\":\"value number " + i + " of the test documents\"}");
+                if (i % 5 == 0) {
+                    indexRequest.routing("r").parent("p").timestamp("123").ttl(1000L).version(i + 1);
+                }
+                if (i % 7 == 0) {
+                    indexRequest.opType(IndexRequest.OpType.CREATE).refresh(true);
+                }
+                request.add(indexRequest);
+            }
+        }
+        return request;
+    }
+
+    private static void assertSame(ActionRequest expected, ActionRequest actual) throws Exception {
+        assertEquals(expected.getClass(), actual.getClass());
+        if (expected instanceof IndexRequest) {
+            IndexRequest e = (IndexRequest) expected;
+            IndexRequest a = (IndexRequest) actual;
+            assertEquals(e.index(), a.index());
+            assertEquals(e.type(), a.type());
+            assertEquals(e.id(), a.id());
+            assertEquals(e.routing(), a.routing());
+            assertEquals(e.parent(), a.parent());
+            assertEquals(e.timestamp(), a.timestamp());
+            assertEquals(e.ttl(), a.ttl());
+            assertEquals(e.version(), a.version());
+            assertEquals(e.versionType(), a.versionType());
+            assertEquals(e.opType(), a.opType());
+            assertEquals(e.refresh(), a.refresh());
+            assertEquals(e.autoGeneratedId(), a.autoGeneratedId());
+            assertEquals(e.source().toUtf8(), a.source().toUtf8());
+        } else {
+            DeleteRequest e = (DeleteRequest) expected;
+            DeleteRequest a = (DeleteRequest) actual;
+            assertEquals(e.index(), a.index());
+            assertEquals(e.type(), a.type());
+            assertEquals(e.id(), a.id());
+            assertEquals(e.routing(), a.routing());
+            assertEquals(e.version(), a.version());
+            assertEquals(e.versionType(), a.versionType());
+            assertEquals(e.refresh(), a.refresh());
+        }
+    }
+
+    /**
+     * Reads an ingest shard request like the versions before the compact encodings.
+     */
+    private static class EarlierShardRequest extends ShardReplicationOperationRequest<EarlierShardRequest> {
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            in.readVInt();
+            int size = in.readVInt();
+            for (int i = 0; i < size; i++) {
+                if (in.readBoolean()) {
+                    IngestItemRequest.readBulkItem(in);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class IngestFairSchedulerTest {
+
+    @Test
+    public void testFair() throws InterruptedException {
+        IngestFairScheduler scheduler = new IngestFairScheduler();
+        for (int i = 0; i < 10; i++) {
+            scheduler.add(new IndexRequest("flood", "test", Integer.toString(i)), 10, 5, 0L, 1000L);
+        }
+        IngestFairScheduler.Batch batch = scheduler.next(5, 0L);
+        assertEquals("flood", batch.index());
+        assertEquals(5, batch.actions().size());
+        for (int i = 0; i < 5; i++) {
+            scheduler.add(new IndexRequest("small", "test", Integer.toString(i)), 10, 5, 0L, 1000L);
+        }
+        // the small index is served before the flooded index
+        assertEquals("small", scheduler.next(5, 0L).index());
+        assertEquals("flood", scheduler.next(5, 0L).index());
+        assertNull(scheduler.next(5, 0L));
+        scheduler.done(batch);
+        assertEquals(5L, scheduler.throughput().get("flood").count());
+        scheduler.close();
+    }
+
+    @Test
+    public void testWeight() throws InterruptedException {
+        IngestFairScheduler scheduler = new IngestFairScheduler().limits("heavy", 3, 0, null);
+        for (int i = 0; i < 8; i++) {
+            scheduler.add(new IndexRequest("heavy", "test", Integer.toString(i)), 10, 1, 0L, 1000L);
+            scheduler.add(new IndexRequest("light", "test", Integer.toString(i)), 10, 1, 0L, 1000L);
+            // two actions of each index are queued at most
+            if (i % 2 == 1) {
+                int heavy = 0;
+                for (int j = 0; j < 4; j++) {
+                    IngestFairScheduler.Batch batch = scheduler.next(1, 0L);
+                    if ("heavy".equals(batch.index())) {
+                        heavy++;
+                    }
+                }
+                assertEquals(2, heavy);
+            }
+        }
+        scheduler.close();
+    }
+
+    @Test
+    public void testConcurrencyAndFlush() throws InterruptedException {
+        IngestFairScheduler scheduler = new IngestFairScheduler().limits("test", 1, 1, null);
+        for (int i = 0; i < 3; i++) {
+            scheduler.add(new IndexRequest("test", "test", Integer.toString(i)), 10, 2, 0L, 1000L);
+        }
+        IngestFairScheduler.Batch batch = scheduler.next(2, 0L);
+        assertNotNull(batch);
+        // one request in flight for the index
+        assertNull(scheduler.next(2, 0L));
+        scheduler.done(batch);
+        // the last action is not due until flushed
+        assertNull(scheduler.next(2, 0L));
+        scheduler.flush();
+        assertEquals(1, scheduler.next(2, 0L).actions().size());
+        assertEquals(0, scheduler.size());
+        scheduler.close();
+    }
+
+    @Test
+    public void testProcessorVolume() throws InterruptedException {
+        IngestFairScheduler scheduler = new IngestFairScheduler();
+        for (int i = 0; i < 3; i++) {
+            scheduler.add(new IndexRequest("test", "test", Integer.toString(i)), 30, 10, 100L, 1000L);
+        }
+        // not due by number of actions or by volume
+        assertNull(scheduler.next(10, 100L));
+        scheduler.add(new IndexRequest("test", "test", "3"), 30, 10, 100L, 1000L);
+        // due by the volume of the processor, the batch is within the volume
+        assertEquals(3, scheduler.next(10, 100L).actions().size());
+        assertEquals(1, scheduler.size());
+        scheduler.close();
+    }
+
+    @Test
+    public void testIdleIndexRemoved() throws InterruptedException {
+        IngestFairScheduler scheduler = new IngestFairScheduler().idleTimeout(TimeValue.timeValueMillis(0));
+        scheduler.add(new IndexRequest("logs-1", "test", "1"), 10, 1, 0L, 1000L);
+        scheduler.add(new IndexRequest("logs-2", "test", "1"), 10, 1, 0L, 1000L);
+        IngestFairScheduler.Batch first = scheduler.next(1, 0L);
+        IngestFairScheduler.Batch second = scheduler.next(1, 0L);
+        assertEquals(2, scheduler.throughput().size());
+        scheduler.done(first);
+        assertFalse(scheduler.throughput().containsKey(first.index()));
+        // the index with a request in flight is kept
+        assertEquals(1, scheduler.throughput().size());
+        scheduler.done(second);
+        assertEquals(0, scheduler.throughput().size());
+        // an index that becomes active again gets a new queue
+        scheduler.add(new IndexRequest("logs-1", "test", "2"), 10, 1, 0L, 1000L);
+        assertEquals("logs-1", scheduler.next(1, 0L).index());
+        scheduler.close();
+    }
+
+    @Test(expected = ElasticsearchTimeoutException.class)
+    public void testFull() throws InterruptedException {
+        IngestFairScheduler scheduler = new IngestFairScheduler();
+        try {
+            for (int i = 0; i < 3; i++) {
+                scheduler.add(new IndexRequest("test", "test", Integer.toString(i)), 10, 1, 0L, 50L);
+            }
+        } finally {
+            scheduler.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContent;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the framing of newline delimited ingest data with the former
+ * byte-by-byte marker search and XContent parsing of every action line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IngestFramerBenchmark {
+
+    @Param({"100", "1000"})
+    public int docSize;
+
+    private BytesReference data;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(42L);
+        StringBuilder buffer = new StringBuilder();
+        StringBuilder sb = new StringBuilder();
+        int length = 0;
+        int i = 0;
+        while (length < 8 * 1024 * 1024) {
+            sb.setLength(0);
+            sb.append("{ \"index\" : { \"_index\" : \"test\", \"_type\" : \"type1\", \"_id\" : \"").append(i++).append("\" } }\n");
+            sb.append("{ \"field\" : \"");
+            for (int j = 0; j < docSize; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            sb.append("\" }\n");
+            length += sb.length();
+            buffer.append(sb);
+        }
+        data = new BytesArray(buffer.toString().getBytes("UTF-8"));
+    }
+
+    @Benchmark
+    public IngestRequest framer() throws Exception {
+        IngestRequest request = new IngestRequest();
+        new IngestFramer(data).frame(request, false, null, null);
+        return request;
+    }
+
+    @Benchmark
+    public IngestRequest markerSearch() throws Exception {
+        IngestRequest request = new IngestRequest();
+        addByMarkerSearch(request, data);
+        return request;
+    }
+
+    /**
+     * The former framing, without the rarely used fields.
+     */
+    private static void addByMarkerSearch(IngestRequest request, BytesReference data) throws Exception {
+        XContent xContent = XContentFactory.xContent(data);
+        int from = 0;
+        int length = data.length();
+        byte marker = xContent.streamSeparator();
+        while (true) {
+            int nextMarker = findNextMarker(marker, from, data, length);
+            if (nextMarker == -1) {
+                break;
+            }
+            XContentParser parser = xContent.createParser(data.slice(from, nextMarker - from));
+            try {
+                from = nextMarker + 1;
+                XContentParser.Token token = parser.nextToken();
+                if (token == null) {
+                    continue;
+                }
+                parser.nextToken();
+                String action = parser.currentName();
+                String index = null;
+                String type = null;
+                String id = null;
+                String currentFieldName = null;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        currentFieldName = parser.currentName();
+                    } else if (token.isValue()) {
+                        if ("_index".equals(currentFieldName)) {
+                            index = parser.text();
+                        } else if ("_type".equals(currentFieldName)) {
+                            type = parser.text();
+                        } else if ("_id".equals(currentFieldName)) {
+                            id = parser.text();
+                        }
+                    }
+                }
+                if ("delete".equals(action)) {
+                    request.add(new DeleteRequest(index, type, id));
+                } else {
+                    nextMarker = findNextMarker(marker, from, data, length);
+                    if (nextMarker == -1) {
+                        break;
+                    }
+                    request.internalAdd(new IndexRequest(index, type, id).source(data.slice(from, nextMarker - from), false));
+                    from = nextMarker + 1;
+                }
+            } finally {
+                parser.close();
+            }
+        }
+    }
+
+    private static int findNextMarker(byte marker, int from, BytesReference data, int length) {
+        for (int i = from; i < length; i++) {
+            if (data.get(i) == marker) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(IngestFramerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,124 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.PagedBytesReference;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.ByteArray;
+import org.elasticsearch.index.VersionType;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IngestFramerTest {
+
+    @Test
+    public void testActions() throws Exception {
+        String data = "{ \"index\" : { \"_index\" : \"test\", \"_type\" : \"type1\", \"_id\" : \"1\", \"_routing\" : \"r\", \"_version\" : 5, \"_version_type\" : \"external\" } }\n"
+                + "{ \"field1\" : \"value1\" }\n"
+                + "\n"
+                + "{ \"delete\" : { \"_index\" : \"test\", \"_type\" : \"type1\", \"_id\" : \"2\", \"routing\" : \"p\" } }\n"
+                + "{\"create\":{\"_id\":\"3\",\"ttl\":\"1m\"}}\n"
+                + "{ \"field1\" : \"value3\" }\n"
+                + "{ \"index\" : { \"_id\" : 4, \"op_type\" : \"create\", \"ttl\" : 1000 } }\n"
+                + "{ \"field1\" : \"value4\" }\n";
+        IngestRequest request = new IngestRequest();
+        request.add(new BytesArray(data), false, "default", "defaulttype");
+        assertEquals(4, request.numberOfActions());
+        Iterator<ActionRequest> it = request.requests().iterator();
+        IndexRequest indexRequest = (IndexRequest) it.next();
+        assertEquals("test", indexRequest.index());
+        assertEquals("type1", indexRequest.type());
+        assertEquals("1", indexRequest.id());
+        assertEquals("r", indexRequest.routing());
+        assertEquals(5L, indexRequest.version());
+        assertEquals(VersionType.EXTERNAL, indexRequest.versionType());
+        assertEquals(IndexRequest.OpType.INDEX, indexRequest.opType());
+        assertEquals("{ \"field1\" : \"value1\" }", indexRequest.source().toUtf8());
+        DeleteRequest deleteRequest = (DeleteRequest) it.next();
+        assertEquals("test", deleteRequest.index());
+        assertEquals("2", deleteRequest.id());
+        assertEquals("p", deleteRequest.routing());
+        indexRequest = (IndexRequest) it.next();
+        assertEquals("default", indexRequest.index());
+        assertEquals("defaulttype", indexRequest.type());
+        assertEquals("3", indexRequest.id());
+        assertEquals(60000L, indexRequest.ttl());
+        assertEquals(IndexRequest.OpType.CREATE, indexRequest.opType());
+        indexRequest = (IndexRequest) it.next();
+        assertEquals("4", indexRequest.id());
+        assertEquals(1000L, indexRequest.ttl());
+        assertEquals(IndexRequest.OpType.CREATE, indexRequest.opType());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        String data = "{ \"index\" : { \"_index\" : \"test\", \"_type\" : \"type1\", \"_id\" : \"a\\\"b\" } }\n"
+                + "{ \"field1\" : \"value1\" }\n"
+                + "{ \"index\" : { \"_index\" : \"test\", \"_type\" : \"type1\", \"_version\" : 1.0 } }\n"
+                + "{ \"field1\" : \"value2\" }\n";
+        IngestRequest request = new IngestRequest();
+        request.add(new BytesArray(data), false, null, null);
+        assertEquals(2, request.numberOfActions());
+        Iterator<ActionRequest> it = request.requests().iterator();
+        IndexRequest indexRequest = (IndexRequest) it.next();
+        assertEquals("a\"b", indexRequest.id());
+        indexRequest = (IndexRequest) it.next();
+        assertEquals(1L, indexRequest.version());
+        assertNull(indexRequest.id());
+    }
+
+    @Test
+    public void testPagedData() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("{ \"index\" : { \"_index\" : \"test\", \"_type\" : \"type1\", \"_id\" : \"").append(i).append("\" } }\n")
+                    .append("{ \"field1\" : \"value").append(i).append("\" }\n");
+        }
+        byte[] bytes = sb.toString().getBytes("UTF-8");
+        assertTrue(bytes.length > BigArrays.BYTE_PAGE_SIZE);
+        ByteArray byteArray = BigArrays.NON_RECYCLING_INSTANCE.newByteArray(bytes.length);
+        byteArray.set(0, bytes, 0, bytes.length);
+        BytesReference paged = new PagedBytesReference(BigArrays.NON_RECYCLING_INSTANCE, byteArray, bytes.length);
+        IngestRequest request = new IngestRequest();
+        request.add(paged, false, null, null);
+        assertEquals(2000, request.numberOfActions());
+        int i = 0;
+        for (ActionRequest actionRequest : request.requests()) {
+            IndexRequest indexRequest = (IndexRequest) actionRequest;
+            assertEquals(Integer.toString(i), indexRequest.id());
+            assertEquals("{ \"field1\" : \"value" + i + "\" }", new String(indexRequest.source().toBytes(), "UTF-8"));
+            i++;
+        }
+    }
+
+    @Test
+    public void testIndexOf() {
+        Random random = new Random(42L);
+        for (int n = 0; n < 1000; n++) {
+            byte[] array = new byte[random.nextInt(64)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = (byte) (random.nextInt(8) == 0 ? '\n' : random.nextInt(256));
+            }
+            int from = array.length > 0 ? random.nextInt(array.length) : 0;
+            int expected = -1;
+            for (int i = from; i < array.length; i++) {
+                if (array[i] == '\n') {
+                    expected = i;
+                    break;
+                }
+            }
+            assertEquals(expected, IngestFramer.indexOf(array, from, array.length, (byte) '\n'));
+        }
+    }
+}
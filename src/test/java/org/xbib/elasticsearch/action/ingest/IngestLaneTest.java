@@ -0,0 +1,68 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class IngestLaneTest {
+
+    @Test
+    public void testLaneOf() {
+        IndexRequest index = new IndexRequest("test", "test", "1");
+        DeleteRequest delete = new DeleteRequest("test", "test", "1");
+        int lane = IngestLane.laneOf(index, 8, 0);
+        // the same document is in the same lane, whatever the sequence
+        assertEquals(lane, IngestLane.laneOf(index, 8, 5));
+        assertEquals(lane, IngestLane.laneOf(delete, 8, 7));
+        // without a key, the sequence spreads the actions
+        IndexRequest noId = new IndexRequest("test", "test");
+        assertEquals(3, IngestLane.laneOf(noId, 8, 3));
+        assertEquals(4, IngestLane.laneOf(noId, 8, 4));
+    }
+
+    @Test
+    public void testOrder() throws InterruptedException {
+        IngestLane lane = new IngestLane();
+        IndexRequest first = new IndexRequest("test", "test", "1");
+        DeleteRequest second = new DeleteRequest("test", "test", "1");
+        IndexRequest third = new IndexRequest("test", "test", "1");
+        assertNull(lane.add(first, 10, 2, 0L, 1000L));
+        ActionBuffer batch = lane.add(second, 10, 2, 0L, 1000L);
+        assertNotNull(batch);
+        assertEquals(2, batch.size());
+        // busy, but no batch due
+        assertNull(lane.add(third, 10, 2, 0L, 1000L));
+        assertNull(lane.flush(2));
+        assertEquals(1, lane.size());
+        // the flush is sent after the request in flight
+        batch = lane.done(2, 0L);
+        assertNotNull(batch);
+        assertSame(third, batch.iterator().next());
+        assertNull(lane.done(2, 0L));
+        assertEquals(0, lane.size());
+    }
+
+    @Test
+    public void testVolume() throws InterruptedException {
+        IngestLane lane = new IngestLane();
+        assertNull(lane.add(new IndexRequest("test", "test", "1"), 60, 0, 100L, 1000L));
+        ActionBuffer batch = lane.add(new IndexRequest("test", "test", "2"), 60, 0, 100L, 1000L);
+        assertNotNull(batch);
+        assertEquals(2, batch.size());
+    }
+
+    @Test(expected = ElasticsearchTimeoutException.class)
+    public void testBusy() throws InterruptedException {
+        IngestLane lane = new IngestLane();
+        lane.add(new IndexRequest("test", "test", "1"), 10, 1, 0L, 1000L);
+        lane.add(new IndexRequest("test", "test", "2"), 10, 1, 0L, 1000L);
+        // a batch is due while a request is in flight
+        lane.add(new IndexRequest("test", "test", "3"), 10, 1, 0L, 50L);
+    }
+}
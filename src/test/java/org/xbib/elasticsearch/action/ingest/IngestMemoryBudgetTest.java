@@ -0,0 +1,55 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IngestMemoryBudgetTest {
+
+    @Test
+    public void testAcquireAndRelease() {
+        IngestMemoryBudget budget = new IngestMemoryBudget(new ByteSizeValue(100));
+        // always granted if none are acquired
+        assertTrue(budget.tryAcquire(150));
+        assertFalse(budget.tryAcquire(1));
+        budget.release(150);
+        assertTrue(budget.tryAcquire(60));
+        assertTrue(budget.tryAcquire(40));
+        assertFalse(budget.tryAcquire(1));
+        assertEquals(100L, budget.sizeInBytes());
+    }
+
+    @Test
+    public void testBlock() throws InterruptedException {
+        final IngestMemoryBudget budget = new IngestMemoryBudget(new ByteSizeValue(100));
+        budget.tryAcquire(100);
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                budget.release(50);
+            }
+        };
+        releaser.start();
+        long nanos = budget.acquire(50, TimeValue.timeValueSeconds(10));
+        releaser.join();
+        assertTrue(nanos > 0L);
+        assertEquals(100L, budget.sizeInBytes());
+    }
+
+    @Test(expected = ElasticsearchTimeoutException.class)
+    public void testTimeout() throws InterruptedException {
+        IngestMemoryBudget budget = new IngestMemoryBudget(new ByteSizeValue(100));
+        budget.tryAcquire(100);
+        budget.acquire(1, TimeValue.timeValueMillis(20));
+    }
+}
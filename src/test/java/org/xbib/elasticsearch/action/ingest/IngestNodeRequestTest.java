@@ -0,0 +1,56 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class IngestNodeRequestTest {
+
+    @Test
+    public void testStreaming() throws Exception {
+        IngestNodeRequest request = new IngestNodeRequest()
+                .add(new IngestShardRequest("test", 0, Arrays.asList(
+                        new IngestItemRequest(0, new IndexRequest("test", "type", "1").source("{\"a\":\"b\"}")),
+                        new IngestItemRequest(2, new DeleteRequest("test", "type", "2")))))
+                .add(new IngestShardRequest("test", 3, Arrays.asList(
+                        new IngestItemRequest(1, new IndexRequest("test", "type", "3").source("{\"c\":\"d\"}")))));
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        IngestNodeRequest copy = new IngestNodeRequest();
+        copy.readFrom(new BytesStreamInput(out.bytes()));
+        assertEquals(2, copy.shardRequests().size());
+        assertEquals("test", copy.shardRequests().get(0).index());
+        assertEquals(0, copy.shardRequests().get(0).shardId());
+        assertEquals(2, copy.shardRequests().get(0).items().size());
+        assertEquals(2, copy.shardRequests().get(0).items().get(1).id());
+        assertEquals("2", ((DeleteRequest) copy.shardRequests().get(0).items().get(1).request()).id());
+        assertEquals(3, copy.shardRequests().get(1).shardId());
+        assertEquals("{\"c\":\"d\"}", ((IndexRequest) copy.shardRequests().get(1).items().get(0).request()).source().toUtf8());
+
+        IngestNodeResponse response = new IngestNodeResponse(2);
+        response.setResponse(0, new IngestShardResponse(new ShardId("test", 0), 1,
+                Arrays.asList(new IngestItemFailure(2, "failed", RestStatus.SERVICE_UNAVAILABLE))));
+        response.setFailure(1, "shard failed", RestStatus.REQUEST_TIMEOUT);
+        out = new BytesStreamOutput();
+        response.writeTo(out);
+        IngestNodeResponse responseCopy = new IngestNodeResponse();
+        responseCopy.readFrom(new BytesStreamInput(out.bytes()));
+        assertEquals(2, responseCopy.size());
+        assertEquals(1, responseCopy.response(0).getSuccessSize());
+        assertEquals(1, responseCopy.response(0).getFailure().size());
+        assertEquals("failed", responseCopy.response(0).getFailure().get(0).message());
+        assertEquals(RestStatus.SERVICE_UNAVAILABLE, responseCopy.response(0).getFailure().get(0).status());
+        assertNull(responseCopy.response(1));
+        assertEquals("shard failed", responseCopy.failure(1));
+        assertEquals(RestStatus.REQUEST_TIMEOUT, responseCopy.status(1));
+    }
+}
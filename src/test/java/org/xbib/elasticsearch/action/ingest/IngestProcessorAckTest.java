@@ -0,0 +1,164 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+import org.xbib.elasticsearch.support.helper.MockClientHelper.IngestListener;
+import org.xbib.elasticsearch.support.helper.MockClientHelper.IngestSent;
+
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.xbib.elasticsearch.support.helper.MockClientHelper.client;
+import static org.xbib.elasticsearch.support.helper.MockClientHelper.ingestClient;
+
+public class IngestProcessorAckTest {
+
+    @Test
+    public void testDropped() throws InterruptedException {
+        // without a listener, requests are dropped and their acks fail
+        IngestProcessor processor = new IngestProcessor(null, 1, 10, null, null).staging(0);
+        ListenableActionFuture<ActionRequest> index = processor.addWithAck(new IndexRequest("test", "test", "1")
+                .source("{\"name\":\"value\"}"));
+        ListenableActionFuture<ActionRequest> delete = processor.addWithAck(new DeleteRequest("test", "test", "1"));
+        assertFalse(index.isDone());
+        assertEquals(2, processor.pendingAcks());
+        processor.flush();
+        assertTrue(index.isDone());
+        assertTrue(delete.isDone());
+        assertEquals(0, processor.pendingAcks());
+        try {
+            index.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ElasticsearchIllegalStateException);
+        }
+        processor.close();
+    }
+
+    @Test
+    public void testResponse() throws Exception {
+        BlockingQueue<IngestSent> sent = new LinkedBlockingQueue<IngestSent>();
+        IngestProcessor processor = new IngestProcessor(ingestClient(sent), 1, 10, null, null).staging(0)
+                .listener(new IngestListener());
+        IndexRequest request = new IndexRequest("test", "test", "1").source("{\"name\":\"value\"}");
+        ListenableActionFuture<ActionRequest> index = processor.addWithAck(request);
+        ListenableActionFuture<ActionRequest> delete = processor.addWithAck(new DeleteRequest("test", "test", "2"));
+        processor.flush();
+        assertFalse(index.isDone());
+        sent.poll().listener.onResponse(new IngestResponse(1, newArrayList(new IngestItemFailure(1, "failed")), 1L));
+        assertSame(request, index.get());
+        try {
+            delete.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("failed", e.getCause().getMessage());
+        }
+        assertEquals(0, processor.pendingAcks());
+        assertTrue(processor.waitForResponses(TimeValue.timeValueSeconds(5)));
+        processor.close();
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        BlockingQueue<IngestSent> sent = new LinkedBlockingQueue<IngestSent>();
+        IngestProcessor processor = new IngestProcessor(ingestClient(sent), 1, 10, null, null).staging(0)
+                .listener(new IngestListener());
+        ListenableActionFuture<ActionRequest> index = processor.addWithAck(new IndexRequest("test", "test", "1")
+                .source("{\"name\":\"value\"}"));
+        processor.flush();
+        RuntimeException failure = new RuntimeException("failed");
+        sent.poll().listener.onFailure(failure);
+        try {
+            index.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertEquals(0, processor.pendingAcks());
+        assertTrue(processor.waitForResponses(TimeValue.timeValueSeconds(5)));
+        processor.close();
+    }
+
+    @Test
+    public void testDispatchFailure() throws Exception {
+        // the client throws instead of answering
+        IngestProcessor processor = new IngestProcessor(client("execute", null), 1, 10, null, null).staging(0)
+                .listener(new IngestListener());
+        ListenableActionFuture<ActionRequest> index = processor.addWithAck(new IndexRequest("test", "test", "1")
+                .source("{\"name\":\"value\"}"));
+        try {
+            processor.flush();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertTrue(index.isDone());
+        try {
+            index.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UnsupportedOperationException);
+        }
+        assertEquals(0, processor.pendingAcks());
+        assertTrue(processor.waitForResponses(TimeValue.timeValueSeconds(5)));
+        processor.close();
+    }
+
+    @Test
+    public void testInterruptedWhileBlocked() throws Exception {
+        final BlockingQueue<IngestSent> sent = new LinkedBlockingQueue<IngestSent>();
+        final IngestProcessor processor = new IngestProcessor(ingestClient(sent), 1, 1, null, null).staging(0)
+                .listener(new IngestListener());
+        processor.add(new IndexRequest("test", "test", "1").source("{\"name\":\"value\"}"));
+        final AtomicReference<ListenableActionFuture<ActionRequest>> ack =
+                new AtomicReference<ListenableActionFuture<ActionRequest>>();
+        // the only permit is taken, the producer blocks
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                ack.set(processor.addWithAck(new IndexRequest("test", "test", "2").source("{\"name\":\"value\"}")));
+            }
+        };
+        producer.start();
+        while (producer.getState() != Thread.State.WAITING && producer.isAlive()) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, processor.pendingAcks());
+        producer.interrupt();
+        producer.join(5000L);
+        assertTrue(ack.get().isDone());
+        try {
+            ack.get().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+        assertEquals(0, processor.pendingAcks());
+        sent.poll().listener.onResponse(new IngestResponse(1, new LinkedList<IngestItemFailure>(), 1L));
+        assertTrue(processor.waitForResponses(TimeValue.timeValueSeconds(5)));
+        processor.close();
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void testAddedTwice() {
+        IngestProcessor processor = new IngestProcessor(null, 1, 10, null, null);
+        IndexRequest request = new IndexRequest("test", "test", "1").source("{\"name\":\"value\"}");
+        processor.addWithAck(request);
+        processor.addWithAck(request);
+    }
+}
@@ -0,0 +1,79 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Add throughput of the ingest processor with concurrent producers, with staging buffers
+ * striped by thread compared with adding to the pending request directly. Without a listener,
+ * the processor takes the requests that are due and drops them, so only the add path is measured.
+ * The main method runs the benchmark for 1 to 32 producer threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IngestProcessorBenchmark {
+
+    @Param({"0", "16"})
+    public int stripes;
+
+    @Param({"1000"})
+    public int actions;
+
+    private IngestProcessor processor;
+
+    @State(Scope.Thread)
+    public static class Producer {
+
+        private IndexRequest request;
+
+        @Setup
+        public void setup() {
+            request = new IndexRequest("test", "test", Thread.currentThread().getName())
+                    .source(new BytesArray("{\"name\":\"value\"}"), false);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        processor = new IngestProcessor(null, 1, actions, null, null).staging(stripes);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        processor.close();
+    }
+
+    @Benchmark
+    public IngestProcessor add(Producer producer) {
+        return processor.add(producer.request);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32}) {
+            new Runner(new OptionsBuilder()
+                    .include(IngestProcessorBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+import org.xbib.elasticsearch.support.helper.MockClientHelper.IngestListener;
+import org.xbib.elasticsearch.support.helper.MockClientHelper.IngestSent;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.xbib.elasticsearch.action.ingest.IngestRequests.id;
+import static org.xbib.elasticsearch.action.ingest.IngestRequests.indexRequest;
+import static org.xbib.elasticsearch.action.ingest.IngestRequests.succeed;
+import static org.xbib.elasticsearch.support.helper.MockClientHelper.ingestClient;
+
+public class IngestProcessorBudgetTest {
+
+    private final static int BYTES = IngestRequest.estimatedSizeInBytes(indexRequest("0"));
+
+    @Test
+    public void testBlockAndResume() throws Exception {
+        BlockingQueue<IngestSent> sent = new LinkedBlockingQueue<IngestSent>();
+        AtomicInteger blocked = new AtomicInteger();
+        final IngestProcessor processor = new IngestProcessor(ingestClient(sent), 2, 1, null, null)
+                .memoryBudget(new ByteSizeValue(2 * BYTES), TimeValue.timeValueSeconds(10))
+                .listener(listener(blocked));
+        processor.add(indexRequest("1"));
+        processor.add(indexRequest("2"));
+        IngestSent first = sent.poll(5, TimeUnit.SECONDS);
+        IngestSent second = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(second);
+        assertEquals(2 * BYTES, processor.memoryBudget().sizeInBytes());
+        // the budget is used up by the requests in flight
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                processor.add(indexRequest("3"));
+            }
+        };
+        producer.start();
+        producer.join(200L);
+        assertTrue(producer.isAlive());
+        assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+        succeed(first);
+        producer.join(5000L);
+        assertFalse(producer.isAlive());
+        assertEquals(1, blocked.get());
+        IngestSent third = sent.poll(5, TimeUnit.SECONDS);
+        assertEquals("3", id(third));
+        succeed(second);
+        succeed(third);
+        assertTrue(processor.waitForResponses(TimeValue.timeValueSeconds(5)));
+        assertEquals(0L, processor.memoryBudget().sizeInBytes());
+        processor.close();
+    }
+
+    @Test
+    public void testLaneTimeoutGivesBackBytes() throws Exception {
+        BlockingQueue<IngestSent> sent = new LinkedBlockingQueue<IngestSent>();
+        IngestProcessor processor = new IngestProcessor(ingestClient(sent), 1, 1, null, TimeValue.timeValueSeconds(1))
+                .lanes(1)
+                .memoryBudget(new ByteSizeValue(100 * BYTES), null)
+                .listener(listener(new AtomicInteger()));
+        processor.add(indexRequest("1"));
+        IngestSent first = sent.poll(5, TimeUnit.SECONDS);
+        // the next action waits in the busy lane
+        processor.add(indexRequest("2"));
+        try {
+            processor.add(indexRequest("3"));
+            fail();
+        } catch (ElasticsearchTimeoutException e) {
+            // the lane stayed busy
+        }
+        assertEquals(2 * BYTES, processor.memoryBudget().sizeInBytes());
+        succeed(first);
+        IngestSent second = sent.poll(5, TimeUnit.SECONDS);
+        assertEquals("2", id(second));
+        succeed(second);
+        assertTrue(processor.waitForResponses(TimeValue.timeValueSeconds(5)));
+        assertEquals(0L, processor.memoryBudget().sizeInBytes());
+        processor.close();
+    }
+
+    private static IngestProcessor.Listener listener(final AtomicInteger blocked) {
+        return new IngestListener() {
+            @Override
+            public void blocked(long millis) {
+                blocked.incrementAndGet();
+            }
+        };
+    }
+}
@@ -0,0 +1,152 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Test;
+import org.xbib.elasticsearch.support.helper.MockClientHelper.IngestListener;
+import org.xbib.elasticsearch.support.helper.MockClientHelper.IngestSent;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.xbib.elasticsearch.action.ingest.IngestRequests.fail;
+import static org.xbib.elasticsearch.action.ingest.IngestRequests.id;
+import static org.xbib.elasticsearch.action.ingest.IngestRequests.indexRequest;
+import static org.xbib.elasticsearch.action.ingest.IngestRequests.succeed;
+import static org.xbib.elasticsearch.action.ingest.IngestRequests.value;
+import static org.xbib.elasticsearch.support.helper.MockClientHelper.ingestClient;
+
+public class IngestProcessorRetryTest {
+
+    @Test
+    public void testRetryWaitsForPermit() throws Exception {
+        BlockingQueue<IngestSent> sent = new LinkedBlockingQueue<IngestSent>();
+        AtomicInteger retried = new AtomicInteger();
+        IngestProcessor processor = new IngestProcessor(ingestClient(sent), 1, 1, null, null)
+                .staging(0)
+                .retryPolicy(new IngestRetryPolicy(3, TimeValue.timeValueMillis(200), TimeValue.timeValueMillis(200)))
+                .listener(listener(retried));
+        processor.add(indexRequest("1"));
+        IngestSent first = sent.poll(5, TimeUnit.SECONDS);
+        fail(first, RestStatus.SERVICE_UNAVAILABLE);
+        // the only permit is taken while the retry is due
+        processor.add(indexRequest("2"));
+        IngestSent second = sent.poll(5, TimeUnit.SECONDS);
+        assertEquals("2", id(second));
+        assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, retried.get());
+        succeed(second);
+        IngestSent retry = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(retry);
+        assertEquals("1", id(retry));
+        succeed(retry);
+        assertTrue(processor.waitForResponses(TimeValue.timeValueSeconds(5)));
+        processor.close();
+    }
+
+    @Test
+    public void testRetryKeepsLaneOrder() throws Exception {
+        BlockingQueue<IngestSent> sent = new LinkedBlockingQueue<IngestSent>();
+        AtomicInteger retried = new AtomicInteger();
+        IngestProcessor processor = new IngestProcessor(ingestClient(sent), 1, 2, null, null)
+                .staging(0)
+                .lanes(1)
+                .retryPolicy(new IngestRetryPolicy(3, TimeValue.timeValueMillis(200), TimeValue.timeValueMillis(200)))
+                .listener(listener(retried));
+        processor.add(indexRequest("1", "first"));
+        processor.flush();
+        IngestSent first = sent.poll(5, TimeUnit.SECONDS);
+        fail(first, RestStatus.SERVICE_UNAVAILABLE);
+        // a later action of the lane is not sent before the retry is answered
+        processor.add(indexRequest("1", "second"));
+        processor.flush();
+        IngestSent retry = sent.poll(5, TimeUnit.SECONDS);
+        assertEquals(1, retried.get());
+        assertEquals("first", value(retry));
+        assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+        succeed(retry);
+        IngestSent next = sent.poll(5, TimeUnit.SECONDS);
+        assertEquals("second", value(next));
+        succeed(next);
+        assertTrue(processor.waitForResponses(TimeValue.timeValueSeconds(5)));
+        processor.close();
+    }
+
+    @Test
+    public void testRetryWithListener() throws Exception {
+        BlockingQueue<IngestSent> sent = new LinkedBlockingQueue<IngestSent>();
+        final AtomicInteger answered = new AtomicInteger();
+        // a listener without the extended callbacks
+        IngestProcessor processor = new IngestProcessor(ingestClient(sent), 1, 1, null, null)
+                .retryPolicy(new IngestRetryPolicy(3, TimeValue.timeValueMillis(10), TimeValue.timeValueMillis(10)))
+                .listener(new IngestProcessor.Listener() {
+                    @Override
+                    public void beforeBulk(long bulkId, int concurrency, IngestRequest request) {
+                    }
+
+                    @Override
+                    public void afterBulk(long bulkId, int concurrency, IngestResponse response) {
+                        answered.incrementAndGet();
+                    }
+
+                    @Override
+                    public void afterBulk(long bulkId, int concurrency, Throwable failure) {
+                    }
+                });
+        processor.add(indexRequest("1"));
+        fail(sent.poll(5, TimeUnit.SECONDS), RestStatus.SERVICE_UNAVAILABLE);
+        IngestSent retry = sent.poll(5, TimeUnit.SECONDS);
+        assertEquals("1", id(retry));
+        succeed(retry);
+        assertTrue(processor.waitForResponses(TimeValue.timeValueSeconds(5)));
+        assertEquals(2, answered.get());
+        processor.close();
+    }
+
+    @Test
+    public void testCloseFailsScheduledRetry() throws Exception {
+        BlockingQueue<IngestSent> sent = new LinkedBlockingQueue<IngestSent>();
+        AtomicInteger retried = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        IngestProcessor processor = new IngestProcessor(ingestClient(sent), 1, 1, null, TimeValue.timeValueSeconds(1))
+                .staging(0)
+                .retryPolicy(new IngestRetryPolicy(3, TimeValue.timeValueSeconds(60), TimeValue.timeValueSeconds(60)))
+                .listener(listener(retried, failed));
+        ListenableActionFuture<ActionRequest> ack = processor.addWithAck(indexRequest("1"));
+        fail(sent.poll(5, TimeUnit.SECONDS), RestStatus.SERVICE_UNAVAILABLE);
+        assertEquals(1, retried.get());
+        long start = System.currentTimeMillis();
+        processor.close();
+        assertTrue(System.currentTimeMillis() - start < 10000L);
+        // the retry is not dropped silently
+        assertEquals(1, failed.get());
+        assertTrue(ack.isDone());
+        assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    private static IngestProcessor.Listener listener(AtomicInteger retried) {
+        return listener(retried, new AtomicInteger());
+    }
+
+    private static IngestProcessor.Listener listener(final AtomicInteger retried, final AtomicInteger failed) {
+        return new IngestListener() {
+            @Override
+            public void retried(long bulkId, int actions, long delayMillis) {
+                retried.incrementAndGet();
+            }
+
+            @Override
+            public void failed(long bulkId, ActionRequest request, String reason) {
+                failed.incrementAndGet();
+            }
+        };
+    }
+}
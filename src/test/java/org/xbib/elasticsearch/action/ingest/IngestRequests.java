@@ -0,0 +1,46 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.xbib.elasticsearch.support.helper.MockClientHelper.IngestSent;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Actions and answers for ingest requests sent to a mock client.
+ */
+final class IngestRequests {
+
+    private IngestRequests() {
+    }
+
+    static IndexRequest indexRequest(String id) {
+        return indexRequest(id, "value");
+    }
+
+    static IndexRequest indexRequest(String id, String value) {
+        return new IndexRequest("test", "test", id).source("{\"name\":\"" + value + "\"}");
+    }
+
+    static String id(IngestSent sent) {
+        return ((IndexRequest) sent.request.requests().iterator().next()).id();
+    }
+
+    static String value(IngestSent sent) {
+        return ((IndexRequest) sent.request.requests().iterator().next()).sourceAsMap().get("name").toString();
+    }
+
+    static void succeed(IngestSent sent) {
+        sent.listener.onResponse(new IngestResponse(sent.request.numberOfActions(),
+                new LinkedList<IngestItemFailure>(), 1L));
+    }
+
+    static void fail(IngestSent sent, RestStatus status) {
+        List<IngestItemFailure> failure = new LinkedList<IngestItemFailure>();
+        for (int i = 0; i < sent.request.numberOfActions(); i++) {
+            failure.add(new IngestItemFailure(i, "failed", status));
+        }
+        sent.listener.onResponse(new IngestResponse(0, failure, 1L));
+    }
+}
@@ -0,0 +1,65 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.UnavailableShardsException;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.RemoteTransportException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IngestRetryPolicyTest {
+
+    @Test
+    public void testRetriable() {
+        IngestRetryPolicy policy = new IngestRetryPolicy(3, TimeValue.timeValueMillis(100), TimeValue.timeValueSeconds(1));
+        assertTrue(policy.isRetriable(new IngestItemFailure(0, "rejected",
+                IngestItemFailure.status(new RemoteTransportException("remote",
+                        new EsRejectedExecutionException("rejected"))))));
+        assertTrue(policy.isRetriable(new IngestItemFailure(0, "unavailable",
+                IngestItemFailure.status(new UnavailableShardsException(new ShardId("test", 0), "not active")))));
+        // the message does not count, only the status
+        assertFalse(policy.isRetriable(new IngestItemFailure(0, "MapperParsingException[timed out]",
+                RestStatus.BAD_REQUEST)));
+        assertFalse(policy.isRetriable(new IngestItemFailure(0, "unknown")));
+        assertTrue(policy.isRetriable(new RemoteTransportException("remote",
+                new EsRejectedExecutionException("rejected"))));
+        assertFalse(policy.isRetriable(new ElasticsearchIllegalArgumentException("bad")));
+    }
+
+    @Test
+    public void testAttempts() {
+        IngestRetryPolicy policy = new IngestRetryPolicy(2, TimeValue.timeValueMillis(100), TimeValue.timeValueSeconds(1));
+        IndexRequest action = new IndexRequest("test", "test", "1");
+        assertEquals(1, policy.failed(action));
+        assertEquals(2, policy.failed(action));
+        // the maximum number of retries is reached, the action is forgotten
+        assertEquals(0, policy.failed(action));
+        assertEquals(0, policy.size());
+        assertEquals(1, policy.failed(action));
+        IngestRequest request = new IngestRequest().add(action);
+        policy.done(request, new boolean[]{true});
+        assertEquals(1, policy.size());
+        policy.done(request, null);
+        assertEquals(0, policy.size());
+    }
+
+    @Test
+    public void testBackoff() {
+        IngestRetryPolicy policy = new IngestRetryPolicy(10, TimeValue.timeValueMillis(100), TimeValue.timeValueSeconds(1));
+        for (int i = 0; i < 100; i++) {
+            long first = policy.backoff(1);
+            assertTrue(first >= 50L && first <= 100L);
+            long third = policy.backoff(3);
+            assertTrue(third >= 200L && third <= 400L);
+            long capped = policy.backoff(10);
+            assertTrue(capped >= 500L && capped <= 1000L);
+        }
+    }
+}
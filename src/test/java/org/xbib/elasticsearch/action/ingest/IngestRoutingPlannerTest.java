@@ -0,0 +1,96 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.routing.RoutingTable;
+import org.elasticsearch.cluster.routing.allocation.decider.AwarenessAllocationDecider;
+import org.elasticsearch.cluster.routing.operation.hash.djb.DjbHashFunction;
+import org.elasticsearch.cluster.routing.operation.plain.PlainOperationRouting;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class IngestRoutingPlannerTest {
+
+    @Test
+    public void testCollapseDuplicates() {
+        MetaData metaData = MetaData.builder()
+                .put(IndexMetaData.builder("test").numberOfShards(3).numberOfReplicas(0))
+                .build();
+        ClusterState clusterState = ClusterState.builder(ClusterName.DEFAULT)
+                .metaData(metaData)
+                .routingTable(RoutingTable.builder().addAsNew(metaData.index("test")))
+                .build();
+        IngestRoutingPlanner planner = new IngestRoutingPlanner(new PlainOperationRouting(ImmutableSettings.EMPTY,
+                new DjbHashFunction(), new AwarenessAllocationDecider()), true);
+        List<ActionRequest> requests = Arrays.<ActionRequest>asList(
+                new IndexRequest("test", "type", "1").source("{\"a\":1}"),
+                new IndexRequest("test", "type", "2").source("{\"a\":2}"),
+                new IndexRequest("test", "type", "1").source("{\"a\":3}"),
+                new DeleteRequest("test", "type", "2"),
+                new IndexRequest("test", "type", "3").source("{\"a\":4}"),
+                // a create depends on the previous action
+                new IndexRequest("test", "type", "3").source("{\"a\":5}").create(true),
+                new IndexRequest("test", "type", "4").source("{\"a\":6}"),
+                // a versioned action depends on the previous action
+                new IndexRequest("test", "type", "4").source("{\"a\":7}").version(2L),
+                // other routing, other document
+                new IndexRequest("test", "type", "1").routing("x").source("{\"a\":8}"),
+                new IndexRequest("test", "type").source("{\"a\":9}"),
+                new IndexRequest("test", "type").source("{\"a\":10}"));
+        IngestRoutingPlanner.Plan plan = planner.plan(clusterState, requests, true);
+        assertArrayEquals(new int[]{0, 1}, plan.collapsed());
+        assertEquals(9, count(plan));
+        plan = planner.plan(clusterState, requests, false);
+        assertArrayEquals(new int[0], plan.collapsed());
+        assertEquals(11, count(plan));
+    }
+
+    @Test
+    public void testCollapsedFailWithReplacingAction() {
+        MetaData metaData = MetaData.builder()
+                .put(IndexMetaData.builder("test").numberOfShards(3).numberOfReplicas(0))
+                .build();
+        ClusterState clusterState = ClusterState.builder(ClusterName.DEFAULT)
+                .metaData(metaData)
+                .routingTable(RoutingTable.builder().addAsNew(metaData.index("test")))
+                .build();
+        IngestRoutingPlanner planner = new IngestRoutingPlanner(new PlainOperationRouting(ImmutableSettings.EMPTY,
+                new DjbHashFunction(), new AwarenessAllocationDecider()), true);
+        List<ActionRequest> requests = Arrays.<ActionRequest>asList(
+                new IndexRequest("test", "type", "1").source("{\"a\":1}"),
+                new IndexRequest("test", "type", "2").source("{\"a\":2}"),
+                new IndexRequest("test", "type", "1").source("{\"a\":3}"),
+                new IndexRequest("test", "type", "1").source("{\"a\":4}"),
+                new DeleteRequest("test", "type", "2"));
+        IngestRoutingPlanner.Plan plan = planner.plan(clusterState, requests, true);
+        assertArrayEquals(new int[]{0, 1, 2}, plan.collapsed());
+        // the last action on document 1 failed, the actions it replaces fail with it
+        List<IngestItemFailure> failure = newArrayList(new IngestItemFailure(3, "failed", RestStatus.BAD_REQUEST));
+        assertArrayEquals(new int[]{1}, plan.collapsed(failure));
+        assertEquals(3, failure.size());
+        assertEquals(0, failure.get(1).pos());
+        assertEquals(RestStatus.BAD_REQUEST, failure.get(1).status());
+        assertEquals(2, failure.get(2).pos());
+    }
+
+    private static int count(IngestRoutingPlanner.Plan plan) {
+        int n = 0;
+        for (List<IngestItemRequest> items : plan.requestsByShard().values()) {
+            n += items.size();
+        }
+        return n;
+    }
+}
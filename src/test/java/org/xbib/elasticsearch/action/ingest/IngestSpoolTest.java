@@ -0,0 +1,98 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IngestSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAcknowledgeAndRecover() throws Exception {
+        File directory = folder.newFolder("spool");
+        IngestSpool spool = new IngestSpool(directory, new ByteSizeValue(4096));
+        assertTrue(spool.recovered().isEmpty());
+        IngestRequest request = new IngestRequest();
+        for (int i = 0; i < 100; i++) {
+            IndexRequest indexRequest = new IndexRequest("test", "test", Integer.toString(i))
+                    .source("{\"name\":\"value" + i + "\"}");
+            spool.append(indexRequest);
+            request.add(indexRequest);
+        }
+        DeleteRequest deleteRequest = new DeleteRequest("test", "test", "100");
+        spool.append(deleteRequest);
+        assertTrue(directory.listFiles().length > 1);
+        // acknowledge all but the delete, the segments before the current one are deleted
+        IngestRequest acknowledged = request.takeAll();
+        spool.acknowledge(acknowledged);
+        assertEquals(1, spool.size());
+        assertEquals(1, directory.listFiles().length);
+        spool.close();
+
+        spool = new IngestSpool(directory, new ByteSizeValue(4096));
+        assertEquals(1, spool.recovered().size());
+        File file = spool.recovered().get(0);
+        List<ActionRequest> actions = IngestSpool.read(file);
+        // the acknowledged index actions of the current segment are not read again
+        assertEquals(1, actions.size());
+        assertTrue(actions.get(0) instanceof DeleteRequest);
+        assertEquals("100", ((DeleteRequest) actions.get(0)).id());
+        spool.discard(file);
+        spool.close();
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testLargeDocument() throws Exception {
+        File directory = folder.newFolder("spool");
+        IngestSpool spool = new IngestSpool(directory, new ByteSizeValue(4096));
+        StringBuilder sb = new StringBuilder("{\"name\":\"");
+        for (int i = 0; i < 100000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        sb.append("\"}");
+        IndexRequest indexRequest = new IndexRequest("test", "test", "1").source(sb.toString());
+        spool.append(indexRequest);
+        spool.close();
+
+        spool = new IngestSpool(directory, new ByteSizeValue(4096));
+        List<ActionRequest> actions = IngestSpool.read(spool.recovered().get(0));
+        assertEquals(1, actions.size());
+        assertEquals(sb.toString(), ((IndexRequest) actions.get(0)).source().toUtf8());
+        spool.close();
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        File directory = folder.newFolder("spool");
+        IngestSpool spool = new IngestSpool(directory, new ByteSizeValue(4096));
+        IngestRequest request = new IngestRequest();
+        for (int i = 0; i < 10; i++) {
+            IndexRequest indexRequest = new IndexRequest("test", "test", Integer.toString(i))
+                    .source("{\"name\":\"value" + i + "\"}");
+            spool.append(indexRequest);
+            request.add(indexRequest);
+        }
+        // the failed actions are forgotten, but kept for the next run
+        spool.release(request.takeAll());
+        assertEquals(0, spool.size());
+        spool.close();
+
+        spool = new IngestSpool(directory, new ByteSizeValue(4096));
+        assertEquals(1, spool.recovered().size());
+        assertEquals(10, IngestSpool.read(spool.recovered().get(0)).size());
+        spool.close();
+    }
+}
@@ -0,0 +1,86 @@
+package org.xbib.elasticsearch.action.ingest;
+
+import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripedActionBufferTest {
+
+    @Test
+    public void testBatch() {
+        StripedActionBuffer buffer = new StripedActionBuffer(3);
+        ActionBuffer consumer = new ActionBuffer();
+        assertEquals(4, buffer.stripes());
+        assertFalse(buffer.add(new DeleteRequest("test", "test", "0"), 1, 3, consumer));
+        assertFalse(buffer.add(new DeleteRequest("test", "test", "1"), 1, 3, consumer));
+        assertTrue(buffer.add(new DeleteRequest("test", "test", "2"), 1, 3, consumer));
+        assertEquals(3, consumer.size());
+        assertEquals(3L, consumer.sizeInBytes());
+        assertEquals(0, buffer.size());
+        buffer.add(new DeleteRequest("test", "test", "3"), 1, 3, consumer);
+        assertEquals(1, buffer.size());
+        buffer.drainTo(consumer);
+        assertEquals(4, consumer.size());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testClose() {
+        StripedActionBuffer buffer = new StripedActionBuffer(2);
+        ActionBuffer consumer = new ActionBuffer();
+        buffer.add(new DeleteRequest("test", "test", "0"), 1, 3, consumer);
+        buffer.close(consumer);
+        assertEquals(1, consumer.size());
+        try {
+            buffer.add(new DeleteRequest("test", "test", "1"), 1, 3, consumer);
+            fail();
+        } catch (ElasticsearchIllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, consumer.size());
+    }
+
+    @Test
+    public void testThreads() throws InterruptedException {
+        final StripedActionBuffer buffer = new StripedActionBuffer(4);
+        final ActionBuffer consumer = new ActionBuffer();
+        final AtomicInteger batches = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 1000;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        if (buffer.add(new DeleteRequest("test", "test", Integer.toString(offset + i)), 1, 100, consumer)) {
+                            batches.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(batches.get() > 0);
+        buffer.drainTo(consumer);
+        assertEquals(8000, consumer.size());
+        assertEquals(8000L, consumer.sizeInBytes());
+        Set<String> ids = new HashSet<String>();
+        for (ActionRequest request : consumer) {
+            ids.add(((DeleteRequest) request).id());
+        }
+        assertEquals(8000, ids.size());
+    }
+}
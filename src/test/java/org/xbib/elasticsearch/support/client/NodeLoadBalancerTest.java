@@ -0,0 +1,116 @@
+package org.xbib.elasticsearch.support.client;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.transport.LocalTransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NodeLoadBalancerTest {
+
+    private final DiscoveryNode a = node("a");
+
+    private final DiscoveryNode b = node("b");
+
+    private final DiscoveryNode c = node("c");
+
+    private final List<DiscoveryNode> nodes = Arrays.asList(a, b, c);
+
+    @Test
+    public void testOutstanding() {
+        NodeLoadBalancer balancer = balancer();
+        assertNull(balancer.select(Arrays.<DiscoveryNode>asList()));
+        DiscoveryNode first = balancer.select(nodes);
+        DiscoveryNode second = balancer.select(nodes);
+        DiscoveryNode third = balancer.select(nodes);
+        assertNotSame(first, second);
+        assertNotSame(second, third);
+        assertNotSame(first, third);
+        balancer.onResponse(second, 5L);
+        // the only node without outstanding request
+        assertEquals(second, balancer.select(nodes));
+        assertEquals(1, balancer.outstanding(second));
+        assertEquals(1, balancer.outstanding(first));
+    }
+
+    @Test
+    public void testForgottenNode() {
+        NodeLoadBalancer balancer = balancer();
+        assertEquals(a, balancer.select(Arrays.asList(a)));
+        balancer.onResponse(a, 5L);
+        balancer.retain(Arrays.asList(b, c));
+        // a request that was counted before the node was forgotten is answered late
+        balancer.onResponse(a, 5L);
+        balancer.onFailure(a);
+        assertEquals(0, balancer.outstanding(a));
+        assertEquals(a, balancer.select(Arrays.asList(a)));
+        assertEquals(1, balancer.outstanding(a));
+    }
+
+    @Test
+    public void testSlowNodeEjected() {
+        NodeLoadBalancer balancer = balancer();
+        for (int i = 0; i < 30; i++) {
+            // without latencies and outstanding requests, the nodes take turns
+            DiscoveryNode node = balancer.select(nodes);
+            balancer.onResponse(node, node == c ? 1000L : 10L);
+        }
+        balancer.tick();
+        assertEquals(10.0d, balancer.latency(a), 0.01d);
+        assertTrue(balancer.isEjected(c));
+        // an ejected node starts over when it is readmitted
+        assertEquals(0.0d, balancer.latency(c), 0.01d);
+        assertFalse(balancer.isEjected(a));
+        for (int i = 0; i < 10; i++) {
+            assertNotSame(c, balancer.select(nodes));
+        }
+    }
+
+    @Test
+    public void testFailingNodeEjected() {
+        NodeLoadBalancer balancer = balancer();
+        fail(balancer, a);
+        assertTrue(balancer.isEjected(a));
+        fail(balancer, b);
+        // at most half of the nodes are ejected
+        assertFalse(balancer.isEjected(b));
+        for (int i = 0; i < 10; i++) {
+            assertNotSame(a, balancer.select(nodes));
+        }
+        // if all nodes are ejected, they are still selected
+        assertEquals(a, balancer.select(Arrays.asList(a)));
+    }
+
+    private static NodeLoadBalancer balancer() {
+        return new NodeLoadBalancer(3.0d, TimeValue.timeValueMillis(100), 3, TimeValue.timeValueMinutes(1));
+    }
+
+    /**
+     * Let the requests to a node fail until it failed three times in a row.
+     */
+    private void fail(NodeLoadBalancer balancer, DiscoveryNode failing) {
+        int failures = 0;
+        while (failures < 3) {
+            DiscoveryNode node = balancer.select(nodes);
+            if (node == failing) {
+                balancer.onFailure(node);
+                failures++;
+            } else {
+                balancer.onResponse(node, 10L);
+            }
+        }
+    }
+
+    private static DiscoveryNode node(String id) {
+        return new DiscoveryNode(id, new LocalTransportAddress(id), Version.CURRENT);
+    }
+}
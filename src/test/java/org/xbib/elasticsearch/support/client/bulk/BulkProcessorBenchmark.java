@@ -0,0 +1,113 @@
+package org.xbib.elasticsearch.support.client.bulk;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xbib.elasticsearch.support.helper.MockClientHelper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Add throughput of the bulk processor of Elasticsearch compared with the bulk processor of this
+ * package, with concurrent producers. The client answers every bulk request at once in the thread
+ * that sends it, so only batching and dispatching are measured. The main method runs the benchmark
+ * for 1 to 16 producer threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BulkProcessorBenchmark {
+
+    @Param({"stock", "native"})
+    public String processor;
+
+    @Param({"1000"})
+    public int actions;
+
+    private org.elasticsearch.action.bulk.BulkProcessor stock;
+
+    private BulkProcessor bulkProcessor;
+
+    @State(Scope.Thread)
+    public static class Producer {
+
+        private IndexRequest request;
+
+        @Setup
+        public void setup() {
+            request = new IndexRequest("test", "test", Thread.currentThread().getName())
+                    .source(new BytesArray("{\"name\":\"value\"}"), false);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        Client client = client();
+        if ("stock".equals(processor)) {
+            stock = org.elasticsearch.action.bulk.BulkProcessor.builder(client, new MockClientHelper.BulkListener())
+                    .setBulkActions(actions)
+                    .setConcurrentRequests(4)
+                    .build();
+        } else {
+            bulkProcessor = BulkProcessor.builder(client, new MockClientHelper.BulkListener())
+                    .setBulkActions(actions)
+                    .setConcurrentRequests(4)
+                    .build();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (stock != null) {
+            stock.close();
+        }
+        if (bulkProcessor != null) {
+            bulkProcessor.close();
+        }
+    }
+
+    @Benchmark
+    public Object add(Producer producer) {
+        return stock != null ? stock.add(producer.request) : bulkProcessor.add(producer.request);
+    }
+
+    private static Client client() {
+        final BulkResponse response = new BulkResponse(new BulkItemResponse[0], 0L);
+        return MockClientHelper.client("bulk", new MockClientHelper.Handler<BulkRequest, BulkResponse>() {
+            @Override
+            public void handle(BulkRequest request, ActionListener<BulkResponse> listener) {
+                listener.onResponse(response);
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[]{1, 2, 4, 8, 16}) {
+            new Runner(new OptionsBuilder()
+                    .include(BulkProcessorBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
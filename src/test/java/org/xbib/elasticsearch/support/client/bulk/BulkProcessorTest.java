@@ -0,0 +1,100 @@
+package org.xbib.elasticsearch.support.client.bulk;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+import org.xbib.elasticsearch.support.helper.MockClientHelper;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulkProcessorTest {
+
+    /**
+     * A client that answers bulk requests after a delay, in another thread.
+     */
+    static Client client(final long delayMillis) {
+        return MockClientHelper.client("bulk", new MockClientHelper.Handler<BulkRequest, BulkResponse>() {
+            @Override
+            public void handle(BulkRequest request, final ActionListener<BulkResponse> listener) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(delayMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        listener.onResponse(new BulkResponse(new BulkItemResponse[0], delayMillis));
+                    }
+                }.start();
+            }
+        });
+    }
+
+    static class CountingListener extends MockClientHelper.BulkListener {
+
+        final AtomicInteger before = new AtomicInteger();
+
+        final AtomicInteger actions = new AtomicInteger();
+
+        final AtomicInteger after = new AtomicInteger();
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            before.incrementAndGet();
+            actions.addAndGet(request.numberOfActions());
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            after.incrementAndGet();
+        }
+
+    }
+
+    @Test
+    public void testBulkActionsAndFlush() throws InterruptedException {
+        CountingListener listener = new CountingListener();
+        BulkProcessor processor = BulkProcessor.builder(client(10L), listener)
+                .setBulkActions(10)
+                .setConcurrentRequests(2)
+                .build();
+        for (int i = 0; i < 25; i++) {
+            processor.add(new IndexRequest("test", "test", Integer.toString(i)).source("{\"name\":\"value\"}"));
+        }
+        assertEquals(2, listener.before.get());
+        processor.flush();
+        assertEquals(3, listener.before.get());
+        assertTrue(processor.waitForResponses(TimeValue.timeValueSeconds(10)));
+        assertEquals(25, listener.actions.get());
+        assertEquals(3, listener.after.get());
+        assertEquals(0, processor.inFlight());
+        assertEquals(3L, processor.responseTime().count());
+        processor.close();
+    }
+
+    @Test
+    public void testWaitForResponses() throws InterruptedException {
+        CountingListener listener = new CountingListener();
+        BulkProcessor processor = BulkProcessor.builder(client(500L), listener)
+                .setBulkActions(1)
+                .setConcurrentRequests(2)
+                .build();
+        processor.add(new IndexRequest("test", "test", "1").source("{\"name\":\"value\"}"));
+        assertEquals(1, processor.inFlight());
+        assertFalse(processor.waitForResponses(TimeValue.timeValueMillis(10)));
+        assertTrue(processor.waitForResponses(TimeValue.timeValueSeconds(10)));
+        // all permits are given back
+        assertEquals(0, processor.inFlight());
+        processor.close();
+    }
+}
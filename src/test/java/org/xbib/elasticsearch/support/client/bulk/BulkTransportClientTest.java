@@ -104,6 +104,8 @@ public class BulkTransportClientTest extends AbstractNodeRandomTestHelper {
 
     @Test
     public void testThreadedRandomDocsBulkClient() throws Exception {
+        // a second node for the replicas, which stopping the bulk mode waits for
+        startNode("2");
         int max = Runtime.getRuntime().availableProcessors();
         int maxactions = 1000;
         final int maxloop = 12345;
@@ -1,6 +1,7 @@
 
 package org.xbib.elasticsearch.support.client.ingest;
 
+import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.xbib.elasticsearch.support.helper.AbstractNodeRandomTestHelper;
@@ -16,6 +17,7 @@ import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class IngestTransportClientTest extends AbstractNodeRandomTestHelper {
 
@@ -53,6 +55,40 @@ public class IngestTransportClientTest extends AbstractNodeRandomTestHelper {
         }
     }
 
+    @Test
+    public void testSniff() {
+        final IngestTransportClient es = new IngestTransportClient()
+                .newClient(getAddress());
+        try {
+            es.sniff();
+            es.sniff();
+            assertEquals(2, es.getSniffs().count());
+            assertEquals(0, es.getSniffFailures().count());
+            // the node did not leave the cluster
+            assertEquals(0, es.getNodesRemoved().count());
+        } finally {
+            es.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownWhileSniffing() throws InterruptedException {
+        final IngestTransportClient es = new IngestTransportClient();
+        es.newClient(getAddress(), ImmutableSettings.settingsBuilder()
+                .put(es.defaultSettings(getAddress()))
+                .put("client.transport.pool_size", 2)
+                .put("client.transport.sniff_interval", "10ms")
+                .build());
+        Thread.sleep(200L);
+        es.shutdown();
+        // the sniffer is terminated before the clients are closed
+        long sniffs = es.getSniffs().count();
+        Thread.sleep(100L);
+        assertEquals(sniffs, es.getSniffs().count());
+        assertEquals(0, es.getSniffFailures().count());
+        assertTrue(es.clients().isEmpty());
+    }
+
     @Test
     public void testSingleDocIngestClient() {
         final IngestTransportClient es = new IngestTransportClient()
@@ -78,6 +114,32 @@ public class IngestTransportClientTest extends AbstractNodeRandomTestHelper {
         }
     }
 
+    @Test
+    public void testFlushIntervalIngestClient() throws InterruptedException {
+        final IngestTransportClient es = new IngestTransportClient()
+                .maxActionsPerBulkRequest(1000)
+                .flushInterval(TimeValue.timeValueSeconds(1))
+                .newClient(getAddress())
+                .newIndex("test");
+        try {
+            for (int i = 0; i < 5; i++) {
+                es.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            // no explicit flush, the actions are sent after the interval
+            Thread.sleep(3000L);
+            assertEquals(5, es.getState().getSubmitted().count());
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            es.shutdown();
+            assertEquals(es.getState().getTotalIngest().count(), 1);
+            if (es.hasThrowable()) {
+                logger.error("error", es.getThrowable());
+            }
+            assertFalse(es.hasThrowable());
+        }
+    }
+
     @Test
     public void testRandomDocsIngestClient() {
         final IngestTransportClient es = new IngestTransportClient()
@@ -101,8 +163,38 @@ public class IngestTransportClientTest extends AbstractNodeRandomTestHelper {
         }
     }
 
+    @Test
+    public void testClientRoutingIngestClient() throws Exception {
+        IngestTransportClient es = new IngestTransportClient();
+        es.newClient(getAddress(), ImmutableSettings.settingsBuilder()
+                .put(es.defaultSettings(getAddress()))
+                .put("client.transport.load_balancing", true)
+                .put("action.ingest.client_routing", true)
+                .build())
+                .newIndex("test");
+        try {
+            for (int i = 0; i < 1234; i++) {
+                es.index("test", "test", null, "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            es.flush();
+            es.waitForResponses(TimeValue.timeValueSeconds(30));
+            es.refresh("test");
+            assertEquals(1234,
+                    es.client().prepareCount("test").setQuery(QueryBuilders.matchAllQuery()).execute().actionGet().getCount()
+            );
+        } finally {
+            es.shutdown();
+            if (es.hasThrowable()) {
+                logger.error("error", es.getThrowable());
+            }
+            assertFalse(es.hasThrowable());
+        }
+    }
+
     @Test
     public void testThreadedRandomDocsIngestClient() throws Exception {
+        // a second node for the replicas, which stopping the bulk mode waits for
+        startNode("2");
         int max = Runtime.getRuntime().availableProcessors();
         int maxactions = 1000;
         final int maxloop = 12345;
@@ -0,0 +1,73 @@
+package org.xbib.elasticsearch.support.client.ingest;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import org.xbib.elasticsearch.support.helper.AbstractNodeRandomTestHelper;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PipelinedReplicationTest extends AbstractNodeRandomTestHelper {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(PipelinedReplicationTest.class.getSimpleName());
+
+    @Override
+    protected Settings getNodeSettings() {
+        return settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("action.ingest.replication.chunk_size", 10)
+                .build();
+    }
+
+    @Test
+    public void testPipelinedReplication() throws IOException, InterruptedException {
+
+        // we need 2 nodes for a replica
+        startNode("2");
+
+        final IngestTransportClient es = new IngestTransportClient()
+                .maxActionsPerBulkRequest(1000)
+                .newClient(getAddress())
+                .shards(2)
+                .replica(1)
+                .newIndex("pipelinetest");
+
+        try {
+            es.waitForCluster(ClusterHealthStatus.GREEN, TimeValue.timeValueSeconds(30));
+            for (int i = 0; i < 5000; i++) {
+                es.index("pipelinetest", "pipelinetest", Integer.toString(i), "{ \"name\" : \"" + randomString(32) + "\"}");
+            }
+            es.flush();
+            Thread.sleep(2000L);
+            es.client().admin().indices().prepareRefresh("pipelinetest").execute().actionGet();
+            long primary = es.client().prepareCount("pipelinetest").setPreference("_primary")
+                    .setQuery(matchAllQuery()).execute().actionGet().getCount();
+            long replica = es.client().prepareCount("pipelinetest").setPreference("_replica")
+                    .setQuery(matchAllQuery()).execute().actionGet().getCount();
+            logger.info("primary = {}, replica = {}", primary, replica);
+            assertEquals(5000L, primary);
+            assertEquals(5000L, replica);
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            es.shutdown();
+            if (es.hasThrowable()) {
+                logger.error("error", es.getThrowable());
+            }
+            assertFalse(es.hasThrowable());
+        }
+
+        stopNode("2");
+    }
+
+}
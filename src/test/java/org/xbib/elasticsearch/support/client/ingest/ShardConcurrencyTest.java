@@ -0,0 +1,65 @@
+package org.xbib.elasticsearch.support.client.ingest;
+
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import org.xbib.elasticsearch.support.helper.AbstractNodeRandomTestHelper;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ShardConcurrencyTest extends AbstractNodeRandomTestHelper {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(ShardConcurrencyTest.class.getSimpleName());
+
+    @Override
+    protected Settings getNodeSettings() {
+        return settingsBuilder()
+                .put(super.getNodeSettings())
+                .put("action.ingest.shard.max_actions", 5)
+                .put("action.ingest.shard.concurrency", 4)
+                .build();
+    }
+
+    @Test
+    public void testSameIdInOrder() throws IOException, InterruptedException {
+        final IngestTransportClient es = new IngestTransportClient()
+                .maxActionsPerBulkRequest(1000)
+                .newClient(getAddress())
+                .shards(1)
+                .replica(0)
+                .newIndex("concurrencytest");
+        try {
+            // the later action on a document must win, although the shard requests run in parallel
+            for (int i = 0; i < 100; i++) {
+                es.index("concurrencytest", "test", Integer.toString(i), "{ \"name\" : \"first\"}");
+            }
+            for (int i = 0; i < 100; i++) {
+                es.index("concurrencytest", "test", Integer.toString(i), "{ \"name\" : \"second\"}");
+            }
+            es.flush();
+            es.waitForResponses(TimeValue.timeValueSeconds(30));
+            es.refresh("concurrencytest");
+            long count = es.client().prepareCount("concurrencytest")
+                    .setQuery(termQuery("name", "second")).execute().actionGet().getCount();
+            assertEquals(100L, count);
+        } catch (NoNodeAvailableException e) {
+            logger.warn("skipping, no node available");
+        } finally {
+            es.shutdown();
+            if (es.hasThrowable()) {
+                logger.error("error", es.getThrowable());
+            }
+            assertFalse(es.hasThrowable());
+        }
+    }
+
+}
@@ -5,6 +5,8 @@ import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsRequest;
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.client.transport.NoNodeAvailableException;
 
@@ -84,6 +86,8 @@ public class NodeClientTest extends AbstractNodeRandomTestHelper {
 
     @Test
     public void testThreadedRandomDocsNodeClient() throws Exception {
+        // a second node for the replicas, which stopping the bulk mode waits for
+        startNode("2");
         int max = Runtime.getRuntime().availableProcessors();
         int maxactions = 1000;
         final int maxloop = 12345;
@@ -133,4 +137,34 @@ public class NodeClientTest extends AbstractNodeRandomTestHelper {
         }
     }
 
+    @Test
+    public void testBulkSettingsNodeClient() throws Exception {
+        client("1").admin().indices().prepareCreate("test")
+                .setSettings(ImmutableSettings.settingsBuilder()
+                        .put("index.refresh_interval", "5s")
+                        .put("index.number_of_replicas", 2))
+                .execute().actionGet();
+        final NodeClient client = new NodeClient()
+                .maxRequestWait(TimeValue.timeValueSeconds(5))
+                .newClient(client("1"))
+                .startBulk("test");
+        Settings settings = getSettings(client);
+        assertEquals("-1", settings.get("index.refresh_interval"));
+        assertEquals("0", settings.get("index.number_of_replicas"));
+        client.stopBulk("test");
+        settings = getSettings(client);
+        assertEquals("5s", settings.get("index.refresh_interval"));
+        assertEquals("2", settings.get("index.number_of_replicas"));
+        if (client.hasThrowable()) {
+            logger.error("error", client.getThrowable());
+        }
+        assertFalse(client.hasThrowable());
+        client.shutdown();
+    }
+
+    private Settings getSettings(NodeClient client) {
+        return client.client().admin().indices().prepareGetSettings("test").execute().actionGet()
+                .getIndexToSettings().get("test");
+    }
+
 }
@@ -0,0 +1,146 @@
+package org.xbib.elasticsearch.support.helper;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.xbib.elasticsearch.action.ingest.IngestProcessor;
+import org.xbib.elasticsearch.action.ingest.IngestRequest;
+import org.xbib.elasticsearch.action.ingest.IngestResponse;
+import org.xbib.elasticsearch.support.client.bulk.BulkProcessor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+
+/**
+ * A client for tests without a node, and listeners which ignore all callbacks.
+ */
+public abstract class MockClientHelper {
+
+    /**
+     * Receives the requests of a client method which answers with a listener.
+     */
+    public static interface Handler<Request, Response> {
+
+        void handle(Request request, ActionListener<Response> listener);
+    }
+
+    /**
+     * A request sent to a client, with the listener for the response.
+     */
+    public static class Sent<Request, Response> {
+
+        public final Request request;
+
+        public final ActionListener<Response> listener;
+
+        public Sent(Request request, ActionListener<Response> listener) {
+            this.request = request;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * An ingest request sent to a client.
+     */
+    public static class IngestSent extends Sent<IngestRequest, IngestResponse> {
+
+        public IngestSent(IngestRequest request, ActionListener<IngestResponse> listener) {
+            super(request, listener);
+        }
+    }
+
+    /**
+     * A client which passes the requests of a method to a handler. All other methods throw.
+     *
+     * @param method  the name of the method, with the request and the listener as last arguments
+     * @param handler the handler, or null if the method throws too
+     * @return the client
+     */
+    public static <Request, Response> Client client(final String method, final Handler<Request, Response> handler) {
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class[]{Client.class},
+                new InvocationHandler() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                        if (handler != null && method.equals(m.getName()) && args != null && args.length >= 2
+                                && args[args.length - 1] instanceof ActionListener) {
+                            handler.handle((Request) args[args.length - 2], (ActionListener<Response>) args[args.length - 1]);
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(m.getName());
+                    }
+                });
+    }
+
+    /**
+     * A client which collects the ingest requests it executes, without answering them.
+     *
+     * @param sent the requests sent
+     * @return the client
+     */
+    public static Client ingestClient(final Collection<IngestSent> sent) {
+        return client("execute", new Handler<IngestRequest, IngestResponse>() {
+            @Override
+            public void handle(IngestRequest request, ActionListener<IngestResponse> listener) {
+                sent.add(new IngestSent(request, listener));
+            }
+        });
+    }
+
+    /**
+     * An ingest listener which ignores all callbacks. Tests override the callbacks they count.
+     */
+    public static class IngestListener implements IngestProcessor.ExtendedListener {
+
+        @Override
+        public void beforeBulk(long bulkId, int concurrency, IngestRequest request) {
+        }
+
+        @Override
+        public void afterBulk(long bulkId, int concurrency, IngestResponse response) {
+        }
+
+        @Override
+        public void afterBulk(long bulkId, int concurrency, Throwable failure) {
+        }
+
+        @Override
+        public void adapted(int actions, int concurrency) {
+        }
+
+        @Override
+        public void blocked(long millis) {
+        }
+
+        @Override
+        public void retried(long bulkId, int actions, long delayMillis) {
+        }
+
+        @Override
+        public void failed(long bulkId, ActionRequest request, String reason) {
+        }
+    }
+
+    /**
+     * A listener of both bulk processors which ignores all callbacks.
+     */
+    public static class BulkListener implements BulkProcessor.Listener,
+            org.elasticsearch.action.bulk.BulkProcessor.Listener {
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+        }
+    }
+}
@@ -2,23 +2,67 @@ package org.xbib.elasticsearch.support.helper;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
+import org.xbib.elasticsearch.action.ingest.ActionBufferTest;
+import org.xbib.elasticsearch.action.ingest.IngestAdaptiveControllerTest;
+import org.xbib.elasticsearch.action.ingest.IngestAdmissionControllerTest;
+import org.xbib.elasticsearch.action.ingest.IngestClientPoolTest;
+import org.xbib.elasticsearch.action.ingest.IngestClientRouterTest;
+import org.xbib.elasticsearch.action.ingest.IngestLaneTest;
+import org.xbib.elasticsearch.action.ingest.IngestRetryPolicyTest;
+import org.xbib.elasticsearch.action.ingest.IngestProcessorAckTest;
+import org.xbib.elasticsearch.action.ingest.IngestProcessorBudgetTest;
+import org.xbib.elasticsearch.action.ingest.IngestProcessorRetryTest;
+import org.xbib.elasticsearch.action.ingest.IngestFairSchedulerTest;
+import org.xbib.elasticsearch.action.ingest.IngestEncodingTest;
+import org.xbib.elasticsearch.action.ingest.IngestFramerTest;
+import org.xbib.elasticsearch.action.ingest.IngestMemoryBudgetTest;
+import org.xbib.elasticsearch.action.ingest.IngestNodeRequestTest;
+import org.xbib.elasticsearch.action.ingest.IngestRoutingPlannerTest;
+import org.xbib.elasticsearch.action.ingest.IngestSpoolTest;
+import org.xbib.elasticsearch.action.ingest.StripedActionBufferTest;
 import org.xbib.elasticsearch.support.AliasTest;
 import org.xbib.elasticsearch.support.NPETest;
 import org.xbib.elasticsearch.support.cron.CronTest;
+import org.xbib.elasticsearch.support.client.bulk.BulkProcessorTest;
 import org.xbib.elasticsearch.support.client.bulk.BulkTransportClientTest;
 import org.xbib.elasticsearch.support.client.ingest.DuplicateIDTest;
 import org.xbib.elasticsearch.support.client.ingest.IngestTransportClientTest;
+import org.xbib.elasticsearch.support.client.ingest.PipelinedReplicationTest;
+import org.xbib.elasticsearch.support.client.ingest.ShardConcurrencyTest;
 import org.xbib.elasticsearch.support.client.ingest.ReplicaLevelTest;
 import org.xbib.elasticsearch.support.client.node.NodeClientTest;
 import org.xbib.elasticsearch.support.client.ConfigHelperTest;
+import org.xbib.elasticsearch.support.client.NodeLoadBalancerTest;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         ConfigHelperTest.class,
+        NodeLoadBalancerTest.class,
+        BulkProcessorTest.class,
+        IngestFramerTest.class,
+        ActionBufferTest.class,
+        StripedActionBufferTest.class,
+        IngestNodeRequestTest.class,
+        IngestEncodingTest.class,
+        IngestRoutingPlannerTest.class,
+        IngestAdmissionControllerTest.class,
+        IngestAdaptiveControllerTest.class,
+        IngestMemoryBudgetTest.class,
+        IngestSpoolTest.class,
+        IngestClientPoolTest.class,
+        IngestClientRouterTest.class,
+        IngestLaneTest.class,
+        IngestRetryPolicyTest.class,
+        IngestProcessorAckTest.class,
+        IngestProcessorBudgetTest.class,
+        IngestProcessorRetryTest.class,
+        IngestFairSchedulerTest.class,
         AliasTest.class,
         NPETest.class,
         CronTest.class,
         ReplicaLevelTest.class,
+        PipelinedReplicationTest.class,
+        ShardConcurrencyTest.class,
         DuplicateIDTest.class,
         BulkTransportClientTest.class,
         NodeClientTest.class,